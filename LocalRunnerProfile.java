@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.MRConfig;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+// Profil de reglage du LocalJobRunner de Hadoop pour executer, sans cluster et dans le
+// processus du driver, les Mappers/Reducers inchanges sur des fichiers locaux.
+//
+// Ce n'est pas un moteur d'execution : les jobs passent toujours par le LocalJobRunner (tri
+// en memoire avec deversement sur disque, shuffle local, DistributedCache par liens
+// symboliques, MultipleOutputs) et gardent son cout de demarrage par job. Par defaut il est
+// sequentiel (un thread Map, un Reducer, splits de 128 Mo) ; configure() le rend parallele :
+//   - splits dimensionnes pour donner plusieurs taches Map par thread,
+//   - pool de threads Map et Reduce de la taille du nombre de coeurs,
+//   - autant de Reducers que de threads (sauf nombre impose par -D mapreduce.job.reduces),
+//   - tampon de tri par tache borne par le budget memoire.
+public class LocalRunnerProfile {
+
+    // Les cles gardent leur prefixe historique "embedded." (scripts existants)
+
+    // Nombre de threads Map et Reduce (defaut : nombre de coeurs)
+    public static final String THREADS_KEY = "embedded.threads";
+
+    // Budget memoire (Mo) de l'ensemble des tampons de tri simultanes ; au-dela, les
+    // taches deversent sur disque (defaut : un quart du tas de la JVM)
+    public static final String MEMORY_MB_KEY = "embedded.memoryMb";
+
+    // Nombre de splits vise par thread Map (defaut : 2, pour lisser les taches inegales)
+    public static final String SPLITS_PER_THREAD_KEY = "embedded.splitsPerThread";
+
+    private static final long MIN_SPLIT_BYTES = 1L << 20;
+
+    // A appeler sur la configuration du driver avant la creation des jobs.
+    // inputs : entree principale, pour dimensionner les splits. Retourne le resume des
+    // reglages appliques, que le driver note dans son rapport d'execution.
+    public static String configure(Configuration conf, List<Path> inputs) throws IOException {
+        int threads = conf.getInt(THREADS_KEY, Runtime.getRuntime().availableProcessors());
+        long heapMb = Runtime.getRuntime().maxMemory() >> 20;
+        long memoryMb = conf.getLong(MEMORY_MB_KEY, heapMb / 4);
+
+        conf.set(MRConfig.FRAMEWORK_NAME, "local");
+        conf.set(FileSystem.FS_DEFAULT_NAME_KEY, "file:///");
+        conf.setInt("mapreduce.local.map.tasks.maximum", threads);
+        conf.setInt("mapreduce.local.reduce.tasks.maximum", threads);
+        // Seul un nombre absent est remplace : -D mapreduce.job.reduces=1 (sortie unique triee) est garde.
+        // La valeur de mapred-default.xml (chargee des qu'un JobConf a ete cree) compte comme absente.
+        if (!isSet(conf, MRJobConfig.NUM_REDUCES)) {
+            conf.setInt(MRJobConfig.NUM_REDUCES, threads);
+        }
+
+        // Tampon de tri par tache Map : budget partage entre les threads (borne de Hadoop : 2047 Mo)
+        long sortMb = Math.max(16, Math.min(2047, memoryMb / threads));
+        conf.setLong(MRJobConfig.IO_SORT_MB, sortMb);
+
+        // Entrees : fichiers, dossiers ou globs ("part_*"), comme pour FileInputFormat
+        long inputBytes = 0;
+        for (Path input : inputs) {
+            FileSystem fs = input.getFileSystem(conf);
+            FileStatus[] matches = fs.globStatus(input);
+            if (matches == null) {
+                continue;
+            }
+            for (FileStatus match : matches) {
+                inputBytes += fs.getContentSummary(match.getPath()).getLength();
+            }
+        }
+        int splits = threads * conf.getInt(SPLITS_PER_THREAD_KEY, 2);
+        long splitBytes = Math.max(MIN_SPLIT_BYTES, (inputBytes + splits - 1) / splits);
+        conf.setLong(FileInputFormat.SPLIT_MAXSIZE, splitBytes);
+
+        return threads + " threads, tampon de tri " + sortMb + " Mo par tache, splits de " + (splitBytes >> 10) + " Ko";
+    }
+
+    // Vrai si la cle a une valeur autre que celle de mapred-default.xml (-D, fichier du site, code)
+    private static boolean isSet(Configuration conf, String key) {
+        String[] sources = conf.getPropertySources(key);
+        return conf.get(key) != null && !(sources != null && sources.length == 1 && "mapred-default.xml".equals(sources[0]));
+    }
+}
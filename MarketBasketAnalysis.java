@@ -1,55 +1,615 @@
+import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class MarketBasketAnalysis {
 
+    // Support minimal (nombre de transactions) d'un article ou d'une paire.
+    // 1 = comportement historique : toutes les paires, un seul job.
+    public static final String MIN_SUPPORT_KEY = "mba.minSupport";
+
+    // Pattern de generation : "pairs" (historique), "stripes", "encoded" (paires dont la
+    // cle binaire contient les identifiants entiers des articles), "fpgrowth" (itemsets
+    // frequents de toute taille, FP-Growth parallele) ou "stream" (paires par fenetre de
+    // temps sur un journal suivi en continu, sans job MapReduce)
+    public static final String MODE_KEY = "mba.mode";
+
+    // Mode fpgrowth : nombre de groupes d'articles (un FP-tree par groupe, defaut : 16),
+    // taille maximale des itemsets (defaut : 0 = sans limite) et nombre d'itemsets gardes
+    // par article par le job d'agregation (defaut : 0 = pas d'agregation)
+    public static final String GROUPS_KEY = "mba.fpgrowth.groups";
+    public static final String MAX_ITEMSET_KEY = "mba.fpgrowth.maxLength";
+    public static final String PER_ITEM_KEY = "mba.fpgrowth.perItem";
+
+    // Mode stream (journal de transactions suivi en continu) : duree de la fenetre et pas de
+    // glissement en secondes (defaut : 60, pas = fenetre, soit des fenetres fixes), nombre de
+    // paires par instantane, dimensions des sketches count-min, heavy hitters suivis par
+    // tranche, intervalle de scrutation du journal (ms) et suivi (false = arret en fin de fichier)
+    public static final String STREAM_WINDOW_KEY = "mba.stream.windowSeconds";
+    public static final String STREAM_SLIDE_KEY = "mba.stream.slideSeconds";
+    public static final String STREAM_TOP_KEY = "mba.stream.top";
+    public static final String STREAM_SKETCH_DEPTH_KEY = "mba.stream.sketchDepth";
+    public static final String STREAM_SKETCH_WIDTH_KEY = "mba.stream.sketchWidth";
+    public static final String STREAM_CANDIDATES_KEY = "mba.stream.candidates";
+    public static final String STREAM_POLL_KEY = "mba.stream.pollMillis";
+    public static final String STREAM_FOLLOW_KEY = "mba.stream.follow";
+
+    // Mode stripes : taille memoire estimee (octets) au-dela de laquelle le Mapper vide ses stripes
+    public static final String STRIPES_FLUSH_BYTES_KEY = "mba.stripes.flushBytes";
+
+    // Contenu de la sortie : "ids" (historique, liste des TransIDs), "metrics"
+    // (support, confiance, lift uniquement) ou "all" (TransIDs puis metriques)
+    public static final String OUTPUT_KEY = "mba.output";
+
+    // Nombre total de transactions, renseigne par le driver a partir du compteur de la phase 1
+    public static final String TRANSACTIONS_KEY = "mba.transactions";
+
+    // Partitionnement par echantillonnage (SkewPartitioning) : les paires (ou articles en
+    // mode stripes) les plus frequentes sont reparties sur plusieurs Reducers puis fusionnees
+    public static final String SKEW_KEY = "mba.skew";
+
+    // Jobs dans le processus du driver sur fichiers locaux, LocalJobRunner multithread
+    // (profil LocalRunnerProfile), defaut : false
+    public static final String EMBEDDED_KEY = "mba.embedded";
+
+    // Prefixe des liens symboliques du DistributedCache pour les articles frequents
+    private static final String FREQUENT_ITEMS_LINK = "frequent_items_";
+
+    // Compteurs metier, repris dans le rapport d'execution (RunReport)
+    public enum BasketCounters {
+        TRANSACTIONS,        // transactions lues par la phase 1
+        MALFORMED_LINES,     // lignes sans "=>" (ou vides), ignorees
+        ITEMS_PRUNED,        // articles non frequents retires avant la generation des paires
+        ITEMS_BELOW_SUPPORT, // articles ecartes par la phase 1
+        PAIRS_EMITTED,       // paires (ou cellules de stripe) generees par les Mappers
+        PAIRS_WRITTEN,       // paires ecrites en sortie
+        PAIRS_BELOW_SUPPORT, // paires ecartees par le seuil de support
+        SPREAD_PARTIALS,     // ensembles partiels de cles reparties (SkewPartitioning)
+        GROUP_TRANSACTIONS,  // prefixes de transactions envoyes aux groupes FP-Growth
+        ITEMSETS_WRITTEN     // itemsets frequents (2 articles ou plus) ecrits par FP-Growth
+    }
+
+    // Format attendu : ID => Item1, Item2, Item3...
+    // Retourne null si la ligne est mal formee ou vide.
+    static String parseTransactionId(String line) {
+        int sep = line.indexOf("=>");
+        if (sep < 0) {
+            return null;
+        }
+        return line.substring(0, sep).trim();
+    }
+
+    // Articles (non vides, tries) de la transaction, liste vide si ligne mal formee.
+    static List<String> parseItems(String line) {
+        List<String> items = new ArrayList<>();
+        int sep = line.indexOf("=>");
+        if (sep < 0) {
+            return items;
+        }
+
+        String[] tokens = line.substring(sep + 2).split(",");
+        for (String token : tokens) {
+            String item = token.trim();
+            if (!item.isEmpty()) {
+                items.add(item);
+            }
+        }
+
+        Collections.sort(items); // Tri initial (optionnel mais propre)
+        return items;
+    }
+
+    // Articles frequents diffuses par la phase 1 (null = pas d'elagage)
+    static Set<String> loadFrequentItems(Configuration conf, URI[] cacheFiles) throws IOException {
+        if (conf.getInt(MIN_SUPPORT_KEY, 1) <= 1) {
+            return null;
+        }
+        Map<String, Integer> supports = loadItemSupports(cacheFiles);
+        return supports == null ? null : new HashSet<>(supports.keySet());
+    }
+
+    // Dictionnaire des articles de la phase 1, trie : l'identifiant d'un article est son
+    // indice, donc l'ordre des identifiants est l'ordre alphabetique des noms.
+    // Retourne null si aucun fichier de la phase 1 n'est dans le cache.
+    static String[] loadItemDictionary(URI[] cacheFiles) throws IOException {
+        Map<String, Integer> supports = loadItemSupports(cacheFiles);
+        return supports == null ? null : supports.keySet().toArray(new String[0]);
+    }
+
+    // Support (nombre de transactions) de chaque article de la phase 1, trie par nom.
+    // Retourne null si aucun fichier de la phase 1 n'est dans le cache.
+    static Map<String, Integer> loadItemSupports(URI[] cacheFiles) throws IOException {
+        if (cacheFiles == null) {
+            return null;
+        }
+
+        Map<String, Integer> supports = new TreeMap<>();
+        boolean found = false;
+        for (URI uri : cacheFiles) {
+            String link = uri.getFragment();
+            if (link == null || !link.startsWith(FREQUENT_ITEMS_LINK)) {
+                continue;
+            }
+            found = true;
+            try (BufferedReader reader = new BufferedReader(new FileReader(link))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] parts = line.split("\t");
+                    supports.put(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 0);
+                }
+            }
+        }
+        return found ? supports : null;
+    }
+
+    // ==========================================
+    // ENSEMBLES COMPACTS DE TRANSACTIONS
+    // ==========================================
+
+    // Ensemble trie de TransIDs. Les IDs de la forme <prefixe><nombre> (ex : T07) sont
+    // stockes comme des entiers et serialises en deltas VLong ; le prefixe et la largeur
+    // de bourrage par zeros ne sont ecrits qu'une fois. Si les IDs ne suivent pas ce
+    // schema commun, l'ensemble bascule sur une liste triee de chaines.
+    // Sert de valeur de Mapper, de Combiner et de Reducer (fusion par merge()).
+    public static class TransactionSetWritable implements Writable {
+
+        // Representation numerique
+        private String prefix;
+        private int width;          // largeur exacte des IDs bourres de zeros (0 = aucun)
+        private int minNatural;     // plus petite longueur de nombre non bourre
+        private long[] ids = new long[4];
+        private int size;
+        private boolean sorted = true;
+
+        // Representation texte (non null = IDs non numeriques ou heterogenes)
+        private List<String> rawIds;
+
+        public TransactionSetWritable() {
+            clear();
+        }
+
+        public void clear() {
+            prefix = null;
+            width = 0;
+            minNatural = Integer.MAX_VALUE;
+            size = 0;
+            sorted = true;
+            rawIds = null;
+        }
+
+        public void set(String transId) {
+            clear();
+            add(transId);
+        }
+
+        public void add(String transId) {
+            if (rawIds != null) {
+                rawIds.add(transId);
+                return;
+            }
+
+            int digits = transId.length();
+            while (digits > 0 && Character.isDigit(transId.charAt(digits - 1))) {
+                digits--;
+            }
+            int len = transId.length() - digits;
+            String idPrefix = transId.substring(0, digits);
+            if (len == 0 || len > 18 || (prefix != null && !prefix.equals(idPrefix))) {
+                toRaw();
+                rawIds.add(transId);
+                return;
+            }
+
+            boolean padded = len > 1 && transId.charAt(digits) == '0';
+            int newWidth = padded ? len : 0;
+            int newMinNatural = padded ? Integer.MAX_VALUE : len;
+            if (!compatible(newWidth, newMinNatural)) {
+                toRaw();
+                rawIds.add(transId);
+                return;
+            }
+
+            prefix = idPrefix;
+            width = Math.max(width, newWidth);
+            minNatural = Math.min(minNatural, newMinNatural);
+            append(Long.parseLong(transId.substring(digits)));
+        }
+
+        // Fusion (union) avec un autre ensemble
+        public void merge(TransactionSetWritable other) {
+            if (other.rawIds == null && other.size == 0) {
+                return;
+            }
+            if (rawIds == null && size == 0 && other.rawIds == null) {
+                prefix = other.prefix;
+                width = other.width;
+                minNatural = other.minNatural;
+            } else if (rawIds == null && other.rawIds == null && prefix.equals(other.prefix)
+                    && compatible(other.width, other.minNatural)) {
+                width = Math.max(width, other.width);
+                minNatural = Math.min(minNatural, other.minNatural);
+            } else {
+                toRaw();
+                rawIds.addAll(other.toList());
+                return;
+            }
+            for (int i = 0; i < other.size; i++) {
+                append(other.ids[i]);
+            }
+        }
+
+        // Nombre de transactions distinctes
+        public int size() {
+            compact();
+            return rawIds != null ? rawIds.size() : size;
+        }
+
+        public List<String> toList() {
+            compact();
+            if (rawIds != null) {
+                return new ArrayList<>(rawIds);
+            }
+            List<String> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(format(ids[i]));
+            }
+            return list;
+        }
+
+        @Override
+        public String toString() {
+            return String.join(",", toList());
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            compact();
+            out.writeBoolean(rawIds != null);
+            if (rawIds != null) {
+                WritableUtils.writeVInt(out, rawIds.size());
+                for (String id : rawIds) {
+                    Text.writeString(out, id);
+                }
+                return;
+            }
+            WritableUtils.writeVInt(out, size);
+            if (size == 0) {
+                return;
+            }
+            Text.writeString(out, prefix);
+            WritableUtils.writeVInt(out, width);
+            WritableUtils.writeVInt(out, minNatural);
+            long previous = 0;
+            for (int i = 0; i < size; i++) {
+                WritableUtils.writeVLong(out, ids[i] - previous);
+                previous = ids[i];
+            }
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            clear();
+            int count;
+            if (in.readBoolean()) {
+                count = WritableUtils.readVInt(in);
+                rawIds = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    rawIds.add(Text.readString(in));
+                }
+                return;
+            }
+            count = WritableUtils.readVInt(in);
+            if (count == 0) {
+                return;
+            }
+            prefix = Text.readString(in);
+            width = WritableUtils.readVInt(in);
+            minNatural = WritableUtils.readVInt(in);
+            if (ids.length < count) {
+                ids = new long[count];
+            }
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                previous += WritableUtils.readVLong(in);
+                ids[i] = previous;
+            }
+            size = count;
+        }
+
+        // Un nombre bourre de zeros impose sa largeur exacte ; un nombre non bourre plus
+        // court que cette largeur serait relu avec des zeros en trop.
+        private boolean compatible(int otherWidth, int otherMinNatural) {
+            if (width != 0 && otherWidth != 0 && width != otherWidth) {
+                return false;
+            }
+            int w = Math.max(width, otherWidth);
+            return w == 0 || w <= Math.min(minNatural, otherMinNatural);
+        }
+
+        private void append(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            if (size > 0 && id <= ids[size - 1]) {
+                sorted = false;
+            }
+            ids[size++] = id;
+        }
+
+        // Tri et suppression des doublons
+        private void compact() {
+            if (rawIds != null) {
+                Collections.sort(rawIds);
+                int n = 0;
+                for (int i = 0; i < rawIds.size(); i++) {
+                    if (n == 0 || !rawIds.get(i).equals(rawIds.get(n - 1))) {
+                        rawIds.set(n++, rawIds.get(i));
+                    }
+                }
+                rawIds.subList(n, rawIds.size()).clear();
+                return;
+            }
+            if (sorted) {
+                return;
+            }
+            Arrays.sort(ids, 0, size);
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                if (n == 0 || ids[i] != ids[n - 1]) {
+                    ids[n++] = ids[i];
+                }
+            }
+            size = n;
+            sorted = true;
+        }
+
+        private void toRaw() {
+            if (rawIds != null) {
+                return;
+            }
+            List<String> list = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(format(ids[i]));
+            }
+            rawIds = list;
+            size = 0;
+        }
+
+        private String format(long id) {
+            String digits = Long.toString(id);
+            StringBuilder sb = new StringBuilder(prefix);
+            for (int i = digits.length(); i < width; i++) {
+                sb.append('0');
+            }
+            return sb.append(digits).toString();
+        }
+    }
+
+    // Combiner : union des ensembles de TransIDs d'une meme cle (Text ou ItemPairWritable)
+    public static class TransactionSetCombiner<K> extends Reducer<K, TransactionSetWritable, K, TransactionSetWritable> {
+
+        private TransactionSetWritable merged = new TransactionSetWritable();
+
+        @Override
+        public void reduce(K key, Iterable<TransactionSetWritable> values, Context context) throws IOException, InterruptedException {
+            merged.clear();
+            for (TransactionSetWritable val : values) {
+                merged.merge(val);
+            }
+            context.write(key, merged);
+        }
+    }
+
+    // Ecriture d'une paire par les Reducers : filtre de support, puis TransIDs et/ou
+    // metriques d'association calculees a partir de la cardinalite des ensembles.
+    static class PairFormatter {
+
+        private final int minSupport;
+        private final boolean withIds;
+        private final boolean withMetrics;
+        private final long transactions;
+        private final Map<String, Integer> itemSupports;
+        private final StringBuilder sb = new StringBuilder();
+
+        PairFormatter(Configuration conf, URI[] cacheFiles) throws IOException {
+            minSupport = conf.getInt(MIN_SUPPORT_KEY, 1);
+            String output = conf.get(OUTPUT_KEY, "ids");
+            withIds = !"metrics".equals(output);
+            withMetrics = !"ids".equals(output);
+            transactions = conf.getLong(TRANSACTIONS_KEY, 0);
+            itemSupports = withMetrics ? loadItemSupports(cacheFiles) : null;
+            if (withMetrics && (itemSupports == null || transactions <= 0)) {
+                throw new IOException("Metriques demandees sans les supports de la phase 1");
+            }
+        }
+
+        // Retourne null si la paire est sous le seuil de support
+        String format(String itemA, String itemB, TransactionSetWritable transIds) {
+            int support = transIds.size();
+            if (support < minSupport) {
+                return null;
+            }
+
+            sb.setLength(0);
+            if (withIds) {
+                sb.append(transIds.toString());
+            }
+            if (withMetrics) {
+                int supportA = itemSupports.getOrDefault(itemA, 0);
+                int supportB = itemSupports.getOrDefault(itemB, 0);
+                if (withIds) {
+                    sb.append('\t');
+                }
+                // support = |T_AB| / N ; conf(A=>B) = |T_AB| / |T_A| ; lift = |T_AB| * N / (|T_A| * |T_B|)
+                sb.append(String.format(Locale.ROOT, "support=%.4f conf(A=>B)=%.4f conf(B=>A)=%.4f lift=%.4f",
+                        (double) support / transactions,
+                        supportA > 0 ? (double) support / supportA : 0.0,
+                        supportB > 0 ? (double) support / supportB : 0.0,
+                        supportA > 0 && supportB > 0 ? (double) support * transactions / ((double) supportA * supportB) : 0.0));
+            }
+            return sb.toString();
+        }
+    }
+
+    // ==========================================
+    // PHASE 1 (Apriori) : SUPPORT DES ARTICLES
+    // ==========================================
+
     // Mapper: LongWritable (Offset) -> Text (Transaction Line)
-    // Output: Text (Pair "ItemA,ItemB"), Text (TransactionID)
-    public static class PairsMapper extends Mapper<LongWritable, Text, Text, Text> {
+    // Output: Text (Item), IntWritable (1 par transaction contenant l'article)
+    public static class ItemCountMapper extends RunReport.TimedMapper<LongWritable, Text, Text, IntWritable> {
 
-        private Text pairKey = new Text();
-        private Text transIdValue = new Text();
+        private static final IntWritable ONE = new IntWritable(1);
+        private Text itemKey = new Text();
 
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
             String line = value.toString();
-            // Supposons que le format est : TransID,Item1,Item2,Item3...
-            // Ou TransID<TAB>Item1,Item2... ou autre delimiteur.
-            // Base sur les standards courants, on split souvent par virgule ou espace.
-            // Adaptons pour un format CSV classique : ID,Item1,Item2,...
-
-            // Format attendu : ID => Item1, Item2, Item3...
-            String[] parts = line.split("=>");
-            if (parts.length < 2) {
+            if (parseTransactionId(line) == null) {
+                context.getCounter(BasketCounters.MALFORMED_LINES).increment(1);
                 return; // Ligne mal formee ou vide
             }
+            context.getCounter(BasketCounters.TRANSACTIONS).increment(1);
 
-            String transId = parts[0].trim();
-            String itemsPart = parts[1];
+            // Liste triee : on saute les doublons pour compter une seule fois par transaction
+            String previous = null;
+            for (String item : parseItems(line)) {
+                if (!item.equals(previous)) {
+                    itemKey.set(item);
+                    context.write(itemKey, ONE);
+                }
+                previous = item;
+            }
+        }
+    }
 
-            String[] tokens = itemsPart.split(",");
-            List<String> items = new ArrayList<>();
+    // Combiner : somme partielle (pas de filtrage, le support n'est connu qu'au Reducer)
+    public static class ItemCountCombiner extends Reducer<Text, IntWritable, Text, IntWritable> {
 
-            for (String token : tokens) {
-                String item = token.trim();
-                if (!item.isEmpty()) {
-                    items.add(item);
-                }
+        private IntWritable sum = new IntWritable();
+
+        @Override
+        public void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            int total = 0;
+            for (IntWritable val : values) {
+                total += val.get();
+            }
+            sum.set(total);
+            context.write(key, sum);
+        }
+    }
+
+    // Reducer : ne garde que les articles dont le support atteint minSupport
+    public static class ItemCountReducer extends RunReport.TimedReducer<Text, IntWritable, Text, IntWritable> {
+
+        private int minSupport;
+        private IntWritable sum = new IntWritable();
+
+        @Override
+        protected void setup(Context context) {
+            minSupport = context.getConfiguration().getInt(MIN_SUPPORT_KEY, 1);
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<IntWritable> values, Context context) throws IOException, InterruptedException {
+            int total = 0;
+            for (IntWritable val : values) {
+                total += val.get();
+            }
+            if (total >= minSupport) {
+                sum.set(total);
+                context.write(key, sum);
+            } else {
+                context.getCounter(BasketCounters.ITEMS_BELOW_SUPPORT).increment(1);
+            }
+        }
+    }
+
+    // ==========================================
+    // PHASE 2 : GENERATION DES PAIRES
+    // ==========================================
+
+    // Mapper: LongWritable (Offset) -> Text (Transaction Line)
+    // Output: Text (Pair "ItemA,ItemB"), TransactionSetWritable (TransactionID)
+    public static class PairsMapper extends RunReport.TimedMapper<LongWritable, Text, Text, TransactionSetWritable> {
+
+        private Text pairKey = new Text();
+        private TransactionSetWritable transIdValue = new TransactionSetWritable();
+
+        // Articles frequents issus de la phase 1 (null = pas d'elagage)
+        private Set<String> frequentItems;
+        private Counter malformed;
+        private Counter pruned;
+        private Counter emitted;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            frequentItems = loadFrequentItems(context.getConfiguration(), context.getCacheFiles());
+            malformed = context.getCounter(BasketCounters.MALFORMED_LINES);
+            pruned = context.getCounter(BasketCounters.ITEMS_PRUNED);
+            emitted = context.getCounter(BasketCounters.PAIRS_EMITTED);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String line = value.toString();
+            String transId = parseTransactionId(line);
+            if (transId == null) {
+                malformed.increment(1);
+                return; // Ligne mal formee ou vide
+            }
+
+            List<String> items = parseItems(line);
+
+            // Elagage Apriori : une paire frequente ne contient que des articles frequents
+            if (frequentItems != null) {
+                int before = items.size();
+                items.removeIf(item -> !frequentItems.contains(item));
+                pruned.increment(before - items.size());
             }
 
-            Collections.sort(items); // Tri initial (optionnel mais propre)
+            transIdValue.set(transId);
+            emitted.increment((long) items.size() * (items.size() - 1) / 2);
 
             // Generation de toutes les paires (Pattern 'Pairs')
             // Double boucle pour (n * (n-1)) / 2 paires
@@ -65,53 +625,1538 @@ public class MarketBasketAnalysis {
                         pairKey.set("[" + itemB + ", " + itemA + "]");
                     }
 
-                    transIdValue.set(transId);
                     context.write(pairKey, transIdValue);
                 }
             }
         }
     }
 
-    // Reducer: Text (Pair), Iterable<Text> (TransIDs)
-    // Output: Text (Pair), Text (List of TransIDs)
-    public static class PairsReducer extends Reducer<Text, Text, Text, Text> {
+    // Reducer: Text (Pair), Iterable<TransactionSetWritable> (TransIDs)
+    // Output: Text (Pair), Text (List of TransIDs et/ou metriques)
+    public static class PairsReducer extends RunReport.TimedReducer<Text, TransactionSetWritable, Text, Text> {
+
+        private PairFormatter formatter;
+        private SkewPartitioning.SpreadKeys spreadKeys;
+        private TransactionSetWritable merged = new TransactionSetWritable();
+        private Text result = new Text();
 
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            StringBuilder transList = new StringBuilder();
-            boolean first = true;
+        protected void setup(Context context) throws IOException, InterruptedException {
+            formatter = new PairFormatter(context.getConfiguration(), context.getCacheFiles());
+            spreadKeys = SkewPartitioning.SpreadKeys.open(context);
+        }
 
-            for (Text val : values) {
-                if (!first) {
-                    transList.append(",");
+        @Override
+        public void reduce(Text key, Iterable<TransactionSetWritable> values, Context context) throws IOException, InterruptedException {
+            merged.clear();
+            for (TransactionSetWritable val : values) {
+                merged.merge(val);
+            }
+
+            // Paire repartie sur plusieurs Reducers : ensemble partiel, fusionne plus tard
+            if (spreadKeys != null && spreadKeys.contains(key)) {
+                spreadKeys.write(key, merged);
+                context.getCounter(BasketCounters.SPREAD_PARTIALS).increment(1);
+                return;
+            }
+
+            // Cle "[A, B]" : les noms ne servent qu'aux metriques
+            String pair = key.toString();
+            int sep = pair.indexOf(", ");
+            String line = formatter.format(pair.substring(1, sep), pair.substring(sep + 2, pair.length() - 1), merged);
+
+            // Seuil de support : les paires rares ne sont pas ecrites
+            if (line != null) {
+                result.set(line);
+                context.write(key, result);
+                context.getCounter(BasketCounters.PAIRS_WRITTEN).increment(1);
+            } else {
+                context.getCounter(BasketCounters.PAIRS_BELOW_SUPPORT).increment(1);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (spreadKeys != null) {
+                spreadKeys.close();
+            }
+        }
+    }
+
+    // ==========================================
+    // PHASE 2 (variante) : PATTERN 'STRIPES'
+    // ==========================================
+
+    // Stripe d'un article A : {B -> TransIDs des transactions contenant A et B}
+    // Serialisation compacte : nb de cellules, puis pour chaque B son nom et ses TransIDs.
+    // Les ensembles des cellules videes par clear() sont gardes et reutilises : une stripe
+    // reutilisee (Combiner, Reducer, readFields) n'alloue plus d'ensemble une fois rodee.
+    public static class StripeWritable implements Writable {
+
+        private Map<String, TransactionSetWritable> cells = new HashMap<>();
+        private List<TransactionSetWritable> spare = new ArrayList<>();
+
+        // Ajoute une co-occurrence, retourne le cout memoire approximatif (octets)
+        public int add(String item, String transId) {
+            int cost = 16;
+            TransactionSetWritable ids = cells.get(item);
+            if (ids == null) {
+                ids = cell(item);
+                cost += 2 * item.length() + 160;
+            }
+            ids.add(transId);
+            return cost;
+        }
+
+        // Fusion element par element
+        public void merge(StripeWritable other) {
+            for (Map.Entry<String, TransactionSetWritable> entry : other.cells.entrySet()) {
+                TransactionSetWritable ids = cells.get(entry.getKey());
+                if (ids == null) {
+                    ids = cell(entry.getKey());
+                }
+                ids.merge(entry.getValue());
+            }
+        }
+
+        public Map<String, TransactionSetWritable> getCells() {
+            return cells;
+        }
+
+        public void clear() {
+            for (TransactionSetWritable ids : cells.values()) {
+                ids.clear();
+                spare.add(ids);
+            }
+            cells.clear();
+        }
+
+        // Cellule vide pour item, prise parmi les ensembles liberes si possible
+        private TransactionSetWritable cell(String item) {
+            TransactionSetWritable ids = spare.isEmpty() ? new TransactionSetWritable() : spare.remove(spare.size() - 1);
+            cells.put(item, ids);
+            return ids;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, cells.size());
+            for (Map.Entry<String, TransactionSetWritable> entry : cells.entrySet()) {
+                Text.writeString(out, entry.getKey());
+                entry.getValue().write(out);
+            }
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            clear();
+            int size = WritableUtils.readVInt(in);
+            for (int i = 0; i < size; i++) {
+                cell(Text.readString(in)).readFields(in);
+            }
+        }
+    }
+
+    // Mapper: LongWritable (Offset) -> Text (Transaction Line)
+    // Output: Text (ItemA), StripeWritable ({ItemB -> TransIDs})
+    // In-mapper combining : les stripes sont agregees sur tout le split et videes
+    // en fin de tache ou des que la memoire estimee depasse le seuil.
+    public static class StripesMapper extends RunReport.TimedMapper<LongWritable, Text, Text, StripeWritable> {
+
+        private Map<String, StripeWritable> stripes = new HashMap<>();
+        private Set<String> frequentItems;
+        private long flushBytes;
+        private long bufferedBytes;
+        private Text itemKey = new Text();
+        private Counter malformed;
+        private Counter pruned;
+        private Counter emitted;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            Configuration conf = context.getConfiguration();
+            frequentItems = loadFrequentItems(conf, context.getCacheFiles());
+            flushBytes = conf.getLong(STRIPES_FLUSH_BYTES_KEY, 32L * 1024 * 1024);
+            malformed = context.getCounter(BasketCounters.MALFORMED_LINES);
+            pruned = context.getCounter(BasketCounters.ITEMS_PRUNED);
+            emitted = context.getCounter(BasketCounters.PAIRS_EMITTED);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String line = value.toString();
+            String transId = parseTransactionId(line);
+            if (transId == null) {
+                malformed.increment(1);
+                return; // Ligne mal formee ou vide
+            }
+
+            List<String> items = parseItems(line);
+            if (frequentItems != null) {
+                int before = items.size();
+                items.removeIf(item -> !frequentItems.contains(item));
+                pruned.increment(before - items.size());
+            }
+            emitted.increment((long) items.size() * (items.size() - 1) / 2);
+
+            // Liste triee : la stripe de A ne contient que les B > A (meme normalisation que 'Pairs')
+            for (int i = 0; i < items.size() - 1; i++) {
+                String itemA = items.get(i);
+                StripeWritable stripe = stripes.get(itemA);
+                if (stripe == null) {
+                    stripe = new StripeWritable();
+                    stripes.put(itemA, stripe);
+                    bufferedBytes += 2 * itemA.length() + 80;
                 }
-                transList.append(val.toString());
-                first = false;
+                for (int j = i + 1; j < items.size(); j++) {
+                    bufferedBytes += stripe.add(items.get(j), transId);
+                }
+            }
+
+            if (bufferedBytes >= flushBytes) {
+                flush(context);
             }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+        }
 
-            context.write(key, new Text(transList.toString()));
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<String, StripeWritable> entry : stripes.entrySet()) {
+                itemKey.set(entry.getKey());
+                context.write(itemKey, entry.getValue());
+            }
+            stripes.clear();
+            bufferedBytes = 0;
         }
     }
 
-    public static void main(String[] args) throws Exception {
-        Configuration conf = new Configuration();
-        Job job = Job.getInstance(conf, "Market Basket Analysis - Pairs");
+    // Combiner : fusion des stripes d'un meme article entre flushes / mappers
+    public static class StripesCombiner extends Reducer<Text, StripeWritable, Text, StripeWritable> {
 
-        job.setJarByClass(MarketBasketAnalysis.class);
-        job.setMapperClass(PairsMapper.class);
-        job.setReducerClass(PairsReducer.class);
+        private StripeWritable merged = new StripeWritable();
 
-        job.setOutputKeyClass(Text.class);
-        job.setOutputValueClass(Text.class);
+        @Override
+        public void reduce(Text key, Iterable<StripeWritable> values, Context context) throws IOException, InterruptedException {
+            merged.clear();
+            for (StripeWritable stripe : values) {
+                merged.merge(stripe);
+            }
+            context.write(key, merged);
+        }
+    }
 
-        if (args.length < 2) {
-            System.err.println("Usage: MarketBasketAnalysis <input path> <output path>");
-            System.exit(-1);
+    // Reducer: Text (ItemA), Iterable<StripeWritable>
+    // Output: Text (Pair), Text (List of TransIDs et/ou metriques) -- meme format que PairsReducer
+    public static class StripesReducer extends RunReport.TimedReducer<Text, StripeWritable, Text, Text> {
+
+        private PairFormatter formatter;
+        private SkewPartitioning.SpreadKeys spreadKeys;
+        private StripeWritable merged = new StripeWritable();
+        private String[] items = new String[16];
+        private Text pairKey = new Text();
+        private Text result = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            formatter = new PairFormatter(context.getConfiguration(), context.getCacheFiles());
+            spreadKeys = SkewPartitioning.SpreadKeys.open(context);
         }
 
-        FileInputFormat.addInputPath(job, new Path(args[0]));
-        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+        @Override
+        public void reduce(Text key, Iterable<StripeWritable> values, Context context) throws IOException, InterruptedException {
+            // merge() copie les cellules : Hadoop recycle l'objet StripeWritable de l'iterateur
+            merged.clear();
+            for (StripeWritable stripe : values) {
+                merged.merge(stripe);
+            }
+
+            // Article reparti sur plusieurs Reducers : stripe partielle, fusionnee plus tard
+            if (spreadKeys != null && spreadKeys.contains(key)) {
+                spreadKeys.write(key, merged);
+                context.getCounter(BasketCounters.SPREAD_PARTIALS).increment(1);
+                return;
+            }
+
+            // Paires ecrites dans l'ordre alphabetique de B (tableau de noms reutilise)
+            Map<String, TransactionSetWritable> cells = merged.getCells();
+            int n = cells.size();
+            if (items.length < n) {
+                items = new String[Math.max(n, 2 * items.length)];
+            }
+            int i = 0;
+            for (String item : cells.keySet()) {
+                items[i++] = item;
+            }
+            Arrays.sort(items, 0, n);
+            String itemA = key.toString();
+            for (i = 0; i < n; i++) {
+                String line = formatter.format(itemA, items[i], cells.get(items[i]));
+                if (line == null) {
+                    context.getCounter(BasketCounters.PAIRS_BELOW_SUPPORT).increment(1);
+                    continue;
+                }
+                pairKey.set("[" + itemA + ", " + items[i] + "]");
+                result.set(line);
+                context.write(pairKey, result);
+                context.getCounter(BasketCounters.PAIRS_WRITTEN).increment(1);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (spreadKeys != null) {
+                spreadKeys.close();
+            }
+        }
+    }
+
+    // ==========================================
+    // PHASE 2 (variante) : PAIRES ENCODEES
+    // ==========================================
+
+    // Cle binaire de taille fixe (8 octets) : identifiants des deux articles, itemA < itemB
+    public static class ItemPairWritable implements WritableComparable<ItemPairWritable> {
+
+        private int itemA;
+        private int itemB;
+
+        public void set(int itemA, int itemB) {
+            this.itemA = itemA;
+            this.itemB = itemB;
+        }
+
+        public int getItemA() {
+            return itemA;
+        }
+
+        public int getItemB() {
+            return itemB;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            out.writeInt(itemA);
+            out.writeInt(itemB);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            itemA = in.readInt();
+            itemB = in.readInt();
+        }
+
+        @Override
+        public int compareTo(ItemPairWritable other) {
+            int cmp = Integer.compare(itemA, other.itemA);
+            return cmp != 0 ? cmp : Integer.compare(itemB, other.itemB);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ItemPairWritable)) {
+                return false;
+            }
+            ItemPairWritable other = (ItemPairWritable) o;
+            return itemA == other.itemA && itemB == other.itemB;
+        }
+
+        // Utilise par le HashPartitioner
+        @Override
+        public int hashCode() {
+            return itemA * 163 + itemB;
+        }
+
+        // Cle du plan de SkewPartitioning : "idA,idB"
+        @Override
+        public String toString() {
+            return itemA + "," + itemB;
+        }
+
+        // Taille maximale de la cle du plan : deux entiers signes et la virgule
+        static final int PLAN_KEY_BYTES = 23;
+
+        // Meme cle que toString(), ecrite dans target depuis la fin de scratch, sans String :
+        // le plan est consulte pour chaque paire emise
+        public void planKey(Text target, byte[] scratch) {
+            int pos = putInt(itemB, scratch, scratch.length);
+            scratch[--pos] = ',';
+            pos = putInt(itemA, scratch, pos);
+            target.set(scratch, pos, scratch.length - pos);
+        }
+
+        private static int putInt(int value, byte[] buf, int pos) {
+            long v = Math.abs((long) value);
+            do {
+                buf[--pos] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v > 0);
+            if (value < 0) {
+                buf[--pos] = '-';
+            }
+            return pos;
+        }
+
+        // Tri du Shuffle directement sur les octets serialises, sans deserialisation
+        public static class Comparator extends WritableComparator {
+
+            public Comparator() {
+                super(ItemPairWritable.class);
+            }
+
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                int cmp = Integer.compare(readInt(b1, s1), readInt(b2, s2));
+                if (cmp != 0) {
+                    return cmp;
+                }
+                return Integer.compare(readInt(b1, s1 + 4), readInt(b2, s2 + 4));
+            }
+        }
+
+        static {
+            WritableComparator.define(ItemPairWritable.class, new Comparator());
+        }
+    }
+
+    // Partitionnement par le plan en mode encoded : cle du plan ecrite sans toString()
+    public static class EncodedPairSkewPartitioner extends SkewPartitioning.SkewPartitioner<ItemPairWritable, TransactionSetWritable> {
+
+        private byte[] scratch = new byte[ItemPairWritable.PLAN_KEY_BYTES];
+
+        @Override
+        protected Text partitionKey(ItemPairWritable key, Text reuse) {
+            key.planKey(reuse, scratch);
+            return reuse;
+        }
+    }
+
+    // Mapper: LongWritable (Offset) -> Text (Transaction Line)
+    // Output: ItemPairWritable (IDs des articles), TransactionSetWritable (TransactionID)
+    public static class EncodedPairsMapper extends RunReport.TimedMapper<LongWritable, Text, ItemPairWritable, TransactionSetWritable> {
+
+        private Map<String, Integer> itemIds = new HashMap<>();
+        private ItemPairWritable pairKey = new ItemPairWritable();
+        private TransactionSetWritable transIdValue = new TransactionSetWritable();
+        // Tampon d'IDs reutilise d'une transaction a l'autre, agrandi si besoin
+        private int[] ids = new int[16];
+        private Counter malformed;
+        private Counter pruned;
+        private Counter emitted;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            String[] dictionary = loadItemDictionary(context.getCacheFiles());
+            if (dictionary == null) {
+                throw new IOException("Dictionnaire des articles absent du DistributedCache");
+            }
+            for (int i = 0; i < dictionary.length; i++) {
+                itemIds.put(dictionary[i], i);
+            }
+            malformed = context.getCounter(BasketCounters.MALFORMED_LINES);
+            pruned = context.getCounter(BasketCounters.ITEMS_PRUNED);
+            emitted = context.getCounter(BasketCounters.PAIRS_EMITTED);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String line = value.toString();
+            String transId = parseTransactionId(line);
+            if (transId == null) {
+                malformed.increment(1);
+                return; // Ligne mal formee ou vide
+            }
+
+            // Articles absents du dictionnaire = articles non frequents, ignores.
+            // Liste triee et IDs attribues dans l'ordre alphabetique : ids deja croissants.
+            List<String> items = parseItems(line);
+            if (ids.length < items.size()) {
+                ids = new int[Math.max(items.size(), ids.length * 2)];
+            }
+            int n = 0;
+            for (String item : items) {
+                Integer id = itemIds.get(item);
+                if (id != null) {
+                    ids[n++] = id;
+                }
+            }
+
+            pruned.increment(items.size() - n);
+            emitted.increment((long) n * (n - 1) / 2);
+
+            transIdValue.set(transId);
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    pairKey.set(ids[i], ids[j]);
+                    context.write(pairKey, transIdValue);
+                }
+            }
+        }
+    }
+
+    // Reducer: ItemPairWritable, Iterable<TransactionSetWritable> (TransIDs)
+    // Output: Text (Pair "[A, B]" decodee), Text (List of TransIDs et/ou metriques)
+    public static class EncodedPairsReducer extends RunReport.TimedReducer<ItemPairWritable, TransactionSetWritable, Text, Text> {
+
+        private String[] dictionary;
+        private PairFormatter formatter;
+        private SkewPartitioning.SpreadKeys spreadKeys;
+        private TransactionSetWritable merged = new TransactionSetWritable();
+        private Text pairKey = new Text();
+        private Text planKey = new Text();
+        private byte[] scratch = new byte[ItemPairWritable.PLAN_KEY_BYTES];
+        private Text result = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            dictionary = loadItemDictionary(context.getCacheFiles());
+            if (dictionary == null) {
+                throw new IOException("Dictionnaire des articles absent du DistributedCache");
+            }
+            formatter = new PairFormatter(context.getConfiguration(), context.getCacheFiles());
+            spreadKeys = SkewPartitioning.SpreadKeys.open(context);
+        }
+
+        @Override
+        public void reduce(ItemPairWritable key, Iterable<TransactionSetWritable> values, Context context) throws IOException, InterruptedException {
+            merged.clear();
+            for (TransactionSetWritable val : values) {
+                merged.merge(val);
+            }
+
+            // Paire repartie sur plusieurs Reducers : ensemble partiel, fusionne plus tard
+            if (spreadKeys != null) {
+                key.planKey(planKey, scratch);
+                if (spreadKeys.contains(planKey)) {
+                    spreadKeys.write(key, merged);
+                    context.getCounter(BasketCounters.SPREAD_PARTIALS).increment(1);
+                    return;
+                }
+            }
+
+            // Decodage des noms uniquement a l'ecriture
+            String itemA = dictionary[key.getItemA()];
+            String itemB = dictionary[key.getItemB()];
+            String line = formatter.format(itemA, itemB, merged);
+            if (line != null) {
+                pairKey.set("[" + itemA + ", " + itemB + "]");
+                result.set(line);
+                context.write(pairKey, result);
+                context.getCounter(BasketCounters.PAIRS_WRITTEN).increment(1);
+            } else {
+                context.getCounter(BasketCounters.PAIRS_BELOW_SUPPORT).increment(1);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (spreadKeys != null) {
+                spreadKeys.close();
+            }
+        }
+    }
+
+    // ==========================================
+    // PHASE 2 (variante) : FP-GROWTH PARALLELE (itemsets de toute taille)
+    // ==========================================
+
+    // Liste F des articles frequents : tries par support decroissant puis par nom, le rang
+    // d'un article est son indice. Les transactions sont reecrites dans cet ordre.
+    static String[] loadFList(URI[] cacheFiles) throws IOException {
+        Map<String, Integer> supports = loadItemSupports(cacheFiles);
+        if (supports == null) {
+            throw new IOException("Articles frequents absents du DistributedCache");
+        }
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(supports.entrySet());
+        // TreeMap : ordre des noms deja acquis, le tri stable ne depend que du support
+        entries.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        String[] fList = new String[entries.size()];
+        for (int i = 0; i < fList.length; i++) {
+            fList[i] = entries.get(i).getKey();
+        }
+        return fList;
+    }
+
+    // Groupe d'un article : rangs distribues en tourniquet, les articles les plus frequents
+    // (arbres les plus gros) tombent dans des groupes differents
+    static int groupOf(int rank, int groups) {
+        return rank % groups;
+    }
+
+    // Transaction reecrite en rangs croissants (articles les plus frequents d'abord),
+    // serialisee en deltas VInt
+    public static class RankedItemsWritable implements Writable {
+
+        private int[] ranks = new int[16];
+        private int size;
+
+        public void set(int[] source, int length) {
+            if (ranks.length < length) {
+                ranks = Arrays.copyOf(source, length);
+            } else {
+                System.arraycopy(source, 0, ranks, 0, length);
+            }
+            size = length;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int rankAt(int i) {
+            return ranks[i];
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, size);
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                WritableUtils.writeVInt(out, ranks[i] - previous);
+                previous = ranks[i];
+            }
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            size = WritableUtils.readVInt(in);
+            if (ranks.length < size) {
+                ranks = new int[size];
+            }
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                previous += WritableUtils.readVInt(in);
+                ranks[i] = previous;
+            }
+        }
+    }
+
+    // Mapper: LongWritable (Offset) -> Text (Transaction Line)
+    // Output: IntWritable (groupe), RankedItemsWritable (prefixe de la transaction)
+    // Pour chaque groupe present dans la transaction, un seul envoi : le prefixe qui
+    // s'arrete au dernier article du groupe, suffisant pour tous les itemsets dont
+    // l'article le moins frequent appartient a ce groupe.
+    public static class FpShardMapper extends RunReport.TimedMapper<LongWritable, Text, IntWritable, RankedItemsWritable> {
+
+        private Map<String, Integer> ranks = new HashMap<>();
+        private int groups;
+        private int[] transaction = new int[16];
+        private boolean[] sent;
+        private IntWritable group = new IntWritable();
+        private RankedItemsWritable prefix = new RankedItemsWritable();
+        private Counter transactions;
+        private Counter shards;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            String[] fList = loadFList(context.getCacheFiles());
+            for (int i = 0; i < fList.length; i++) {
+                ranks.put(fList[i], i);
+            }
+            groups = context.getConfiguration().getInt(GROUPS_KEY, 16);
+            sent = new boolean[groups];
+            transactions = context.getCounter(BasketCounters.TRANSACTIONS);
+            shards = context.getCounter(BasketCounters.GROUP_TRANSACTIONS);
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String line = value.toString();
+            if (parseTransactionId(line) == null) {
+                context.getCounter(BasketCounters.MALFORMED_LINES).increment(1);
+                return;
+            }
+            transactions.increment(1);
+
+            // Articles frequents uniquement, sans doublon, par rang croissant
+            int length = 0;
+            for (String item : parseItems(line)) {
+                Integer rank = ranks.get(item);
+                if (rank == null) {
+                    context.getCounter(BasketCounters.ITEMS_PRUNED).increment(1);
+                    continue;
+                }
+                if (length == transaction.length) {
+                    transaction = Arrays.copyOf(transaction, length * 2);
+                }
+                transaction[length++] = rank;
+            }
+            Arrays.sort(transaction, 0, length);
+            int distinct = 0;
+            for (int i = 0; i < length; i++) {
+                if (distinct == 0 || transaction[distinct - 1] != transaction[i]) {
+                    transaction[distinct++] = transaction[i];
+                }
+            }
+
+            Arrays.fill(sent, false);
+            for (int j = distinct - 1; j >= 0; j--) {
+                int g = groupOf(transaction[j], groups);
+                if (!sent[g]) {
+                    sent[g] = true;
+                    group.set(g);
+                    prefix.set(transaction, j + 1);
+                    context.write(group, prefix);
+                    shards.increment(1);
+                }
+            }
+        }
+    }
+
+    // FP-tree en tableaux paralleles (pas d'objet par noeud). Le noeud 0 est la racine ;
+    // head/support sont indexes par rang et chainent les noeuds d'un meme article.
+    static class FpTree {
+
+        private int[] item = new int[64];
+        private int[] count = new int[64];
+        private int[] parent = new int[64];
+        private int[] firstChild = new int[64];
+        private int[] sibling = new int[64];
+        private int[] next = new int[64];
+        private int nodes = 1;
+        final int[] head;
+        final int[] support;
+
+        FpTree(int items) {
+            head = new int[items];
+            support = new int[items];
+            Arrays.fill(head, -1);
+            item[0] = -1;
+            firstChild[0] = -1;
+        }
+
+        // Chemin de rangs croissants, ajoute avec le poids weight
+        void add(int[] path, int length, int weight) {
+            int node = 0;
+            for (int i = 0; i < length; i++) {
+                int rank = path[i];
+                int child = firstChild[node];
+                while (child >= 0 && item[child] != rank) {
+                    child = sibling[child];
+                }
+                if (child < 0) {
+                    child = newNode(rank, node);
+                }
+                count[child] += weight;
+                support[rank] += weight;
+                node = child;
+            }
+        }
+
+        private int newNode(int rank, int parentNode) {
+            if (nodes == item.length) {
+                int capacity = nodes * 2;
+                item = Arrays.copyOf(item, capacity);
+                count = Arrays.copyOf(count, capacity);
+                parent = Arrays.copyOf(parent, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                sibling = Arrays.copyOf(sibling, capacity);
+                next = Arrays.copyOf(next, capacity);
+            }
+            int node = nodes++;
+            item[node] = rank;
+            count[node] = 0;
+            parent[node] = parentNode;
+            firstChild[node] = -1;
+            sibling[node] = firstChild[parentNode];
+            firstChild[parentNode] = node;
+            next[node] = head[rank];
+            head[rank] = node;
+            return node;
+        }
+
+        // Arbre conditionnel de l'article rank : chemins prefixes de ses noeuds, limites aux
+        // articles qui restent frequents dans cette base
+        FpTree conditional(int rank, int minSupport, int[] path) {
+            int[] baseSupport = new int[rank];
+            for (int node = head[rank]; node >= 0; node = next[node]) {
+                for (int p = parent[node]; p > 0; p = parent[p]) {
+                    baseSupport[item[p]] += count[node];
+                }
+            }
+            FpTree tree = new FpTree(rank);
+            for (int node = head[rank]; node >= 0; node = next[node]) {
+                int length = 0;
+                for (int p = parent[node]; p > 0; p = parent[p]) {
+                    if (baseSupport[item[p]] >= minSupport) {
+                        path[length++] = item[p];
+                    }
+                }
+                // Remontee = rangs decroissants : on inverse le chemin
+                for (int i = 0, j = length - 1; i < j; i++, j--) {
+                    int t = path[i];
+                    path[i] = path[j];
+                    path[j] = t;
+                }
+                if (length > 0) {
+                    tree.add(path, length, count[node]);
+                }
+            }
+            return tree;
+        }
+    }
+
+    // Reducer: IntWritable (groupe), Iterable<RankedItemsWritable> (prefixes)
+    // Output: Text ("[A, B, C]", noms tries), IntWritable (support)
+    // Construit l'FP-tree du groupe puis ne mine que les itemsets dont l'article le moins
+    // frequent appartient au groupe : chaque itemset est produit par un seul groupe.
+    public static class FpGrowthReducer extends RunReport.TimedReducer<IntWritable, RankedItemsWritable, Text, IntWritable> {
+
+        private String[] fList;
+        private int groups;
+        private int minSupport;
+        private int maxLength;
+        private int[] path;
+        private int[] suffix;
+        private Text itemset = new Text();
+        private IntWritable support = new IntWritable();
+        private Counter written;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            fList = loadFList(context.getCacheFiles());
+            Configuration conf = context.getConfiguration();
+            groups = conf.getInt(GROUPS_KEY, 16);
+            minSupport = Math.max(1, conf.getInt(MIN_SUPPORT_KEY, 1));
+            maxLength = conf.getInt(MAX_ITEMSET_KEY, 0);
+            if (maxLength <= 0) {
+                maxLength = Integer.MAX_VALUE;
+            }
+            path = new int[fList.length];
+            suffix = new int[fList.length];
+            written = context.getCounter(BasketCounters.ITEMSETS_WRITTEN);
+        }
+
+        @Override
+        public void reduce(IntWritable key, Iterable<RankedItemsWritable> values, Context context) throws IOException, InterruptedException {
+            FpTree tree = new FpTree(fList.length);
+            for (RankedItemsWritable transaction : values) {
+                for (int i = 0; i < transaction.size(); i++) {
+                    path[i] = transaction.rankAt(i);
+                }
+                tree.add(path, transaction.size(), 1);
+            }
+            for (int rank = key.get(); rank < fList.length; rank += groups) {
+                if (tree.support[rank] >= minSupport) {
+                    mine(tree, rank, 0, context);
+                }
+            }
+        }
+
+        // Itemsets de suffixe {rank} U suffix[0..depth) : celui-ci, puis ceux de l'arbre conditionnel
+        private void mine(FpTree tree, int rank, int depth, Context context) throws IOException, InterruptedException {
+            suffix[depth] = rank;
+            if (depth > 0) {
+                write(depth + 1, tree.support[rank], context);
+            }
+            if (depth + 1 >= maxLength) {
+                return;
+            }
+            FpTree conditional = tree.conditional(rank, minSupport, path);
+            for (int r = rank - 1; r >= 0; r--) {
+                if (conditional.support[r] >= minSupport) {
+                    mine(conditional, r, depth + 1, context);
+                }
+            }
+        }
+
+        // Les articles seuls sont deja dans la sortie de la phase 1 : longueur >= 2 ici
+        private void write(int length, int count, Context context) throws IOException, InterruptedException {
+            String[] names = new String[length];
+            for (int i = 0; i < length; i++) {
+                names[i] = fList[suffix[i]];
+            }
+            Arrays.sort(names);
+            itemset.set("[" + String.join(", ", names) + "]");
+            support.set(count);
+            context.write(itemset, support);
+            written.increment(1);
+        }
+    }
+
+    // Agregation : pour chaque article, les K itemsets les plus frequents qui le contiennent
+    // Input: sortie du Reducer FP-Growth ("[A, B, C] \t support")
+    public static class ItemsetsByItemMapper extends RunReport.TimedMapper<LongWritable, Text, Text, Text> {
+
+        private Text item = new Text();
+        private Text entry = new Text();
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            String line = value.toString();
+            int tab = line.indexOf('\t');
+            if (tab < 0 || !line.startsWith("[") || line.charAt(tab - 1) != ']') {
+                context.getCounter(BasketCounters.MALFORMED_LINES).increment(1);
+                return;
+            }
+            entry.set(line.substring(0, tab) + ":" + line.substring(tab + 1));
+            for (String name : line.substring(1, tab - 1).split(", ")) {
+                item.set(name);
+                context.write(item, entry);
+            }
+        }
+    }
+
+    // Output: Text (article), Text ("[A, B]:support [A, B, C]:support ..." par support decroissant)
+    public static class ItemsetsByItemReducer extends RunReport.TimedReducer<Text, Text, Text, Text> {
+
+        // Le plus faible d'abord : support le plus bas, puis itemset le plus loin dans l'ordre des noms
+        private static final Comparator<Map.Entry<String, Integer>> WEAKEST_FIRST = (a, b) -> {
+            int cmp = Integer.compare(a.getValue(), b.getValue());
+            return cmp != 0 ? cmp : b.getKey().compareTo(a.getKey());
+        };
+
+        private int k;
+        private Text result = new Text();
+
+        @Override
+        protected void setup(Context context) {
+            k = context.getConfiguration().getInt(PER_ITEM_KEY, 0);
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            PriorityQueue<Map.Entry<String, Integer>> top = new PriorityQueue<>(k + 1, WEAKEST_FIRST);
+            for (Text val : values) {
+                String entry = val.toString();
+                int sep = entry.lastIndexOf(':');
+                top.add(new AbstractMap.SimpleEntry<>(entry.substring(0, sep), Integer.parseInt(entry.substring(sep + 1))));
+                if (top.size() > k) {
+                    top.poll();
+                }
+            }
+            List<Map.Entry<String, Integer>> best = new ArrayList<>(top);
+            best.sort(WEAKEST_FIRST.reversed());
+            StringBuilder line = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : best) {
+                if (line.length() > 0) {
+                    line.append(' ');
+                }
+                line.append(entry.getKey()).append(':').append(entry.getValue());
+            }
+            result.set(line.toString());
+            context.write(key, result);
+        }
+    }
+
+    // FP-Growth apres la phase 1 : partage des transactions par groupe et minage local,
+    // puis agregation par article si PER_ITEM_KEY > 0. Retourne false en cas d'echec.
+    private static boolean runFpGrowth(Configuration conf, Path input, Path output, Path itemsPath, RunReport report) throws Exception {
+        Job job = Job.getInstance(conf, "Market Basket Analysis - fpgrowth");
+
+        job.setJarByClass(MarketBasketAnalysis.class);
+        job.setMapperClass(FpShardMapper.class);
+        job.setReducerClass(FpGrowthReducer.class);
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(RankedItemsWritable.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(IntWritable.class);
+        addFrequentItemsCache(job, itemsPath);
+
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+        if (!report.run(job)) {
+            return false;
+        }
+        if (conf.getInt(PER_ITEM_KEY, 0) <= 0) {
+            return true;
+        }
+
+        Job aggregation = Job.getInstance(conf, "Market Basket Analysis - itemsets per item");
+        aggregation.setJarByClass(MarketBasketAnalysis.class);
+        aggregation.setMapperClass(ItemsetsByItemMapper.class);
+        aggregation.setReducerClass(ItemsetsByItemReducer.class);
+        aggregation.setOutputKeyClass(Text.class);
+        aggregation.setOutputValueClass(Text.class);
+        FileInputFormat.addInputPath(aggregation, output);
+        FileOutputFormat.setOutputPath(aggregation, new Path(output + "_per_item"));
+        return report.run(aggregation);
+    }
+
+    // Job de phase 1 : articles frequents ecrits dans itemsPath.
+    // Retourne le nombre de transactions lues, ou -1 en cas d'echec.
+    private static long runItemCountJob(Configuration conf, Path input, Path itemsPath, RunReport report) throws Exception {
+        Job job = Job.getInstance(conf, "Market Basket Analysis - Frequent Items");
+
+        job.setJarByClass(MarketBasketAnalysis.class);
+        job.setMapperClass(ItemCountMapper.class);
+        job.setCombinerClass(ItemCountCombiner.class);
+        job.setReducerClass(ItemCountReducer.class);
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(IntWritable.class);
+
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, itemsPath);
+
+        if (!report.run(job)) {
+            return -1;
+        }
+        return job.getCounters().findCounter(BasketCounters.TRANSACTIONS).getValue();
+    }
+
+    // Diffuse toutes les sorties part-r-* de la phase 1 via le DistributedCache
+    private static void addFrequentItemsCache(Job job, Path itemsPath) throws Exception {
+        FileSystem fs = itemsPath.getFileSystem(job.getConfiguration());
+        FileStatus[] parts = fs.globStatus(new Path(itemsPath, "part-r-*"));
+        for (int i = 0; i < parts.length; i++) {
+            URI uri = fs.makeQualified(parts[i].getPath()).toUri();
+            job.addCacheFile(new URI(uri.toString() + "#" + FREQUENT_ITEMS_LINK + i));
+        }
+    }
+
+    // Articles de la phase 1 lus depuis HDFS par le driver, tries (meme ordre que le dictionnaire)
+    private static String[] readFrequentItems(Configuration conf, Path itemsPath) throws IOException {
+        FileSystem fs = itemsPath.getFileSystem(conf);
+        TreeSet<String> items = new TreeSet<>();
+        for (FileStatus part : fs.globStatus(new Path(itemsPath, "part-r-*"))) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(part.getPath()), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    items.add(line.split("\t")[0]);
+                }
+            }
+        }
+        return items.toArray(new String[0]);
+    }
+
+    // Cles de partitionnement d'une transaction pour l'echantillonnage de SkewPartitioning,
+    // sous la forme emise par le Mapper du mode : "[A, B]", article A (une occurrence par
+    // cellule de sa stripe) ou "idA,idB". itemIds = articles de la phase 1 (null = tous).
+    static void extractPartitionKeys(String line, String mode, Map<String, Integer> itemIds, List<String> keys) {
+        if (parseTransactionId(line) == null) {
+            return;
+        }
+        List<String> items = parseItems(line);
+        if (itemIds != null) {
+            items.removeIf(item -> !itemIds.containsKey(item));
+        }
+        for (int i = 0; i < items.size(); i++) {
+            for (int j = i + 1; j < items.size(); j++) {
+                String itemA = items.get(i);
+                String itemB = items.get(j);
+                if ("stripes".equals(mode)) {
+                    keys.add(itemA);
+                } else if ("encoded".equals(mode)) {
+                    keys.add(itemIds.get(itemA) + "," + itemIds.get(itemB));
+                } else if (itemA.compareTo(itemB) < 0) {
+                    keys.add("[" + itemA + ", " + itemB + "]");
+                } else {
+                    keys.add("[" + itemB + ", " + itemA + "]");
+                }
+            }
+        }
+    }
+
+    // ==========================================
+    // MODE STREAMING : CO-OCCURRENCES PAR FENETRE
+    // ==========================================
+
+    // Sketch count-min : depth lignes de width compteurs (width puissance de 2). L'estimation
+    // d'une paire est le minimum de ses compteurs : jamais inferieure au vrai nombre.
+    static class CountMinSketch {
+
+        private final int depth;
+        private final int mask;
+        private final int[] cells;
+
+        CountMinSketch(int depth, int width) {
+            this.depth = depth;
+            this.mask = Integer.highestOneBit(Math.max(width, 1)) - 1;
+            this.cells = new int[depth * (mask + 1)];
+        }
+
+        // Ligne row : h1 + row * h2 (deux moities du hachage 64 bits)
+        private int cell(int row, long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32) | 1;
+            return row * (mask + 1) + ((h1 + row * h2) & mask);
+        }
+
+        void add(long hash) {
+            for (int row = 0; row < depth; row++) {
+                cells[cell(row, hash)]++;
+            }
+        }
+
+        int estimate(long hash) {
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                min = Math.min(min, cells[cell(row, hash)]);
+            }
+            return min;
+        }
+
+        // Sketch lineaire : retirer une tranche expiree de la fenetre
+        void subtract(CountMinSketch other) {
+            for (int i = 0; i < cells.length; i++) {
+                cells[i] -= other.cells[i];
+            }
+        }
+
+        void clear() {
+            Arrays.fill(cells, 0);
+        }
+    }
+
+    // Heavy hitters (algorithme Space-Saving) : au plus capacity paires suivies, dans un
+    // tas min indexe (tableaux paralleles). Une paire nouvelle remplace la moins frequente :
+    // toute paire de frequence superieure a 1 / capacity dans la tranche reste suivie.
+    static class SpaceSaving {
+
+        private final String[] pairs;
+        private final long[] hashes;
+        private final int[] counts;
+        private final Map<String, Integer> slots = new HashMap<>();
+        private int size;
+
+        SpaceSaving(int capacity) {
+            pairs = new String[capacity];
+            hashes = new long[capacity];
+            counts = new int[capacity];
+        }
+
+        void offer(String pair, long hash) {
+            Integer slot = slots.get(pair);
+            if (slot != null) {
+                counts[slot]++;
+                siftDown(slot);
+            } else if (size < pairs.length) {
+                set(size, pair, hash, 1);
+                siftUp(size++);
+            } else {
+                slots.remove(pairs[0]);
+                set(0, pair, hash, counts[0] + 1);
+                siftDown(0);
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        String pair(int i) {
+            return pairs[i];
+        }
+
+        long hash(int i) {
+            return hashes[i];
+        }
+
+        void clear() {
+            slots.clear();
+            Arrays.fill(pairs, 0, size, null);
+            size = 0;
+        }
+
+        private void set(int i, String pair, long hash, int count) {
+            pairs[i] = pair;
+            hashes[i] = hash;
+            counts[i] = count;
+            slots.put(pair, i);
+        }
+
+        private void swap(int i, int j) {
+            String pair = pairs[i];
+            long hash = hashes[i];
+            int count = counts[i];
+            set(i, pairs[j], hashes[j], counts[j]);
+            set(j, pair, hash, count);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0 && counts[(i - 1) / 2] > counts[i]) {
+                swap(i, (i - 1) / 2);
+                i = (i - 1) / 2;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    return;
+                }
+                if (child + 1 < size && counts[child + 1] < counts[child]) {
+                    child++;
+                }
+                if (counts[i] <= counts[child]) {
+                    return;
+                }
+                swap(i, child);
+                i = child;
+            }
+        }
+    }
+
+    // Hachage 64 bits d'un article (FNV-1a puis melange) ; celui d'une paire combine ceux de
+    // ses articles tries, sans construire de cle intermediaire
+    static long hashItem(String item) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < item.length(); i++) {
+            h = (h ^ item.charAt(i)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    static long hashPair(long hashA, long hashB) {
+        return mix(hashA * 0x9E3779B97F4A7C15L + hashB);
+    }
+
+    private static long mix(long h) {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    // Fenetre glissante de panes tranches de slide millisecondes (tumbling si panes = 1).
+    // Chaque tranche a son sketch et ses heavy hitters ; le sketch de la fenetre est la
+    // somme de ceux des tranches, mise a jour a chaque transaction et diminuee de la tranche
+    // qui expire : aucune tranche n'est relue pour repondre.
+    static class PairWindows {
+
+        // Le plus faible d'abord : estimation la plus basse, puis paire la plus loin dans l'ordre des noms
+        private static final Comparator<Map.Entry<String, Integer>> WEAKEST_FIRST = (a, b) -> {
+            int cmp = Integer.compare(a.getValue(), b.getValue());
+            return cmp != 0 ? cmp : b.getKey().compareTo(a.getKey());
+        };
+
+        private final long slideMillis;
+        private final CountMinSketch window;
+        private final CountMinSketch[] paneSketches;
+        private final SpaceSaving[] paneCandidates;
+        private final long[] paneTransactions;
+        private long pane;       // indice (temps / slide) de la tranche courante
+        private int current;     // position de la tranche courante dans l'anneau
+
+        PairWindows(int panes, long slideMillis, int depth, int width, int candidates, long now) {
+            this.slideMillis = slideMillis;
+            window = new CountMinSketch(depth, width);
+            paneSketches = new CountMinSketch[panes];
+            paneCandidates = new SpaceSaving[panes];
+            paneTransactions = new long[panes];
+            for (int i = 0; i < panes; i++) {
+                paneSketches[i] = new CountMinSketch(depth, width);
+                paneCandidates[i] = new SpaceSaving(candidates);
+            }
+            pane = now / slideMillis;
+        }
+
+        // Articles tries de la transaction (doublons ignores)
+        void add(List<String> items) {
+            String[] distinct = new String[items.size()];
+            long[] hashes = new long[items.size()];
+            int n = 0;
+            for (String item : items) {
+                if (n == 0 || !item.equals(distinct[n - 1])) {
+                    distinct[n] = item;
+                    hashes[n++] = hashItem(item);
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = i + 1; j < n; j++) {
+                    long hash = hashPair(hashes[i], hashes[j]);
+                    window.add(hash);
+                    paneSketches[current].add(hash);
+                    paneCandidates[current].offer("[" + distinct[i] + ", " + distinct[j] + "]", hash);
+                }
+            }
+            paneTransactions[current]++;
+        }
+
+        // Debut (ms) de la tranche courante
+        long paneStart() {
+            return pane * slideMillis;
+        }
+
+        // Debut (ms) de la fenetre qui se termine avec la tranche courante
+        long windowStart() {
+            return (pane - paneSketches.length + 1) * slideMillis;
+        }
+
+        long transactions() {
+            long total = 0;
+            for (long count : paneTransactions) {
+                total += count;
+            }
+            return total;
+        }
+
+        // Passe a la tranche qui contient now : les tranches sorties de la fenetre sont
+        // retirees du sketch global. Retourne false si now est encore dans la tranche courante.
+        boolean advance(long now) {
+            long target = now / slideMillis;
+            if (target <= pane) {
+                return false;
+            }
+            long steps = Math.min(target - pane, paneSketches.length);
+            for (long s = 0; s < steps; s++) {
+                current = (current + 1) % paneSketches.length;
+                window.subtract(paneSketches[current]);
+                paneSketches[current].clear();
+                paneCandidates[current].clear();
+                paneTransactions[current] = 0;
+            }
+            pane = target;
+            return true;
+        }
+
+        // n paires les plus frequentes de la fenetre (estimation >= minSupport), par
+        // estimation decroissante : candidats des tranches, estimes par le sketch global
+        List<Map.Entry<String, Integer>> top(int n, int minSupport) {
+            Map<String, Long> candidates = new HashMap<>();
+            for (SpaceSaving summary : paneCandidates) {
+                for (int i = 0; i < summary.size(); i++) {
+                    candidates.put(summary.pair(i), summary.hash(i));
+                }
+            }
+            PriorityQueue<Map.Entry<String, Integer>> top = new PriorityQueue<>(n + 1, WEAKEST_FIRST);
+            for (Map.Entry<String, Long> candidate : candidates.entrySet()) {
+                int estimate = window.estimate(candidate.getValue());
+                if (estimate < minSupport) {
+                    continue;
+                }
+                top.add(new AbstractMap.SimpleEntry<>(candidate.getKey(), estimate));
+                if (top.size() > n) {
+                    top.poll();
+                }
+            }
+            List<Map.Entry<String, Integer>> best = new ArrayList<>(top);
+            best.sort(WEAKEST_FIRST.reversed());
+            return best;
+        }
+    }
+
+    // Suit le journal de transactions log (ajout seul, format "ID => articles") et ecrit a
+    // chaque fin de tranche un instantane des paires les plus frequentes de la fenetre dans
+    // output/window-<fin en ms> ("[A, B] \t estimation"). Sans suivi, s'arrete en fin de
+    // fichier apres l'instantane de la fenetre en cours.
+    // Fenetres en temps de traitement : les lignes ne portent pas d'horodatage, une transaction
+    // compte dans la tranche ou elle est lue. Un journal rejoue ou un retard rattrape tombe donc
+    // entierement dans la fenetre courante.
+    private static void runStream(Configuration conf, Path log, Path output) throws Exception {
+        long windowMillis = conf.getLong(STREAM_WINDOW_KEY, 60) * 1000;
+        long slideMillis = conf.getLong(STREAM_SLIDE_KEY, windowMillis / 1000) * 1000;
+        if (slideMillis <= 0 || windowMillis < slideMillis || windowMillis % slideMillis != 0) {
+            throw new IllegalArgumentException(STREAM_WINDOW_KEY + " doit etre un multiple de " + STREAM_SLIDE_KEY);
+        }
+        int top = conf.getInt(STREAM_TOP_KEY, 100);
+        int minSupport = Math.max(1, conf.getInt(MIN_SUPPORT_KEY, 1));
+        long pollMillis = conf.getLong(STREAM_POLL_KEY, 500);
+        boolean follow = conf.getBoolean(STREAM_FOLLOW_KEY, true);
+        PairWindows windows = new PairWindows((int) (windowMillis / slideMillis), slideMillis,
+                conf.getInt(STREAM_SKETCH_DEPTH_KEY, 4), conf.getInt(STREAM_SKETCH_WIDTH_KEY, 1 << 16),
+                conf.getInt(STREAM_CANDIDATES_KEY, 1000), System.currentTimeMillis());
+
+        FileSystem fs = log.getFileSystem(conf);
+        FileSystem outFs = output.getFileSystem(conf);
+        outFs.mkdirs(output);
+        long offset = 0;
+        long malformed = 0;
+        long oversized = 0;
+        boolean skipping = false;
+        byte[] chunk = new byte[4 * 1024 * 1024];
+
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (now >= windows.paneStart() + slideMillis) {
+                writeSnapshot(outFs, output, windows, windows.paneStart() + slideMillis, top, minSupport);
+                windows.advance(now);
+            }
+
+            long length = fs.getFileStatus(log).getLen();
+            if (length < offset) {
+                throw new IOException("Journal tronque : " + log);
+            }
+            if (length == offset) {
+                if (!follow) {
+                    writeSnapshot(outFs, output, windows, now, top, minSupport);
+                    break;
+                }
+                Thread.sleep(pollMillis);
+                continue;
+            }
+
+            // Lignes completes uniquement : une ligne en cours d'ecriture est relue au tour suivant
+            int read = (int) Math.min(chunk.length, length - offset);
+            try (FSDataInputStream in = fs.open(log)) {
+                in.readFully(offset, chunk, 0, read);
+            }
+            if (skipping) {
+                // Suite d'une ligne trop longue : ignoree jusqu'au retour a la ligne inclus
+                int newline = 0;
+                while (newline < read && chunk[newline] != '\n') {
+                    newline++;
+                }
+                skipping = newline == read;
+                offset += skipping ? read : newline + 1;
+                continue;
+            }
+            int end = read;
+            while (end > 0 && chunk[end - 1] != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                if (read == chunk.length) {
+                    // Ligne plus longue que le tampon : ses morceaux donneraient de fausses transactions
+                    oversized++;
+                    skipping = true;
+                    offset += read;
+                    continue;
+                }
+                if (follow) {
+                    Thread.sleep(pollMillis);
+                    continue;
+                }
+                end = read; // derniere ligne du fichier, sans retour a la ligne
+            }
+            int start = 0;
+            for (int i = 0; i < end; i++) {
+                if (chunk[i] == '\n' || i == end - 1) {
+                    String line = new String(chunk, start, (chunk[i] == '\n' ? i : i + 1) - start, StandardCharsets.UTF_8);
+                    start = i + 1;
+                    if (parseTransactionId(line) == null) {
+                        malformed++;
+                        continue;
+                    }
+                    windows.add(parseItems(line));
+                }
+            }
+            offset += end;
+        }
+        System.out.println("Fin du journal : " + offset + " octets lus, " + malformed + " lignes mal formees, "
+                + oversized + " lignes de plus de " + (chunk.length >> 20) + " Mo ignorees");
+    }
+
+    // Instantane de la fenetre [debut, end[ : ecrit sous un nom temporaire puis renomme,
+    // un lecteur ne voit jamais de fichier partiel. Rien n'est ecrit pour une fenetre vide.
+    private static void writeSnapshot(FileSystem fs, Path output, PairWindows windows, long end, int top, int minSupport)
+            throws IOException {
+        long transactions = windows.transactions();
+        if (transactions == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        List<Map.Entry<String, Integer>> pairs = windows.top(top, minSupport);
+        Path snapshot = new Path(output, String.format(Locale.ROOT, "window-%013d", end));
+        Path tmp = new Path(output, "_" + snapshot.getName());
+        try (Writer out = new OutputStreamWriter(fs.create(tmp, true), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Integer> pair : pairs) {
+                out.write(pair.getKey() + "\t" + pair.getValue() + "\n");
+            }
+        }
+        fs.delete(snapshot, false);
+        fs.rename(tmp, snapshot);
+        System.out.printf(Locale.ROOT, "Fenetre [%d, %d[ : %d transactions, %d paires -> %s (%.1f ms)%n",
+                windows.windowStart(), end, transactions, pairs.size(), snapshot.getName(),
+                (System.nanoTime() - start) / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+        if (otherArgs.length < 2) {
+            System.err.println("Usage: MarketBasketAnalysis [-D " + MIN_SUPPORT_KEY + "=N] [-D " + MODE_KEY
+                    + "=pairs|stripes|encoded|fpgrowth] [-D " + GROUPS_KEY + "=N] [-D " + MAX_ITEMSET_KEY
+                    + "=N] [-D " + PER_ITEM_KEY + "=K] [-D " + OUTPUT_KEY + "=ids|metrics|all] [-D " + SKEW_KEY
+                    + "=true] [-D " + EMBEDDED_KEY + "=true] <input path> <output path>");
+            System.err.println("       MarketBasketAnalysis -D " + MODE_KEY + "=stream [-D " + STREAM_WINDOW_KEY
+                    + "=S] [-D " + STREAM_SLIDE_KEY + "=S] [-D " + STREAM_TOP_KEY + "=N] [-D " + MIN_SUPPORT_KEY
+                    + "=N] [-D " + STREAM_FOLLOW_KEY + "=false] <transaction log> <snapshot dir>");
+            System.exit(-1);
+        }
+
+        Path input = new Path(otherArgs[0]);
+        Path output = new Path(otherArgs[1]);
+        String mode = conf.get(MODE_KEY, "pairs");
+        if ("stream".equals(mode)) {
+            runStream(conf, input, output);
+            return;
+        }
+        RunReport report = new RunReport(conf, "MarketBasketAnalysis", new Path(otherArgs[1] + "_report.json"));
+        if (conf.getBoolean(EMBEDDED_KEY, false)) {
+            report.setting("localRunnerProfile", LocalRunnerProfile.configure(conf, Collections.singletonList(input)));
+        }
+        int minSupport = conf.getInt(MIN_SUPPORT_KEY, 1);
+
+        // Phase 1 : necessaire pour l'elagage Apriori (seuil demande), pour le dictionnaire
+        // des articles des modes "encoded" et "fpgrowth" (liste F) et pour les metriques
+        boolean itemPass = minSupport > 1 || "encoded".equals(mode) || "fpgrowth".equals(mode)
+                || !"ids".equals(conf.get(OUTPUT_KEY, "ids"));
+        Path itemsPath = new Path(otherArgs[1] + "_frequent_items");
+        if (itemPass) {
+            long transactions = runItemCountJob(conf, input, itemsPath, report);
+            if (transactions < 0) {
+                report.write();
+                System.exit(1);
+            }
+            conf.setLong(TRANSACTIONS_KEY, transactions);
+        }
+
+        if ("fpgrowth".equals(mode)) {
+            boolean success = runFpGrowth(conf, input, output, itemsPath, report);
+            report.write();
+            System.exit(success ? 0 : 1);
+        }
+
+        Job job = Job.getInstance(conf, "Market Basket Analysis - " + mode);
+
+        job.setJarByClass(MarketBasketAnalysis.class);
+        if ("encoded".equals(mode)) {
+            job.setMapperClass(EncodedPairsMapper.class);
+            job.setCombinerClass(TransactionSetCombiner.class);
+            job.setReducerClass(EncodedPairsReducer.class);
+            job.setMapOutputKeyClass(ItemPairWritable.class);
+            job.setMapOutputValueClass(TransactionSetWritable.class);
+        } else if ("stripes".equals(mode)) {
+            job.setMapperClass(StripesMapper.class);
+            job.setCombinerClass(StripesCombiner.class);
+            job.setReducerClass(StripesReducer.class);
+            job.setMapOutputKeyClass(Text.class);
+            job.setMapOutputValueClass(StripeWritable.class);
+        } else {
+            job.setMapperClass(PairsMapper.class);
+            job.setCombinerClass(TransactionSetCombiner.class);
+            job.setReducerClass(PairsReducer.class);
+            job.setMapOutputKeyClass(Text.class);
+            job.setMapOutputValueClass(TransactionSetWritable.class);
+        }
+
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+
+        if (itemPass) {
+            addFrequentItemsCache(job, itemsPath);
+        }
+
+        FileInputFormat.addInputPath(job, input);
+        FileOutputFormat.setOutputPath(job, output);
+
+        if (conf.getBoolean(SKEW_KEY, false)) {
+            Map<String, Integer> itemIds = null;
+            if (itemPass) {
+                itemIds = new HashMap<>();
+                String[] dictionary = readFrequentItems(conf, itemsPath);
+                for (int i = 0; i < dictionary.length; i++) {
+                    itemIds.put(dictionary[i], i);
+                }
+            }
+            Map<String, Integer> sampleItems = itemIds;
+            SkewPartitioning.Plan plan = SkewPartitioning.configure(job, new Path(otherArgs[1] + "_skew_plan"),
+                    Collections.singletonList(input), (line, keys) -> extractPartitionKeys(line, mode, sampleItems, keys));
+            if ("encoded".equals(mode) && plan.size() > 0) {
+                job.setPartitionerClass(EncodedPairSkewPartitioner.class);
+            }
+            boolean success = report.run(job, () -> SkewPartitioning.waitForCompletion(job, true));
+            report.write();
+            System.exit(success ? 0 : 1);
+        }
 
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        boolean success = report.run(job);
+        report.write();
+        System.exit(success ? 0 : 1);
     }
 }
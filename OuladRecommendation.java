@@ -1,368 +1,2520 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.io.compress.Lz4Codec;
+import org.apache.hadoop.io.compress.SnappyCodec;
+import org.apache.hadoop.io.compress.ZStandardCodec;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.MultipleInputs;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.ReflectionUtils;
 
 public class OuladRecommendation {
 
+    // Job 1 join strategy: "reduce" (default, reduce-side join on id_site),
+    // "broadcast" (filtered vle.csv loaded in StudentVleMapper, map-only join) or
+    // "sorted" (secondary sort on (id_site, tag), streaming reducer in O(1) memory)
+    public static final String JOIN_KEY = "oulad.join";
+
+    // Job 4 output: "sparse" (default, SequenceFile of SparseVectorWritable) or
+    // "dense" (historical text vector with one entry per feature)
+    public static final String PIVOT_FORMAT_KEY = "oulad.pivot.format";
+
+    // Job 5 output when reading sparse vectors: "dense" (default, one score per feature)
+    // or "sparse" (score per activity type plus the indices of visited features)
+    public static final String SCORING_OUTPUT_KEY = "oulad.scoring.output";
+
+    // Job 5 top-K mode: when > 0, only the K best-scored unvisited features of each student are
+    // written, "student \t feature:score,..." by decreasing score, ties broken by feature index
+    // (default: 0, every feature gets a score)
+    public static final String TOP_K_KEY = "oulad.scoring.topK";
+
+    // With the top-K mode, Job 6 counts the students having each feature in their top K and
+    // keeps the K most recommended features of each activity type (default: false)
+    public static final String TOP_K_BY_TYPE_KEY = "oulad.scoring.topKByType";
+
+    // Format of job1_join and job2_agg: "sequence" (default, block-compressed SequenceFile of
+    // ActivityKey -> LongWritable, compressed map output) or "text" (historical TSV lines)
+    public static final String INTERMEDIATE_KEY = "oulad.intermediate";
+
+    // Codec class for the binary intermediates; by default the first one that works on this
+    // JVM among zstd, Snappy, LZ4 and zlib
+    public static final String INTERMEDIATE_CODEC_KEY = "oulad.intermediate.codec";
+
+    // Skew-aware partitioning of Job 1 (reduce and sorted joins): busy id_sites are spread
+    // over several reducers, their vle record being replicated to each (default: false)
+    public static final String SKEW_KEY = "oulad.skew";
+
+    // Jobs in the driver process over local files, multithreaded LocalJobRunner
+    // (LocalRunnerProfile tuning), default: false
+    public static final String EMBEDDED_KEY = "oulad.embedded";
+
+    // Incremental run: only the studentVle partitions missing from <output base>/_watermark
+    // go through the join, their click sums are merged into the previous job2_agg and only
+    // the students they touch are re-pivoted and re-scored (default: false)
+    public static final String INCREMENTAL_KEY = "oulad.incremental";
+
+    // Set by the driver on the incremental Job 4: pivot only the students with a change marker
+    static final String CHANGED_ONLY_KEY = "oulad.pivot.changedOnly";
+
+    // Processed partitions ("path \t length" per line) and working directory of incremental runs.
+    // A finished _delta/ is renamed to _commit/ in one step, then moved into the output base
+    private static final String WATERMARK = "_watermark";
+    private static final String DELTA_DIR = "_delta";
+    private static final String COMMIT_DIR = "_commit";
+    private static final String[] STATE_STAGES = { "job1_join", "job2_agg", "job3_features", "job4_pivot", "job5_scoring" };
+
+    // Full run: skip the stages whose inputs and settings are unchanged since their last
+    // successful run, fingerprints being kept in <output base>/_stages (default: true)
+    public static final String CHECKPOINT_KEY = "oulad.checkpoint";
+    private static final String STAGES = "_stages";
+
+    // Named output of the Job 2 reducers holding the feature names, and its directory in job2_agg
+    // (hidden from the jobs that read job2_agg)
+    static final String FEATURES_OUTPUT = "features";
+    private static final String FEATURES_DIR = "_features";
+
+    // Distributed cache link of vle.csv in broadcast mode
+    private static final String VLE_LINK = "vle.csv";
+
+    // Business counters, written to the run report (RunReport) with the framework ones
+    public enum OuladCounters {
+        MALFORMED_ROWS,          // CSV rows or intermediate records with missing fields (headers excluded)
+        VLE_SITES_KEPT,          // vle.csv sites of module DDD, 2013B/2013J
+        VLE_SITES_FILTERED,      // other vle.csv sites
+        INVALID_CLICKS,          // sum_click values that are not numbers, row dropped
+        STUDENT_ROWS_UNMATCHED,  // studentVle rows whose site was filtered out of vle
+        ROWS_JOINED,             // Job 1 output records
+        PIVOT_ENTRIES_DROPPED,   // Job 4 entries unknown to the dictionary or without clicks
+        STUDENTS_PIVOTED,        // Job 4 student vectors
+        STUDENTS_SCORED,         // Job 5 output records
+        STUDENTS_WITHOUT_CLICKS, // vectors with no clicks, not scored
+        VECTORS_REJECTED         // vectors whose size does not match the feature dictionary
+    }
+
+    // Only module DDD, presentations 2013B and 2013J are kept
+    static boolean isTargetPresentation(String codeModule, String codePresentation) {
+        return "DDD".equals(codeModule) && ("2013B".equals(codePresentation) || "2013J".equals(codePresentation));
+    }
+
+    private static final byte[] MODULE_DDD = "DDD".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRESENTATION_2013B = "2013B".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PRESENTATION_2013J = "2013J".getBytes(StandardCharsets.UTF_8);
+
+    // Same test on the parsed fields, without decoding them
+    static boolean isTargetPresentation(CsvFields fields, int codeModule, int codePresentation) {
+        return fields.is(codeModule, MODULE_DDD)
+                && (fields.is(codePresentation, PRESENTATION_2013B) || fields.is(codePresentation, PRESENTATION_2013J));
+    }
+
+    // Header first fields of vle.csv and studentVle.csv, and the Job 1 map output value tags
+    private static final byte[] VLE_HEADER = "id_site".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STUDENT_VLE_HEADER = "code_module".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] VLE_TAG = "V|".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STUDENT_TAG = "S|".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PIPE = { '|' };
+    private static final byte[] VLE_RECORD = { 'V' };
+    private static final byte[] STUDENT_RECORD = { 'S' };
+
     // ==========================================
     // JOB 1: JOIN & FILTER (StudentVle + Vle)
     // ==========================================
 
     // Mapper pour VLE.csv
-    public static class VleMapper extends Mapper<LongWritable, Text, Text, Text> {
+    // With oulad.skew, a site spread over several reducers gets one V record per reducer.
+    // Fields: id_site, code_module, code_presentation, activity_type, ...
+    public static class VleMapper extends RunReport.TimedMapper<LongWritable, Text, Text, Text> {
+        private CsvFields fields = new CsvFields();
+        private Text site = new Text();
+        private Text record = new Text();
+        private SkewPartitioning.Plan plan;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            plan = SkewPartitioning.Plan.loadLocal();
+        }
+
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String line = value.toString();
-            String[] parts = parseCsv(line);
-            if (parts.length < 4 || parts[0].equals("id_site"))
+            int size = fields.parse(value);
+            if (size < 4 || fields.is(0, VLE_HEADER)) {
+                if (!fields.is(0, VLE_HEADER))
+                    context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
                 return;
+            }
 
-            String id_site = parts[0];
-            String code_module = parts[1];
-            String code_presentation = parts[2];
-            String activity_type = parts[3];
-
-            if ("DDD".equals(code_module) && ("2013B".equals(code_presentation) || "2013J".equals(code_presentation))) {
-                context.write(new Text(id_site), new Text("V|" + activity_type));
+            if (isTargetPresentation(fields, 1, 2)) {
+                fields.copyTo(0, site);
+                record.set(VLE_TAG);
+                fields.appendTo(3, record);
+                int replicas = plan == null ? 1 : plan.replicas(site);
+                for (int i = 0; i < replicas; i++)
+                    context.write(site, record);
+                context.getCounter(OuladCounters.VLE_SITES_KEPT).increment(1);
+            } else {
+                context.getCounter(OuladCounters.VLE_SITES_FILTERED).increment(1);
             }
         }
     }
 
     // Mapper pour StudentVle.csv
-    public static class StudentVleMapper extends Mapper<LongWritable, Text, Text, Text> {
+    // Broadcast mode: the filtered VLE side (id_site -> activity_type) is loaded from the
+    // distributed cache and rows are joined here; non-matching rows are dropped.
+    // Output: (Text id_site, Text "S|...") in reduce mode, (ActivityKey, LongWritable) in broadcast mode
+    // Fields: code_module, code_presentation, id_student, id_site, date, sum_click
+    public static class StudentVleMapper extends RunReport.TimedMapper<LongWritable, Text, Writable, Writable> {
+        private Map<Text, Text> vleTypes;
+        private CsvFields fields = new CsvFields();
+        private ActivityKey activity = new ActivityKey();
+        private LongWritable clicks = new LongWritable();
+        private Text site = new Text();
+        private Text record = new Text();
+        private Counter malformed;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            malformed = context.getCounter(OuladCounters.MALFORMED_ROWS);
+            if (!"broadcast".equals(context.getConfiguration().get(JOIN_KEY, "reduce")))
+                return;
+
+            vleTypes = new HashMap<>();
+            Text row = new Text();
+            try (BufferedReader reader = new BufferedReader(new FileReader(VLE_LINK))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    row.set(line);
+                    if (fields.parse(row) < 4 || fields.is(0, VLE_HEADER))
+                        continue;
+                    if (isTargetPresentation(fields, 1, 2)) {
+                        Text idSite = new Text();
+                        Text activityType = new Text();
+                        fields.copyTo(0, idSite);
+                        fields.copyTo(3, activityType);
+                        vleTypes.put(idSite, activityType);
+                    }
+                }
+            }
+        }
+
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String line = value.toString();
-            String[] parts = parseCsv(line);
-            if (parts.length < 6 || parts[0].equals("code_module"))
+            int size = fields.parse(value);
+            if (size < 6 || fields.is(0, STUDENT_VLE_HEADER)) {
+                if (!fields.is(0, STUDENT_VLE_HEADER))
+                    malformed.increment(1);
                 return;
+            }
 
-            String id_student = parts[2];
-            String id_site = parts[3];
-            String sum_click = parts[5];
+            fields.copyTo(3, site);
+            if (vleTypes != null) {
+                // Same output as JoinReducer: student,site,type -> clicks
+                Text activityType = vleTypes.get(site);
+                long n = fields.clicks(5);
+                if (activityType == null) {
+                    context.getCounter(OuladCounters.STUDENT_ROWS_UNMATCHED).increment(1);
+                } else if (n < 0) {
+                    context.getCounter(OuladCounters.INVALID_CLICKS).increment(1);
+                } else {
+                    fields.copyTo(2, activity.getStudent());
+                    activity.getSite().set(site);
+                    activity.getType().set(activityType);
+                    clicks.set(n);
+                    context.write(activity, clicks);
+                    context.getCounter(OuladCounters.ROWS_JOINED).increment(1);
+                }
+                return;
+            }
 
-            context.write(new Text(id_site), new Text("S|" + id_student + "|" + sum_click));
+            // "S|id_student|sum_click"
+            record.set(STUDENT_TAG);
+            fields.appendTo(2, record);
+            record.append(PIPE, 0, 1);
+            fields.appendTo(5, record);
+            context.write(site, record);
         }
     }
 
-    public static class JoinReducer extends Reducer<Text, Text, Text, Text> {
+    // Values "V|activity_type" and "S|id_student|sum_click", split by CsvFields. The students
+    // seen before the V record are kept in reused buffers.
+    public static class JoinReducer extends RunReport.TimedReducer<Text, Text, ActivityKey, LongWritable> {
+        private CsvFields fields = new CsvFields((byte) '|');
+        private ActivityKey activity = new ActivityKey();
+        private LongWritable clicks = new LongWritable();
+        private Text activityType = new Text();
+        private List<Text> students = new ArrayList<>();
+        private long[] studentClicks = new long[16];
+
         @Override
         public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            List<String> students = new ArrayList<>();
-            String activityType = null;
+            int count = 0;
+            boolean matched = false;
 
             for (Text val : values) {
-                String s = val.toString();
-                if (s.startsWith("V|")) {
-                    activityType = s.substring(2);
-                } else if (s.startsWith("S|")) {
-                    students.add(s.substring(2));
+                int size = fields.parse(val);
+                if (size >= 2 && fields.is(0, VLE_RECORD)) {
+                    fields.copyTo(1, activityType);
+                    matched = true;
+                } else if (fields.is(0, STUDENT_RECORD)) {
+                    if (count == students.size())
+                        students.add(new Text());
+                    if (count == studentClicks.length)
+                        studentClicks = Arrays.copyOf(studentClicks, count * 2);
+                    if (size >= 3)
+                        fields.copyTo(1, students.get(count));
+                    studentClicks[count++] = size >= 3 ? fields.clicks(2) : -1;
                 }
             }
 
-            if (activityType != null) {
-                for (String studentData : students) {
-                    String[] sd = studentData.split("\\|");
-                    context.write(new Text(sd[0] + "," + key.toString() + "," + activityType), new Text(sd[1]));
+            if (matched) {
+                for (int i = 0; i < count; i++) {
+                    if (studentClicks[i] < 0) {
+                        context.getCounter(OuladCounters.INVALID_CLICKS).increment(1);
+                        continue;
+                    }
+                    activity.getStudent().set(students.get(i));
+                    activity.getSite().set(key);
+                    activity.getType().set(activityType);
+                    clicks.set(studentClicks[i]);
+                    context.write(activity, clicks);
+                    context.getCounter(OuladCounters.ROWS_JOINED).increment(1);
                 }
+            } else {
+                context.getCounter(OuladCounters.STUDENT_ROWS_UNMATCHED).increment(count);
             }
         }
     }
 
     // ==========================================
-    // JOB 2: AGGREGATION
+    // JOB 1 (sorted mode): SECONDARY-SORT STREAMING JOIN
     // ==========================================
-    public static class AggregationMapper extends Mapper<LongWritable, Text, Text, Text> {
+
+    // Composite key (id_site, tag). Sorting on the tag puts the V record (tag 0) before
+    // every S record (tag 1) of the same site; grouping and partitioning use id_site only.
+    public static class SiteTagKey implements WritableComparable<SiteTagKey> {
+        public static final byte TAG_VLE = 0;
+        public static final byte TAG_STUDENT = 1;
+
+        private Text site = new Text();
+        private byte tag;
+
+        public void set(String idSite, byte tag) {
+            this.site.set(idSite);
+            this.tag = tag;
+        }
+
+        public void set(CsvFields fields, int idSite, byte tag) {
+            fields.copyTo(idSite, site);
+            this.tag = tag;
+        }
+
+        public Text getSite() {
+            return site;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            site.write(out);
+            out.writeByte(tag);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            site.readFields(in);
+            tag = in.readByte();
+        }
+
+        @Override
+        public int compareTo(SiteTagKey other) {
+            int cmp = site.compareTo(other.site);
+            return cmp != 0 ? cmp : Byte.compare(tag, other.tag);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SiteTagKey && compareTo((SiteTagKey) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return site.hashCode() * 31 + tag;
+        }
+    }
+
+    // Skew-aware variant: the plan is keyed by id_site only
+    public static class SiteSkewPartitioner extends SkewPartitioning.SkewPartitioner<SiteTagKey, Text> {
+        @Override
+        protected Text partitionKey(SiteTagKey key, Text reuse) {
+            return key.getSite();
+        }
+    }
+
+    // All records of a site go to the same reducer, whatever their tag
+    public static class SitePartitioner extends Partitioner<SiteTagKey, Text> {
+        @Override
+        public int getPartition(SiteTagKey key, Text value, int numPartitions) {
+            return (key.getSite().hashCode() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    // One reduce() call per site, whatever the tag
+    public static class SiteGroupingComparator extends WritableComparator {
+        public SiteGroupingComparator() {
+            super(SiteTagKey.class, true);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public int compare(WritableComparable a, WritableComparable b) {
+            return ((SiteTagKey) a).getSite().compareTo(((SiteTagKey) b).getSite());
+        }
+    }
+
+    public static class TaggedVleMapper extends RunReport.TimedMapper<LongWritable, Text, SiteTagKey, Text> {
+        private CsvFields fields = new CsvFields();
+        private SiteTagKey outKey = new SiteTagKey();
+        private Text outValue = new Text();
+        private SkewPartitioning.Plan plan;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            plan = SkewPartitioning.Plan.loadLocal();
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            int size = fields.parse(value);
+            if (size < 4 || fields.is(0, VLE_HEADER)) {
+                if (!fields.is(0, VLE_HEADER))
+                    context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
+                return;
+            }
+
+            if (isTargetPresentation(fields, 1, 2)) {
+                outKey.set(fields, 0, SiteTagKey.TAG_VLE);
+                outValue.set(VLE_TAG);
+                fields.appendTo(3, outValue);
+                // One copy per reducer of a spread site (see SiteSkewPartitioner)
+                int replicas = plan == null ? 1 : plan.replicas(outKey.getSite());
+                for (int i = 0; i < replicas; i++)
+                    context.write(outKey, outValue);
+                context.getCounter(OuladCounters.VLE_SITES_KEPT).increment(1);
+            } else {
+                context.getCounter(OuladCounters.VLE_SITES_FILTERED).increment(1);
+            }
+        }
+    }
+
+    public static class TaggedStudentVleMapper extends RunReport.TimedMapper<LongWritable, Text, SiteTagKey, Text> {
+        private CsvFields fields = new CsvFields();
+        private SiteTagKey outKey = new SiteTagKey();
+        private Text outValue = new Text();
+
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String line = value.toString();
-            String[] parts = line.split("\t");
-            if (parts.length < 2)
+            int size = fields.parse(value);
+            if (size < 6 || fields.is(0, STUDENT_VLE_HEADER)) {
+                if (!fields.is(0, STUDENT_VLE_HEADER))
+                    context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
                 return;
-            context.write(new Text(parts[0]), new Text(parts[1]));
+            }
+
+            outKey.set(fields, 3, SiteTagKey.TAG_STUDENT);
+            outValue.set(STUDENT_TAG);
+            fields.appendTo(2, outValue);
+            outValue.append(PIPE, 0, 1);
+            fields.appendTo(5, outValue);
+            context.write(outKey, outValue);
         }
     }
 
-    public static class AggregationReducer extends Reducer<Text, Text, Text, Text> {
+    // Streams student records straight to the output: the V record, if any, comes first.
+    public static class StreamingJoinReducer extends RunReport.TimedReducer<SiteTagKey, Text, ActivityKey, LongWritable> {
+        private CsvFields fields = new CsvFields((byte) '|');
+        private ActivityKey activity = new ActivityKey();
+        private LongWritable clicks = new LongWritable();
+
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            int totalClicks = 0;
+        public void reduce(SiteTagKey key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            boolean matched = false;
+
             for (Text val : values) {
-                try {
-                    totalClicks += Integer.parseInt(val.toString());
-                } catch (Exception e) {
+                int size = fields.parse(val);
+                if (size >= 2 && fields.is(0, VLE_RECORD)) {
+                    activity.getSite().set(key.getSite());
+                    fields.copyTo(1, activity.getType());
+                    matched = true;
+                } else if (!matched) {
+                    // Site filtered out of vle: no V record, drop its students (the loop
+                    // below resumes the same iterator, so every remaining row is counted)
+                    long dropped = 1;
+                    for (Text ignored : values)
+                        dropped++;
+                    context.getCounter(OuladCounters.STUDENT_ROWS_UNMATCHED).increment(dropped);
+                    return;
+                } else if (fields.is(0, STUDENT_RECORD)) {
+                    long n = size >= 3 ? fields.clicks(2) : -1;
+                    if (n < 0) {
+                        context.getCounter(OuladCounters.INVALID_CLICKS).increment(1);
+                        continue;
+                    }
+                    fields.copyTo(1, activity.getStudent());
+                    clicks.set(n);
+                    context.write(activity, clicks);
+                    context.getCounter(OuladCounters.ROWS_JOINED).increment(1);
                 }
             }
-            context.write(key, new Text(String.valueOf(totalClicks)));
         }
     }
 
     // ==========================================
-    // JOB 3: UNIQUE FEATURES
+    // TYPED INTERMEDIATE RECORDS (Jobs 1 -> 2 -> 3/4)
     // ==========================================
+
+    // (id_student, id_site, activity_type). toString() gives the historical text key
+    // "student,site,type", so TextOutputFormat still writes the original lines.
+    public static class ActivityKey implements WritableComparable<ActivityKey> {
+        private Text student = new Text();
+        private Text site = new Text();
+        private Text type = new Text();
+
+        public void set(String idStudent, String idSite, String activityType) {
+            student.set(idStudent);
+            site.set(idSite);
+            type.set(activityType);
+        }
+
+        public void set(ActivityKey other) {
+            student.set(other.student);
+            site.set(other.site);
+            type.set(other.type);
+        }
+
+        public Text getStudent() {
+            return student;
+        }
+
+        public Text getSite() {
+            return site;
+        }
+
+        public Text getType() {
+            return type;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            student.write(out);
+            site.write(out);
+            type.write(out);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            student.readFields(in);
+            site.readFields(in);
+            type.readFields(in);
+        }
+
+        @Override
+        public int compareTo(ActivityKey other) {
+            int cmp = student.compareTo(other.student);
+            if (cmp == 0)
+                cmp = site.compareTo(other.site);
+            return cmp != 0 ? cmp : type.compareTo(other.type);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ActivityKey && compareTo((ActivityKey) o) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (student.hashCode() * 31 + site.hashCode()) * 31 + type.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return student + "," + site + "," + type;
+        }
+
+        // Compares the three serialized Text fields in place, field by field
+        public static class Comparator extends WritableComparator {
+            public Comparator() {
+                super(ActivityKey.class);
+            }
+
+            @Override
+            public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+                try {
+                    for (int field = 0; field < 3; field++) {
+                        int n1 = WritableUtils.decodeVIntSize(b1[s1]);
+                        int n2 = WritableUtils.decodeVIntSize(b2[s2]);
+                        int len1 = readVInt(b1, s1);
+                        int len2 = readVInt(b2, s2);
+                        int cmp = compareBytes(b1, s1 + n1, len1, b2, s2 + n2, len2);
+                        if (cmp != 0)
+                            return cmp;
+                        s1 += n1 + len1;
+                        s2 += n2 + len2;
+                    }
+                    return 0;
+                } catch (IOException e) {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+        }
+
+        static {
+            WritableComparator.define(ActivityKey.class, new Comparator());
+        }
+    }
+
+    // Reads a Job 1/Job 2 record from either intermediate format: a SequenceFile entry
+    // (ActivityKey, LongWritable) or a text line "student,site,type\tclicks", split in place
+    // by CsvFields. read() returns false when the line is malformed.
+    static class ActivityReader {
+        private CsvFields columns = new CsvFields((byte) '\t');
+        private CsvFields names = new CsvFields((byte) ',');
+
+        boolean read(Writable key, Writable value, ActivityKey activity, LongWritable clicks) {
+            if (key instanceof ActivityKey) {
+                activity.set((ActivityKey) key);
+                clicks.set(((LongWritable) value).get());
+                return true;
+            }
+            if (columns.parse((Text) value) < 2 || names.parse(columns.bytes(), columns.start(0), columns.end(0)) < 3)
+                return false;
+            long n = columns.clicks(1);
+            if (n < 0)
+                return false;
+            names.copyTo(0, activity.getStudent());
+            names.copyTo(1, activity.getSite());
+            names.copyTo(2, activity.getType());
+            clicks.set(n);
+            return true;
+        }
+    }
+
+    // Click count of bytes[from, to), -1 when it is not a number: surrounding blanks ignored,
+    // -1 also beyond 18 digits
+    static long parseClicks(byte[] bytes, int from, int to) {
+        while (from < to && bytes[from] <= ' ')
+            from++;
+        while (to > from && bytes[to - 1] <= ' ')
+            to--;
+        if (from == to)
+            return -1;
+        boolean negative = bytes[from] == '-';
+        if (negative || bytes[from] == '+') {
+            from++;
+            if (from == to)
+                return -1;
+        }
+        if (to - from > 18)
+            return -1;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9)
+                return -1;
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
     // ==========================================
-    // JOB 3: UNIQUE FEATURES
+    // JOB 2: AGGREGATION
     // ==========================================
-    public static class FeatureMapper extends Mapper<LongWritable, Text, Text, Text> {
+
+    // Text intermediates only; with SequenceFiles the identity Mapper is used
+    public static class AggregationMapper extends RunReport.TimedMapper<LongWritable, Text, ActivityKey, LongWritable> {
+        private ActivityReader reader = new ActivityReader();
+        private ActivityKey activity = new ActivityKey();
+        private LongWritable clicks = new LongWritable();
+
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] line = value.toString().split("\t");
-            if (line.length < 2)
-                return;
-            String[] keys = line[0].split(",");
-            if (keys.length < 3)
-                return;
-            // Requirement: id_site-activity_type
-            String featureName = keys[1] + "-" + keys[2];
-            context.write(new Text(featureName), new Text(line[1]));
+            if (reader.read(key, value, activity, clicks))
+                context.write(activity, clicks);
+            else
+                context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
         }
     }
 
-    public static class FeatureReducer extends Reducer<Text, Text, Text, Text> {
+    // Also used as combiner: the sum is associative
+    public static class AggregationReducer extends RunReport.TimedReducer<ActivityKey, LongWritable, ActivityKey, LongWritable> {
+        private LongWritable total = new LongWritable();
+
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            // We just need unique features, the value doesn't matter much for valid columns
-            // list,
-            // but we can sum it anyway or just verify existence.
-            // The prompt says "find set of unique values", implies just list.
-            // But we might use the sum later? Actually the scoring formula uses STUDENT'S
-            // interaction by type.
-            // So global sum is NOT needed for the formula "sum of interactions BY TYPE".
-            // Confirmed schema: id_site-activity_type
-            context.write(key, new Text("1")); // Value ignored
+        public void reduce(ActivityKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            long totalClicks = 0;
+            for (LongWritable val : values) {
+                totalClicks += val.get();
+            }
+            total.set(totalClicks);
+            context.write(key, total);
+        }
+    }
+
+    // ==========================================
+    // JOB 3: UNIQUE FEATURES (fused into Job 2)
+    // ==========================================
+    // Job 2 reducer (the combiner stays AggregationReducer): each distinct feature of the
+    // partition also goes to the "_features" side output, so the feature list no longer needs
+    // its own pass over job2_agg. A feature may appear in several parts: FeatureDictionary.build
+    // merges them.
+    public static class FeatureAggregationReducer extends AggregationReducer {
+        private MultipleOutputs<ActivityKey, LongWritable> outputs;
+        private Set<String> features = new HashSet<>();
+
+        @Override
+        protected void setup(Context context) {
+            outputs = new MultipleOutputs<>(context);
+        }
+
+        @Override
+        public void reduce(ActivityKey key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+            super.reduce(key, values, context);
+            // Requirement: id_site-activity_type
+            features.add(key.getSite() + "-" + key.getType());
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            List<String> sorted = new ArrayList<>(features);
+            Collections.sort(sorted);
+            Text feature = new Text();
+            for (String name : sorted) {
+                feature.set(name);
+                outputs.write(FEATURES_OUTPUT, feature, NullWritable.get(), FEATURES_DIR + "/part");
+            }
+            outputs.close();
         }
     }
 
     // ==========================================
     // JOB 4: PIVOT TABLE
     // ==========================================
-    public static class PivotMapper extends Mapper<LongWritable, Text, Text, Text> {
+    // Input: Job 2 output, SequenceFile or text (see ActivityReader)
+    public static class PivotMapper extends RunReport.TimedMapper<Writable, Writable, Text, Text> {
+        private ActivityReader reader = new ActivityReader();
+        private ActivityKey activity = new ActivityKey();
+        private LongWritable clicks = new LongWritable();
+        private Text outValue = new Text();
+
         @Override
-        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] line = value.toString().split("\t");
-            if (line.length < 2)
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (!reader.read(key, value, activity, clicks)) {
+                context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
                 return;
-            String[] keys = line[0].split(",");
-            if (keys.length < 3)
+            }
+            String featureName = activity.getSite() + "-" + activity.getType();
+            outValue.set(featureName + ":" + clicks.get());
+            context.write(activity.getStudent(), outValue);
+        }
+    }
+
+    // Incremental Job 4, new Job 1 records: one change marker per student and split
+    public static class ChangedStudentMapper extends RunReport.TimedMapper<Writable, Writable, Text, Text> {
+        static final Text MARKER = new Text("*");
+        private Set<Text> seen = new HashSet<>();
+        private ActivityReader reader = new ActivityReader();
+        private ActivityKey activity = new ActivityKey();
+        private LongWritable clicks = new LongWritable();
+
+        @Override
+        public void map(Writable key, Writable value, Context context) throws IOException, InterruptedException {
+            if (!reader.read(key, value, activity, clicks)) {
+                context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
                 return;
-            String studentId = keys[0];
-            String featureName = keys[1] + "-" + keys[2];
-            String clicks = line[1];
-            context.write(new Text(studentId), new Text(featureName + ":" + clicks));
+            }
+            if (!seen.contains(activity.getStudent())) {
+                Text student = new Text(activity.getStudent());
+                seen.add(student);
+                context.write(student, MARKER);
+            }
         }
     }
 
-    public static class PivotReducer extends Reducer<Text, Text, Text, Text> {
-        private List<String> featureList = new ArrayList<>();
+    public static class PivotReducer extends RunReport.TimedReducer<Text, Text, Text, Text> {
+        private FeatureDictionary dictionary;
+        private String[] cells = new String[0];
+        private boolean changedOnly;
 
         @Override
         protected void setup(Context context) throws IOException, InterruptedException {
+            changedOnly = context.getConfiguration().getBoolean(CHANGED_ONLY_KEY, false);
             URI[] cacheFiles = context.getCacheFiles();
             if (cacheFiles != null && cacheFiles.length > 0) {
-                try (BufferedReader reader = new BufferedReader(new FileReader("features.txt"))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        featureList.add(line.split("\t")[0]);
-                    }
-                }
+                dictionary = FeatureDictionary.load();
+                cells = new String[dictionary.size()];
             }
         }
 
         @Override
         public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            Map<String, String> studentClicks = new HashMap<>();
+            Arrays.fill(cells, null);
+            boolean changed = false;
             for (Text val : values) {
-                String[] parts = val.toString().split(":");
-                if (parts.length == 2)
-                    studentClicks.put(parts[0], parts[1]);
+                if (ChangedStudentMapper.MARKER.equals(val)) {
+                    changed = true;
+                    continue;
+                }
+                // "feature:clicks", the feature resolved in place on the value bytes
+                byte[] bytes = val.getBytes();
+                int length = val.getLength();
+                int colon = indexOf(bytes, 0, length, (byte) ':');
+                int index = colon < 0 || dictionary == null ? -1 : dictionary.indexOf(bytes, 0, colon);
+                if (index < 0 || colon + 1 == length || indexOf(bytes, colon + 1, length, (byte) ':') >= 0) {
+                    context.getCounter(OuladCounters.PIVOT_ENTRIES_DROPPED).increment(1);
+                    continue;
+                }
+                cells[index] = Text.decode(bytes, colon + 1, length - colon - 1);
             }
+            if (changedOnly && !changed)
+                return;
             StringBuilder vector = new StringBuilder();
-            for (int i = 0; i < featureList.size(); i++) {
+            for (int i = 0; i < cells.length; i++) {
                 if (i > 0)
                     vector.append(",");
-                vector.append(studentClicks.getOrDefault(featureList.get(i), "0"));
+                vector.append(cells[i] == null ? "0" : cells[i]);
             }
             context.write(key, new Text(vector.toString()));
+            context.getCounter(OuladCounters.STUDENTS_PIVOTED).increment(1);
+        }
+    }
+
+    // Sparse student vector: sorted feature indices and their click counts
+    public static class SparseVectorWritable implements Writable {
+        private int[] indices = new int[16];
+        private long[] values = new long[16];
+        private int size;
+
+        public void clear() {
+            size = 0;
+        }
+
+        // Indices must be added in increasing order
+        public void add(int index, long value) {
+            if (size == indices.length) {
+                indices = Arrays.copyOf(indices, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            indices[size] = index;
+            values[size] = value;
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int indexAt(int i) {
+            return indices[i];
+        }
+
+        public long valueAt(int i) {
+            return values[i];
+        }
+
+        // Indices are delta-encoded, both arrays as variable-length integers
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, size);
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                WritableUtils.writeVInt(out, indices[i] - previous);
+                WritableUtils.writeVLong(out, values[i]);
+                previous = indices[i];
+            }
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            size = 0;
+            int n = WritableUtils.readVInt(in);
+            if (indices.length < n) {
+                indices = new int[n];
+                values = new long[n];
+            }
+            int previous = 0;
+            for (int i = 0; i < n; i++) {
+                previous += WritableUtils.readVInt(in);
+                indices[i] = previous;
+                values[i] = WritableUtils.readVLong(in);
+            }
+            size = n;
+        }
+    }
+
+    // Sparse pivot: only the features the student interacted with, by dictionary index
+    public static class SparsePivotReducer extends RunReport.TimedReducer<Text, Text, Text, SparseVectorWritable> {
+        private FeatureDictionary dictionary;
+        private SparseVectorWritable vector = new SparseVectorWritable();
+        private boolean changedOnly;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            changedOnly = context.getConfiguration().getBoolean(CHANGED_ONLY_KEY, false);
+            dictionary = FeatureDictionary.load();
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            // (index, position) pairs packed in a long so that one sort orders them by index;
+            // the clicks stay full longs, as in the dense vector
+            long[] entries = new long[8];
+            long[] clicksAt = new long[8];
+            int n = 0;
+            long dropped = 0;
+            boolean changed = false;
+            for (Text val : values) {
+                if (ChangedStudentMapper.MARKER.equals(val)) {
+                    changed = true;
+                    continue;
+                }
+                // "feature:clicks", parsed in place on the value bytes
+                byte[] bytes = val.getBytes();
+                int length = val.getLength();
+                int colon = indexOf(bytes, 0, length, (byte) ':');
+                if (colon < 0 || indexOf(bytes, colon + 1, length, (byte) ':') >= 0) {
+                    dropped++;
+                    continue;
+                }
+                int index = dictionary.indexOf(bytes, 0, colon);
+                long clicks = parseLongOrZero(bytes, colon + 1, length);
+                if (index < 0 || clicks <= 0) {
+                    dropped++;
+                    continue;
+                }
+                if (n == entries.length) {
+                    entries = Arrays.copyOf(entries, n * 2);
+                    clicksAt = Arrays.copyOf(clicksAt, n * 2);
+                }
+                clicksAt[n] = clicks;
+                entries[n] = ((long) index << 32) | n;
+                n++;
+            }
+            if (changedOnly && !changed)
+                return;
+            Arrays.sort(entries, 0, n);
+
+            vector.clear();
+            for (int i = 0; i < n; i++) {
+                vector.add((int) (entries[i] >>> 32), clicksAt[(int) entries[i]]);
+            }
+            context.write(key, vector);
+            context.getCounter(OuladCounters.STUDENTS_PIVOTED).increment(1);
+            if (dropped > 0)
+                context.getCounter(OuladCounters.PIVOT_ENTRIES_DROPPED).increment(dropped);
         }
     }
 
     // ==========================================
     // JOB 5: SCORING
     // ==========================================
-    public static class ScoringMapper extends Mapper<LongWritable, Text, Text, Text> {
-        private List<String> featureList = new ArrayList<>();
-        private List<String> featureTypes = new ArrayList<>();
+    // Hot path: no String, split, boxing or String.format per student. Features and their
+    // type IDs are resolved once in setup(), the vector is parsed over the Text bytes and
+    // scores are written into a reused byte buffer.
+    public static class ScoringMapper extends RunReport.TimedMapper<LongWritable, Text, Text, Text> {
+        private FeatureDictionary dictionary;
+        private int featureCount;
+        private int[] featureTypeIds = new int[0];
+        private long[] clicks = new long[0];
+        private long[] typeSums = new long[0];
+        private TopK top;
+        private ScoreBuffer scores = new ScoreBuffer();
+        private Text outKey = new Text();
+        private Text outValue = new Text();
+        private Counter scored;
+        private Counter rejected;
 
         @Override
         protected void setup(Context context) throws IOException, InterruptedException {
+            scored = context.getCounter(OuladCounters.STUDENTS_SCORED);
+            rejected = context.getCounter(OuladCounters.VECTORS_REJECTED);
+            int k = context.getConfiguration().getInt(TOP_K_KEY, 0);
+            if (k > 0)
+                top = new TopK(k);
             URI[] cacheFiles = context.getCacheFiles();
             if (cacheFiles != null && cacheFiles.length > 0) {
-                try (BufferedReader reader = new BufferedReader(new FileReader("features.txt"))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        // Line format: id_site-activity_type \t dummy_val
-                        String feature = line.split("\t")[0];
-                        featureList.add(feature);
-
-                        // Extract activity_type (everything after the first hyphen)
-                        // Example: 123-video -> video
-                        // Example: 456-resource-external -> resource-external (if any)
-                        // Safe assumption: id_site is numeric, so split on first hyphen.
-                        int hyphenIdx = feature.indexOf('-');
-                        if (hyphenIdx != -1) {
-                            featureTypes.add(feature.substring(hyphenIdx + 1));
-                        } else {
-                            featureTypes.add("unknown");
-                        }
-                    }
+                dictionary = FeatureDictionary.load();
+                featureCount = dictionary.size();
+                featureTypeIds = new int[featureCount];
+                for (int i = 0; i < featureCount; i++) {
+                    featureTypeIds[i] = dictionary.typeId(i);
                 }
+                clicks = new long[featureCount];
+                typeSums = new long[dictionary.typeCount()];
             }
         }
 
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-            String[] line = value.toString().split("\t");
-            if (line.length < 2)
+            // Line format: studentId \t c0,c1,...,cN
+            byte[] bytes = value.getBytes();
+            int length = value.getLength();
+            int tab = indexOf(bytes, 0, length, (byte) '\t');
+            if (tab < 0) {
+                context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
                 return;
-            String studentId = line[0];
-            String[] clicksStr = line[1].split(",");
+            }
+            int end = indexOf(bytes, tab + 1, length, (byte) '\t');
+            if (end < 0)
+                end = length;
 
-            if (clicksStr.length != featureList.size())
+            // 1. Parse clicks, calculate totals and interactions by type for THIS student
+            int n = 0;
+            int pos = tab + 1;
+            while (true) {
+                int comma = indexOf(bytes, pos, end, (byte) ',');
+                int fieldEnd = comma < 0 ? end : comma;
+                if (n == featureCount) {
+                    rejected.increment(1);
+                    return; // More entries than features
+                }
+                clicks[n++] = parseLongOrZero(bytes, pos, fieldEnd);
+                if (comma < 0)
+                    break;
+                pos = comma + 1;
+            }
+            if (n != featureCount) {
+                rejected.increment(1);
                 return;
+            }
 
             long studentTotal = 0;
-            long[] clicks = new long[clicksStr.length];
-            Map<String, Long> interactionsByType = new HashMap<>();
-
-            // 1. Calculate totals and interactions by type for THIS student
-            for (int i = 0; i < clicksStr.length; i++) {
-                try {
-                    clicks[i] = Long.parseLong(clicksStr[i]);
-                } catch (NumberFormatException e) {
-                    clicks[i] = 0;
-                }
-
+            Arrays.fill(typeSums, 0);
+            for (int i = 0; i < featureCount; i++) {
                 if (clicks[i] > 0) {
                     studentTotal += clicks[i];
-                    String type = featureTypes.get(i);
-                    interactionsByType.put(type, interactionsByType.getOrDefault(type, 0L) + clicks[i]);
+                    typeSums[featureTypeIds[i]] += clicks[i];
                 }
             }
 
-            if (studentTotal == 0)
+            if (studentTotal == 0) {
+                context.getCounter(OuladCounters.STUDENTS_WITHOUT_CLICKS).increment(1);
                 return;
+            }
 
             // 2. Calculate scores
-            StringBuilder scores = new StringBuilder();
-            for (int i = 0; i < clicks.length; i++) {
-                double score = 0.0;
-
-                // Rule a: If interaction exists, score is 0
-                if (clicks[i] > 0) {
-                    score = 0.0;
-                } else {
-                    // Rule b: sum of interactions by type * 100 / total interactions
-                    String type = featureTypes.get(i);
-                    long typeSum = interactionsByType.getOrDefault(type, 0L);
-                    score = (double) (typeSum * 100) / studentTotal;
+            // Rule a: If interaction exists, score is 0
+            // Rule b: sum of interactions by type * 100 / total interactions
+            scores.reset();
+            if (top != null) {
+                // Same denominator for the whole student: numerators are compared directly
+                top.clear();
+                for (int i = 0; i < featureCount; i++) {
+                    if (clicks[i] == 0)
+                        top.offer(typeSums[featureTypeIds[i]], i);
+                }
+                top.appendTo(scores, dictionary, studentTotal);
+            } else {
+                for (int i = 0; i < featureCount; i++) {
+                    if (i > 0)
+                        scores.append((byte) ',');
+                    scores.appendPercent(clicks[i] > 0 ? 0 : typeSums[featureTypeIds[i]], studentTotal);
                 }
+            }
+            outKey.set(bytes, 0, tab);
+            scores.copyTo(outValue);
+            context.write(outKey, outValue);
+            scored.increment(1);
+        }
+    }
+
+    // Reused output buffer with a fixed-point decimal formatter
+    static class ScoreBuffer {
+        private byte[] buf = new byte[256];
+        private int len;
+
+        void reset() {
+            len = 0;
+        }
+
+        void append(byte b) {
+            ensure(1);
+            buf[len++] = b;
+        }
+
+        void append(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, len, bytes.length);
+            len += bytes.length;
+        }
+
+        // Writes part * 100 / total with two decimals, rounded half-up like "%.2f"
+        void appendPercent(long part, long total) {
+            long hundredths = (part * 20000 + total) / (2 * total);
+            appendLong(hundredths / 100);
+            ensure(3);
+            long cents = hundredths % 100;
+            buf[len++] = '.';
+            buf[len++] = (byte) ('0' + cents / 10);
+            buf[len++] = (byte) ('0' + cents % 10);
+        }
+
+        void appendLong(long v) {
+            ensure(20);
+            if (v < 0) {
+                buf[len++] = '-';
+                v = -v;
+            }
+            int start = len;
+            do {
+                buf[len++] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v > 0);
+            for (int i = start, j = len - 1; i < j; i++, j--) {
+                byte t = buf[i];
+                buf[i] = buf[j];
+                buf[j] = t;
+            }
+        }
+
+        void copyTo(Text text) {
+            text.set(buf, 0, len);
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length)
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
 
+    // Bounded min-heap of (score, feature index) pairs in primitive arrays, reused between
+    // records. The root is the weakest kept entry: lowest score, then highest index. Entries
+    // with a zero score are not recommendations and are never kept.
+    static class TopK {
+        private final long[] scores;
+        private final int[] indices;
+        private int size;
+
+        TopK(int capacity) {
+            scores = new long[capacity];
+            indices = new int[capacity];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void offer(long score, int index) {
+            if (score <= 0)
+                return;
+            if (size < scores.length) {
+                scores[size] = score;
+                indices[size] = index;
+                siftUp(size++);
+            } else if (better(score, index, scores[0], indices[0])) {
+                scores[0] = score;
+                indices[0] = index;
+                siftDown(0, size);
+            }
+        }
+
+        // Sorts the entries best first in place (heap sort); offer() needs a clear() after
+        void sort() {
+            for (int end = size - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+        }
+
+        long scoreAt(int i) {
+            return scores[i];
+        }
+
+        int indexAt(int i) {
+            return indices[i];
+        }
+
+        // "feature:score,..." best first, scores as percentages of total
+        void appendTo(ScoreBuffer out, FeatureDictionary dictionary, long total) {
+            sort();
+            for (int i = 0; i < size; i++) {
                 if (i > 0)
-                    scores.append(",");
-                scores.append(String.format("%.2f", score));
+                    out.append((byte) ',');
+                dictionary.appendFeature(indices[i], out);
+                out.append((byte) ':');
+                out.appendPercent(scores[i], total);
             }
-            context.write(new Text(studentId), new Text(scores.toString()));
+        }
+
+        private static boolean better(long score, int index, long otherScore, int otherIndex) {
+            return score > otherScore || (score == otherScore && index < otherIndex);
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!better(scores[parent], indices[parent], scores[i], indices[i]))
+                    return;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i, int end) {
+            while (true) {
+                int weakest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < end && better(scores[weakest], indices[weakest], scores[left], indices[left]))
+                    weakest = left;
+                if (right < end && better(scores[weakest], indices[weakest], scores[right], indices[right]))
+                    weakest = right;
+                if (weakest == i)
+                    return;
+                swap(i, weakest);
+                i = weakest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long score = scores[a];
+            scores[a] = scores[b];
+            scores[b] = score;
+            int index = indices[a];
+            indices[a] = indices[b];
+            indices[b] = index;
         }
     }
 
-    private static String[] parseCsv(String line) {
-        // Strip quotes as OULAD files wrap fields in quotes
-        return line.replace("\"", "").split(",");
+    static int indexOf(byte[] bytes, int from, int to, byte b) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == b)
+                return i;
+        }
+        return -1;
     }
 
-    public static void main(String[] args) throws Exception {
-        Configuration conf = new Configuration();
-        String outputBase = args[2];
+    // Same result as Long.parseLong on the field, 0 when it is not a valid number
+    static long parseLongOrZero(byte[] bytes, int from, int to) {
+        if (from >= to)
+            return 0;
+        boolean negative = false;
+        if (bytes[from] == '-' || bytes[from] == '+') {
+            negative = bytes[from] == '-';
+            from++;
+            if (from == to)
+                return 0;
+        }
+        if (to - from > 18)
+            return 0;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = bytes[i] - '0';
+            if (d < 0 || d > 9)
+                return 0;
+            v = v * 10 + d;
+        }
+        return negative ? -v : v;
+    }
+
+    // Job 5 on sparse vectors: per-type totals come from the non-zero entries only
+    public static class SparseScoringMapper extends RunReport.TimedMapper<Text, SparseVectorWritable, Text, Text> {
+        private FeatureDictionary dictionary;
+        private int featureCount;
+        private int[] featureTypeIds;
+        private long[] typeSums;
+        private byte[][] typeNameBytes;
+        private boolean denseOutput;
+        private TopK top;
+        private ScoreBuffer scores = new ScoreBuffer();
+        private Text outValue = new Text();
+        private Counter scored;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            scored = context.getCounter(OuladCounters.STUDENTS_SCORED);
+            denseOutput = !"sparse".equals(context.getConfiguration().get(SCORING_OUTPUT_KEY, "dense"));
+            int k = context.getConfiguration().getInt(TOP_K_KEY, 0);
+            if (k > 0)
+                top = new TopK(k);
+
+            dictionary = FeatureDictionary.load();
+            featureCount = dictionary.size();
+            featureTypeIds = new int[featureCount];
+            for (int i = 0; i < featureCount; i++) {
+                featureTypeIds[i] = dictionary.typeId(i);
+            }
+            typeSums = new long[dictionary.typeCount()];
+            typeNameBytes = new byte[typeSums.length][];
+            for (int t = 0; t < typeNameBytes.length; t++) {
+                typeNameBytes[t] = (dictionary.typeName(t) + "=").getBytes(StandardCharsets.UTF_8);
+            }
+        }
+
+        @Override
+        public void map(Text key, SparseVectorWritable value, Context context) throws IOException, InterruptedException {
+            Arrays.fill(typeSums, 0);
+            long studentTotal = 0;
+            for (int k = 0; k < value.size(); k++) {
+                int index = value.indexAt(k);
+                if (index >= featureCount) {
+                    context.getCounter(OuladCounters.VECTORS_REJECTED).increment(1);
+                    return; // Vector built with another feature dictionary
+                }
+                studentTotal += value.valueAt(k);
+                typeSums[featureTypeIds[index]] += value.valueAt(k);
+            }
+
+            if (studentTotal == 0) {
+                context.getCounter(OuladCounters.STUDENTS_WITHOUT_CLICKS).increment(1);
+                return;
+            }
+
+            scores.reset();
+            if (top != null) {
+                // Unvisited features only, ascending index between the visited ones
+                top.clear();
+                int next = 0;
+                for (int i = 0; i < featureCount; i++) {
+                    if (next < value.size() && value.indexAt(next) == i)
+                        next++;
+                    else
+                        top.offer(typeSums[featureTypeIds[i]], i);
+                }
+                top.appendTo(scores, dictionary, studentTotal);
+            } else if (denseOutput) {
+                // Rule a: visited feature -> 0; rule b: type sum * 100 / total
+                int next = 0;
+                for (int i = 0; i < featureCount; i++) {
+                    long part = 0;
+                    if (next < value.size() && value.indexAt(next) == i) {
+                        next++;
+                    } else {
+                        part = typeSums[featureTypeIds[i]];
+                    }
+                    if (i > 0)
+                        scores.append((byte) ',');
+                    scores.appendPercent(part, studentTotal);
+                }
+            } else {
+                // type=score,... | visited feature indices (score 0); other features score by type
+                boolean first = true;
+                for (int t = 0; t < typeSums.length; t++) {
+                    if (typeSums[t] == 0)
+                        continue;
+                    if (!first)
+                        scores.append((byte) ',');
+                    scores.append(typeNameBytes[t]);
+                    scores.appendPercent(typeSums[t], studentTotal);
+                    first = false;
+                }
+                scores.append((byte) '|');
+                for (int k = 0; k < value.size(); k++) {
+                    if (k > 0)
+                        scores.append((byte) ',');
+                    scores.appendLong(value.indexAt(k));
+                }
+            }
+            scores.copyTo(outValue);
+            context.write(key, outValue);
+            scored.increment(1);
+        }
+    }
+
+    // ==========================================
+    // JOB 6 (optional): TOP-K FEATURES PER ACTIVITY TYPE
+    // ==========================================
+    // Input: Job 5 top-K lines "student \t feature:score,...". Students per feature are
+    // counted in memory (one slot per dictionary feature) and written in cleanup(), one
+    // sparse vector (feature index -> students) per activity type.
+    public static class TypeTopKMapper extends RunReport.TimedMapper<LongWritable, Text, Text, SparseVectorWritable> {
+        private FeatureDictionary dictionary;
+        private long[] students;
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            dictionary = FeatureDictionary.load();
+            students = new long[dictionary.size()];
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            byte[] bytes = value.getBytes();
+            int length = value.getLength();
+            int pos = indexOf(bytes, 0, length, (byte) '\t') + 1;
+            if (pos == 0) {
+                context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
+                return;
+            }
+            while (pos < length) {
+                int comma = indexOf(bytes, pos, length, (byte) ',');
+                int end = comma < 0 ? length : comma;
+                int colon = indexOf(bytes, pos, end, (byte) ':');
+                int index = colon < 0 ? -1 : dictionary.indexOf(bytes, pos, colon);
+                if (index < 0)
+                    context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
+                else
+                    students[index]++;
+                pos = end + 1;
+            }
+        }
 
-        // JOB 1
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            SparseVectorWritable[] byType = new SparseVectorWritable[dictionary.typeCount()];
+            for (int i = 0; i < students.length; i++) {
+                if (students[i] == 0)
+                    continue;
+                int type = dictionary.typeId(i);
+                if (byType[type] == null)
+                    byType[type] = new SparseVectorWritable();
+                byType[type].add(i, students[i]);
+            }
+            Text type = new Text();
+            for (int t = 0; t < byType.length; t++) {
+                if (byType[t] != null) {
+                    type.set(dictionary.typeName(t));
+                    context.write(type, byType[t]);
+                }
+            }
+        }
+    }
+
+    // Output: "activity_type \t feature:students,..." for the K most recommended features
+    public static class TypeTopKReducer extends RunReport.TimedReducer<Text, SparseVectorWritable, Text, Text> {
+        private FeatureDictionary dictionary;
+        private long[] students;
+        private int[] touched;
+        private TopK top;
+        private ScoreBuffer line = new ScoreBuffer();
+        private Text outValue = new Text();
+
+        @Override
+        protected void setup(Context context) throws IOException, InterruptedException {
+            dictionary = FeatureDictionary.load();
+            students = new long[dictionary.size()];
+            touched = new int[dictionary.size()];
+            top = new TopK(Math.max(1, context.getConfiguration().getInt(TOP_K_KEY, 0)));
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<SparseVectorWritable> values, Context context) throws IOException, InterruptedException {
+            int touchedCount = 0;
+            for (SparseVectorWritable vector : values) {
+                for (int k = 0; k < vector.size(); k++) {
+                    int index = vector.indexAt(k);
+                    if (students[index] == 0)
+                        touched[touchedCount++] = index;
+                    students[index] += vector.valueAt(k);
+                }
+            }
+            top.clear();
+            for (int k = 0; k < touchedCount; k++) {
+                top.offer(students[touched[k]], touched[k]);
+                students[touched[k]] = 0;
+            }
+            top.sort();
+            line.reset();
+            for (int i = 0; i < top.size(); i++) {
+                if (i > 0)
+                    line.append((byte) ',');
+                dictionary.appendFeature(top.indexAt(i), line);
+                line.append((byte) ':');
+                line.appendLong(top.scoreAt(i));
+            }
+            line.copyTo(outValue);
+            context.write(key, outValue);
+        }
+    }
+
+    // ==========================================
+    // INCREMENTAL RUN: SCORE MERGE
+    // ==========================================
+    // Job 5 lines "student \t scores" tagged with their origin: the new score of a student
+    // (tag 0) replaces the previous one (tag 1)
+    public static class ScoreLineMapper extends RunReport.TimedMapper<LongWritable, Text, Text, Text> {
+        private final byte[] tag;
+        private Text student = new Text();
+        private Text tagged = new Text();
+
+        protected ScoreLineMapper(char tag) {
+            this.tag = new byte[] { (byte) tag };
+        }
+
+        @Override
+        public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+            byte[] bytes = value.getBytes();
+            int tab = indexOf(bytes, 0, value.getLength(), (byte) '\t');
+            if (tab < 0) {
+                context.getCounter(OuladCounters.MALFORMED_ROWS).increment(1);
+                return;
+            }
+            student.set(bytes, 0, tab);
+            tagged.set(tag, 0, 1);
+            tagged.append(bytes, tab + 1, value.getLength() - tab - 1);
+            context.write(student, tagged);
+        }
+    }
+
+    public static class NewScoreMapper extends ScoreLineMapper {
+        public NewScoreMapper() {
+            super('0');
+        }
+    }
+
+    public static class PreviousScoreMapper extends ScoreLineMapper {
+        public PreviousScoreMapper() {
+            super('1');
+        }
+    }
+
+    public static class ScoreMergeReducer extends RunReport.TimedReducer<Text, Text, Text, Text> {
+        private Text scores = new Text();
+
+        @Override
+        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+            byte best = Byte.MAX_VALUE;
+            for (Text val : values) {
+                if (val.getLength() > 0 && val.getBytes()[0] < best) {
+                    best = val.getBytes()[0];
+                    scores.set(val.getBytes(), 1, val.getLength() - 1);
+                }
+            }
+            if (best != Byte.MAX_VALUE)
+                context.write(key, scores);
+        }
+    }
+
+    // ==========================================
+    // FEATURE DICTIONARY (Job 2 side output -> Jobs 4 and 5)
+    // ==========================================
+    // Binary dictionary built by the driver from the feature names written by the Job 2
+    // reducers: features sorted in Text byte order, dense index = rank, plus the activity-type
+    // table. Tasks map it read-only from the distributed cache (link features.dict); one
+    // mapping per file is shared by all the tasks of a JVM (local runner threads, uber tasks,
+    // JVM reuse).
+    //
+    // Layout (big-endian): magic, featureCount, typeCount, then per type its UTF-8 name
+    // (int length + bytes), one int type ID per feature, featureCount + 1 int name offsets
+    // relative to the name blob, and the name blob itself.
+    public static class FeatureDictionary {
+        static final String FILE_NAME = "features.dict";
+        private static final int MAGIC = 0x4F464431; // "OFD1"
+        private static final Map<String, FeatureDictionary> CACHE = new ConcurrentHashMap<>();
+
+        private final ByteBuffer buffer;
+        private final int size;
+        private final String[] typeNames;
+        private final int typeIdsPos;
+        private final int offsetsPos;
+        private final int namesPos;
+
+        private FeatureDictionary(ByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            if (buffer.getInt(0) != MAGIC)
+                throw new IOException("Not a feature dictionary");
+            size = buffer.getInt(4);
+            typeNames = new String[buffer.getInt(8)];
+            int pos = 12;
+            for (int t = 0; t < typeNames.length; t++) {
+                int length = buffer.getInt(pos);
+                byte[] name = new byte[length];
+                for (int i = 0; i < length; i++)
+                    name[i] = buffer.get(pos + 4 + i);
+                typeNames[t] = new String(name, StandardCharsets.UTF_8);
+                pos += 4 + length;
+            }
+            typeIdsPos = pos;
+            offsetsPos = typeIdsPos + 4 * size;
+            namesPos = offsetsPos + 4 * (size + 1);
+        }
+
+        // Dictionary of the distributed cache link, mapped once per JVM
+        public static FeatureDictionary load() throws IOException {
+            return load(new File(FILE_NAME));
+        }
+
+        static FeatureDictionary load(File file) throws IOException {
+            // The link of each task resolves to the same localized file
+            String key = file.getCanonicalPath() + ":" + file.length() + ":" + file.lastModified();
+            FeatureDictionary dictionary = CACHE.get(key);
+            if (dictionary == null) {
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    dictionary = new FeatureDictionary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                }
+                FeatureDictionary previous = CACHE.putIfAbsent(key, dictionary);
+                if (previous != null)
+                    dictionary = previous;
+            }
+            return dictionary;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int typeCount() {
+            return typeNames.length;
+        }
+
+        public int typeId(int index) {
+            return buffer.getInt(typeIdsPos + 4 * index);
+        }
+
+        public String typeName(int typeId) {
+            return typeNames[typeId];
+        }
+
+        public String feature(int index) {
+            int from = namesPos + buffer.getInt(offsetsPos + 4 * index);
+            byte[] name = new byte[namesPos + buffer.getInt(offsetsPos + 4 * index + 4) - from];
+            for (int i = 0; i < name.length; i++)
+                name[i] = buffer.get(from + i);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+
+        // Appends the UTF-8 name of a feature without decoding it
+        void appendFeature(int index, ScoreBuffer out) {
+            int from = namesPos + buffer.getInt(offsetsPos + 4 * index);
+            int to = namesPos + buffer.getInt(offsetsPos + 4 * index + 4);
+            for (int i = from; i < to; i++)
+                out.append(buffer.get(i));
+        }
+
+        // Index of the feature spelled by bytes[from, to), -1 when unknown (binary search)
+        public int indexOf(byte[] bytes, int from, int to) {
+            int low = 0;
+            int high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compareName(mid, bytes, from, to);
+                if (cmp < 0)
+                    low = mid + 1;
+                else if (cmp > 0)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        private int compareName(int index, byte[] bytes, int from, int to) {
+            int start = namesPos + buffer.getInt(offsetsPos + 4 * index);
+            int end = namesPos + buffer.getInt(offsetsPos + 4 * index + 4);
+            int n = Math.min(end - start, to - from);
+            for (int i = 0; i < n; i++) {
+                int a = buffer.get(start + i) & 0xff;
+                int b = bytes[from + i] & 0xff;
+                if (a != b)
+                    return a - b;
+            }
+            return (end - start) - (to - from);
+        }
+
+        // Writes the dictionary of features already sorted in Text byte order. Type IDs
+        // follow the first appearance of each type in that order.
+        static void write(List<Text> features, OutputStream stream) throws IOException {
+            Map<String, Integer> typeIds = new HashMap<>();
+            List<String> types = new ArrayList<>();
+            int[] featureTypes = new int[features.size()];
+            for (int i = 0; i < features.size(); i++) {
+                String type = activityType(features.get(i).toString());
+                Integer id = typeIds.get(type);
+                if (id == null) {
+                    id = types.size();
+                    typeIds.put(type, id);
+                    types.add(type);
+                }
+                featureTypes[i] = id;
+            }
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(MAGIC);
+            out.writeInt(features.size());
+            out.writeInt(types.size());
+            for (String type : types) {
+                byte[] name = type.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+            }
+            for (int id : featureTypes)
+                out.writeInt(id);
+            int offset = 0;
+            out.writeInt(0);
+            for (Text feature : features) {
+                offset += feature.getLength();
+                out.writeInt(offset);
+            }
+            for (Text feature : features)
+                out.write(feature.getBytes(), 0, feature.getLength());
+            out.flush();
+        }
+
+        // Driver side, after Job 2: merges the features of all part-r-* files (compressed like
+        // job2_agg when the intermediates are) into <features>/features.dict
+        static void build(Configuration conf, Path featuresDir) throws IOException {
+            FileSystem fs = featuresDir.getFileSystem(conf);
+            CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+            List<Text> features = new ArrayList<>();
+            for (FileStatus part : fs.globStatus(new Path(featuresDir, "part-r-*"))) {
+                CompressionCodec codec = codecs.getCodec(part.getPath());
+                InputStream in = codec == null ? fs.open(part.getPath()) : codec.createInputStream(fs.open(part.getPath()));
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        int tab = line.indexOf('\t');
+                        features.add(new Text(tab < 0 ? line : line.substring(0, tab)));
+                    }
+                }
+            }
+            // Each part is sorted, but two Job 2 reducers may both see a feature: sort, then dedupe
+            Collections.sort(features);
+            int distinct = 0;
+            for (Text feature : features) {
+                if (distinct == 0 || !feature.equals(features.get(distinct - 1)))
+                    features.set(distinct++, feature);
+            }
+            features.subList(distinct, features.size()).clear();
+            try (OutputStream out = fs.create(new Path(featuresDir, FILE_NAME), true)) {
+                write(features, out);
+            }
+        }
+    }
+
+    // id_site is numeric, so the activity type is everything after the first hyphen
+    private static String activityType(String feature) {
+        int hyphenIdx = feature.indexOf('-');
+        return hyphenIdx != -1 ? feature.substring(hyphenIdx + 1) : "unknown";
+    }
+
+    // First codec among zstd, Snappy, LZ4 and zlib able to compress on this JVM (native
+    // libraries may be missing), unless oulad.intermediate.codec names one explicitly
+    // (IllegalArgumentException when that class is missing or is not a codec)
+    @SuppressWarnings("unchecked")
+    static Class<? extends CompressionCodec> chooseCodec(Configuration conf) {
+        String forced = conf.get(INTERMEDIATE_CODEC_KEY);
+        if (forced != null) {
+            Class<?> codec = conf.getClassByNameOrNull(forced);
+            if (codec == null || !CompressionCodec.class.isAssignableFrom(codec))
+                throw new IllegalArgumentException(INTERMEDIATE_CODEC_KEY + "=" + forced + ": "
+                        + (codec == null ? "class not found" : "not a " + CompressionCodec.class.getName()));
+            return codec.asSubclass(CompressionCodec.class);
+        }
+
+        Class<?>[] candidates = { ZStandardCodec.class, SnappyCodec.class, Lz4Codec.class };
+        for (Class<?> candidate : candidates) {
+            try {
+                CompressionCodec codec = (CompressionCodec) ReflectionUtils.newInstance(candidate, conf);
+                try (OutputStream out = codec.createOutputStream(new ByteArrayOutputStream())) {
+                    out.write(new byte[] { 1, 2, 3 });
+                }
+                return (Class<? extends CompressionCodec>) candidate;
+            } catch (Throwable e) {
+                // Native library not loaded: try the next codec
+            }
+        }
+        return DefaultCodec.class;
+    }
+
+    // Block-compressed SequenceFile output for an intermediate stage
+    static void setIntermediateOutput(Job job, Class<? extends CompressionCodec> codec) {
+        job.setOutputFormatClass(SequenceFileOutputFormat.class);
+        FileOutputFormat.setCompressOutput(job, true);
+        FileOutputFormat.setOutputCompressorClass(job, codec);
+        SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
+    }
+
+    // Quote-aware CSV tokenizer over the bytes of a line: field offsets go into reused int
+    // arrays and fields are compared or copied without decoding to String. Quotes around a
+    // field are skipped and "" inside a quoted field is one quote; fields point into the line
+    // itself, only a line holding an escaped quote is copied (once, into a reused buffer).
+    public static class CsvFields {
+        private static final byte QUOTE = '"';
+        private final byte delimiter;
+        private byte[] data = new byte[0];
+        private byte[] scratch = new byte[0];
+        private int[] starts = new int[8];
+        private int[] ends = new int[8];
+        private int count;
+
+        public CsvFields() {
+            this((byte) ',');
+        }
+
+        public CsvFields(byte delimiter) {
+            this.delimiter = delimiter;
+        }
+
+        // Number of fields of the line; an empty line has one empty field
+        public int parse(Text line) {
+            return parse(line.getBytes(), line.getLength());
+        }
+
+        public int parse(byte[] line, int length) {
+            return parse(line, 0, length);
+        }
+
+        // Fields of line[from, to), e.g. one column of a record already split on another delimiter
+        public int parse(byte[] line, int from, int to) {
+            data = line;
+            count = 0;
+            boolean copying = false;
+            int r = from;
+            int w = from;
+            do {
+                boolean quoted = r < to && line[r] == QUOTE;
+                if (quoted) {
+                    r++;
+                    if (!copying)
+                        w = r;
+                }
+                int start = w;
+                while (r < to) {
+                    byte b = line[r];
+                    if (quoted && b == QUOTE) {
+                        boolean escaped = r + 1 < to && line[r + 1] == QUOTE;
+                        if (!escaped) {
+                            // Closing quote: text up to the delimiter is kept as is
+                            quoted = false;
+                            r++;
+                            if (!copying && r < to && line[r] != delimiter)
+                                copying = startCopy(line, to, w);
+                            continue;
+                        }
+                        if (!copying)
+                            copying = startCopy(line, to, w);
+                        r++;
+                    } else if (!quoted && b == delimiter) {
+                        break;
+                    }
+                    if (copying)
+                        scratch[w] = b;
+                    w++;
+                    r++;
+                }
+                add(start, w);
+                r++;
+                if (!copying)
+                    w = r;
+            } while (r <= to);
+            return count;
+        }
+
+        // From here on fields are rebuilt in scratch, whose head equals the line up to w
+        private boolean startCopy(byte[] line, int to, int w) {
+            if (scratch.length < to)
+                scratch = new byte[Math.max(to, scratch.length * 2)];
+            System.arraycopy(line, 0, scratch, 0, w);
+            data = scratch;
+            return true;
+        }
+
+        private void add(int start, int end) {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        // Backing array of the fields: the line, or the unescaped copy
+        public byte[] bytes() {
+            return data;
+        }
+
+        public int start(int field) {
+            return starts[field];
+        }
+
+        public int end(int field) {
+            return ends[field];
+        }
+
+        public int length(int field) {
+            return ends[field] - starts[field];
+        }
+
+        public boolean is(int field, byte[] expected) {
+            int start = starts[field];
+            if (ends[field] - start != expected.length)
+                return false;
+            for (int i = 0; i < expected.length; i++) {
+                if (data[start + i] != expected[i])
+                    return false;
+            }
+            return true;
+        }
+
+        public void copyTo(int field, Text target) {
+            target.set(data, starts[field], ends[field] - starts[field]);
+        }
+
+        public void appendTo(int field, Text target) {
+            target.append(data, starts[field], ends[field] - starts[field]);
+        }
+
+        public String string(int field) {
+            return new String(data, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+        }
+
+        // Click count of the field, -1 when it is not a number (see parseClicks)
+        public long clicks(int field) {
+            return parseClicks(data, starts[field], ends[field]);
+        }
+    }
+
+    static boolean sequenceIntermediates(Configuration conf) {
+        return !"text".equals(conf.get(INTERMEDIATE_KEY, "sequence"));
+    }
+
+    // JOB 1: studentVle partitions joined with vle.csv, filtered on DDD 2013B/2013J
+    static Job joinJob(Configuration conf, List<Path> studentVle, Path vlePath, Path output, Path skewPlan) throws Exception {
         Job job1 = Job.getInstance(conf, "Join");
         job1.setJarByClass(OuladRecommendation.class);
-        MultipleInputs.addInputPath(job1, new Path(args[0]), TextInputFormat.class, StudentVleMapper.class);
-        MultipleInputs.addInputPath(job1, new Path(args[1]), TextInputFormat.class, VleMapper.class);
-        job1.setReducerClass(JoinReducer.class);
-        job1.setOutputKeyClass(Text.class);
-        job1.setOutputValueClass(Text.class);
-        FileOutputFormat.setOutputPath(job1, new Path(outputBase + "/job1_join"));
-        if (!job1.waitForCompletion(true))
-            System.exit(1);
-
-        // JOB 2
+        String joinMode = conf.get(JOIN_KEY, "reduce");
+        if ("broadcast".equals(joinMode)) {
+            // Map-side join: vle.csv is small once filtered, no shuffle of studentVle
+            job1.addCacheFile(new URI(vlePath.getFileSystem(conf).makeQualified(vlePath).toUri() + "#" + VLE_LINK));
+            job1.setMapperClass(StudentVleMapper.class);
+            job1.setNumReduceTasks(0);
+            for (Path path : studentVle)
+                FileInputFormat.addInputPath(job1, path);
+        } else if ("sorted".equals(joinMode)) {
+            // Reduce-side join without buffering: V record first thanks to the secondary sort
+            for (Path path : studentVle)
+                MultipleInputs.addInputPath(job1, path, TextInputFormat.class, TaggedStudentVleMapper.class);
+            MultipleInputs.addInputPath(job1, vlePath, TextInputFormat.class, TaggedVleMapper.class);
+            job1.setMapOutputKeyClass(SiteTagKey.class);
+            job1.setMapOutputValueClass(Text.class);
+            job1.setPartitionerClass(SitePartitioner.class);
+            job1.setGroupingComparatorClass(SiteGroupingComparator.class);
+            job1.setReducerClass(StreamingJoinReducer.class);
+        } else {
+            for (Path path : studentVle)
+                MultipleInputs.addInputPath(job1, path, TextInputFormat.class, StudentVleMapper.class);
+            MultipleInputs.addInputPath(job1, vlePath, TextInputFormat.class, VleMapper.class);
+            job1.setMapOutputKeyClass(Text.class);
+            job1.setMapOutputValueClass(Text.class);
+            job1.setReducerClass(JoinReducer.class);
+        }
+        job1.setOutputKeyClass(ActivityKey.class);
+        job1.setOutputValueClass(LongWritable.class);
+        if (sequenceIntermediates(conf))
+            setIntermediateOutput(job1, chooseCodec(conf));
+        FileOutputFormat.setOutputPath(job1, output);
+        if (conf.getBoolean(SKEW_KEY, false) && !"broadcast".equals(joinMode)) {
+            // Weight of a site = its number of studentVle rows
+            CsvFields fields = new CsvFields();
+            Text row = new Text();
+            SkewPartitioning.configure(job1, skewPlan, studentVle, (line, keys) -> {
+                row.set(line);
+                if (fields.parse(row) >= 6 && !fields.is(0, STUDENT_VLE_HEADER))
+                    keys.add(fields.string(3));
+            });
+            if ("sorted".equals(joinMode))
+                job1.setPartitionerClass(SiteSkewPartitioner.class);
+        }
+        return job1;
+    }
+
+    // JOB 2: click sums per (student, site, type), plus the feature names of former Job 3 in
+    // the "_features" side output. The inputs may mix Job 1 records and a previous Job 2
+    // output (incremental merge): both have the same format.
+    static Job aggregationJob(Configuration conf, List<Path> inputs, Path output) throws Exception {
         Job job2 = Job.getInstance(conf, "Agg");
         job2.setJarByClass(OuladRecommendation.class);
-        job2.setMapperClass(AggregationMapper.class);
-        job2.setReducerClass(AggregationReducer.class);
-        job2.setOutputKeyClass(Text.class);
-        job2.setOutputValueClass(Text.class);
-        FileInputFormat.addInputPath(job2, new Path(outputBase + "/job1_join"));
-        FileOutputFormat.setOutputPath(job2, new Path(outputBase + "/job2_agg"));
-        if (!job2.waitForCompletion(true))
-            System.exit(1);
-
-        // JOB 3
-        Job job3 = Job.getInstance(conf, "Feat");
-        job3.setJarByClass(OuladRecommendation.class);
-        job3.setMapperClass(FeatureMapper.class);
-        job3.setReducerClass(FeatureReducer.class);
-        job3.setOutputKeyClass(Text.class);
-        job3.setOutputValueClass(Text.class);
-        FileInputFormat.addInputPath(job3, new Path(outputBase + "/job2_agg"));
-        FileOutputFormat.setOutputPath(job3, new Path(outputBase + "/job3_features"));
-        if (!job3.waitForCompletion(true))
-            System.exit(1);
-
-        URI featuresUri = new URI(outputBase + "/job3_features/part-r-00000#features.txt");
-
-        // JOB 4
+        if (sequenceIntermediates(conf)) {
+            // Records are already typed: identity Mapper
+            job2.setInputFormatClass(SequenceFileInputFormat.class);
+            job2.setMapperClass(Mapper.class);
+            setIntermediateOutput(job2, chooseCodec(conf));
+        } else {
+            job2.setMapperClass(AggregationMapper.class);
+        }
+        job2.setCombinerClass(AggregationReducer.class);
+        job2.setReducerClass(FeatureAggregationReducer.class);
+        job2.setOutputKeyClass(ActivityKey.class);
+        job2.setOutputValueClass(LongWritable.class);
+        MultipleOutputs.addNamedOutput(job2, FEATURES_OUTPUT, TextOutputFormat.class, Text.class, NullWritable.class);
+        for (Path input : inputs)
+            FileInputFormat.addInputPath(job2, input);
+        FileOutputFormat.setOutputPath(job2, output);
+        return job2;
+    }
+
+    // Former Job 3: the feature names written by the Job 2 reducers are moved to the features
+    // directory and merged into features.dict (see FeatureDictionary)
+    static void publishFeatures(Configuration conf, Path aggregates, Path features) throws IOException {
+        FileSystem fs = aggregates.getFileSystem(conf);
+        Path side = new Path(aggregates, FEATURES_DIR);
+        fs.delete(features, true);
+        // No side output at all when Job 2 had no record: empty dictionary
+        if (!fs.exists(side))
+            fs.mkdirs(features);
+        else if (!fs.rename(side, features))
+            throw new IOException("Cannot move " + side + " to " + features);
+        FeatureDictionary.build(conf, features);
+    }
+
+    static boolean runAggregation(Configuration conf, List<Path> inputs, Path output, Path features, RunReport report)
+            throws Exception {
+        if (!report.run(aggregationJob(conf, inputs, output)))
+            return false;
+        publishFeatures(conf, output, features);
+        return true;
+    }
+
+    static URI featuresUri(Path features) throws Exception {
+        return new URI(features + "/" + FeatureDictionary.FILE_NAME + "#" + FeatureDictionary.FILE_NAME);
+    }
+
+    // JOB 4: pivot. changes != null (incremental run): only the students found in these
+    // new Job 1 records get a vector.
+    static Job pivotJob(Configuration conf, Path aggregates, Path changes, Path features, Path output) throws Exception {
         Job job4 = Job.getInstance(conf, "Pivot");
-        job4.addCacheFile(featuresUri);
+        job4.addCacheFile(featuresUri(features));
         job4.setJarByClass(OuladRecommendation.class);
-        job4.setMapperClass(PivotMapper.class);
-        job4.setReducerClass(PivotReducer.class);
-        job4.setOutputKeyClass(Text.class);
-        job4.setOutputValueClass(Text.class);
-        FileInputFormat.addInputPath(job4, new Path(outputBase + "/job2_agg"));
-        FileOutputFormat.setOutputPath(job4, new Path(outputBase + "/job4_pivot"));
-        if (!job4.waitForCompletion(true))
-            System.exit(1);
-
-        // JOB 5
+        boolean sequenceIntermediates = sequenceIntermediates(conf);
+        if (changes != null) {
+            if (sequenceIntermediates) {
+                MultipleInputs.addInputPath(job4, aggregates, SequenceFileInputFormat.class, PivotMapper.class);
+                MultipleInputs.addInputPath(job4, changes, SequenceFileInputFormat.class, ChangedStudentMapper.class);
+            } else {
+                MultipleInputs.addInputPath(job4, aggregates, TextInputFormat.class, PivotMapper.class);
+                MultipleInputs.addInputPath(job4, changes, TextInputFormat.class, ChangedStudentMapper.class);
+            }
+            job4.getConfiguration().setBoolean(CHANGED_ONLY_KEY, true);
+        } else {
+            if (sequenceIntermediates)
+                job4.setInputFormatClass(SequenceFileInputFormat.class);
+            job4.setMapperClass(PivotMapper.class);
+            FileInputFormat.addInputPath(job4, aggregates);
+        }
+        if (!"dense".equals(conf.get(PIVOT_FORMAT_KEY, "sparse"))) {
+            job4.setReducerClass(SparsePivotReducer.class);
+            job4.setMapOutputKeyClass(Text.class);
+            job4.setMapOutputValueClass(Text.class);
+            job4.setOutputKeyClass(Text.class);
+            job4.setOutputValueClass(SparseVectorWritable.class);
+            if (sequenceIntermediates)
+                setIntermediateOutput(job4, chooseCodec(conf));
+            else
+                job4.setOutputFormatClass(SequenceFileOutputFormat.class);
+        } else {
+            job4.setReducerClass(PivotReducer.class);
+            job4.setOutputKeyClass(Text.class);
+            job4.setOutputValueClass(Text.class);
+        }
+        FileOutputFormat.setOutputPath(job4, output);
+        return job4;
+    }
+
+    // JOB 5: scoring (map-only)
+    static Job scoringJob(Configuration conf, Path pivot, Path features, Path output) throws Exception {
         Job job5 = Job.getInstance(conf, "Score");
-        job5.addCacheFile(featuresUri);
+        job5.addCacheFile(featuresUri(features));
         job5.setJarByClass(OuladRecommendation.class);
-        job5.setMapperClass(ScoringMapper.class);
+        if (!"dense".equals(conf.get(PIVOT_FORMAT_KEY, "sparse"))) {
+            job5.setInputFormatClass(SequenceFileInputFormat.class);
+            job5.setMapperClass(SparseScoringMapper.class);
+        } else {
+            job5.setMapperClass(ScoringMapper.class);
+        }
         job5.setNumReduceTasks(0);
         job5.setOutputKeyClass(Text.class);
         job5.setOutputValueClass(Text.class);
-        FileInputFormat.addInputPath(job5, new Path(outputBase + "/job4_pivot"));
-        FileOutputFormat.setOutputPath(job5, new Path(outputBase + "/job5_scoring"));
-        System.exit(job5.waitForCompletion(true) ? 0 : 1);
+        FileInputFormat.addInputPath(job5, pivot);
+        FileOutputFormat.setOutputPath(job5, output);
+        return job5;
+    }
+
+    // JOB 6: most recommended features per activity type, from the Job 5 top-K lines
+    static Job typeTopKJob(Configuration conf, Path scores, Path features, Path output) throws Exception {
+        Job job6 = Job.getInstance(conf, "Type top-K");
+        job6.addCacheFile(featuresUri(features));
+        job6.setJarByClass(OuladRecommendation.class);
+        job6.setMapperClass(TypeTopKMapper.class);
+        job6.setReducerClass(TypeTopKReducer.class);
+        job6.setMapOutputKeyClass(Text.class);
+        job6.setMapOutputValueClass(SparseVectorWritable.class);
+        job6.setOutputKeyClass(Text.class);
+        job6.setOutputValueClass(Text.class);
+        FileInputFormat.addInputPath(job6, scores);
+        FileOutputFormat.setOutputPath(job6, output);
+        return job6;
+    }
+
+    // Job 6 over the current job5_scoring, when the top-K mode asks for it
+    static boolean runTypeTopK(Configuration conf, String outputBase, RunReport report) throws Exception {
+        if (conf.getInt(TOP_K_KEY, 0) <= 0 || !conf.getBoolean(TOP_K_BY_TYPE_KEY, false))
+            return true;
+        Path output = new Path(outputBase + "/job6_topk_types");
+        output.getFileSystem(conf).delete(output, true);
+        return report.run(typeTopKJob(conf, new Path(outputBase + "/job5_scoring"), new Path(outputBase + "/job3_features"), output));
+    }
+
+    // Incremental run: previous scores overridden by the scores of the changed students
+    static Job scoreMergeJob(Configuration conf, Path previous, Path changed, Path output) throws Exception {
+        Job job = Job.getInstance(conf, "Score merge");
+        job.setJarByClass(OuladRecommendation.class);
+        MultipleInputs.addInputPath(job, previous, TextInputFormat.class, PreviousScoreMapper.class);
+        MultipleInputs.addInputPath(job, changed, TextInputFormat.class, NewScoreMapper.class);
+        job.setReducerClass(ScoreMergeReducer.class);
+        job.setOutputKeyClass(Text.class);
+        job.setOutputValueClass(Text.class);
+        FileOutputFormat.setOutputPath(job, output);
+        return job;
+    }
+
+    // Stage of a full run: a job, the fingerprint it is recorded under once it succeeded and an
+    // optional driver step run right after the job (e.g. the dictionary after Job 2)
+    static class Stage {
+        final String name;
+        final Job job;
+        final String fingerprint;
+        final Callable<Void> driverStep;
+
+        Stage(String name, Job job, String fingerprint, Callable<Void> driverStep) {
+            this.name = name;
+            this.job = job;
+            this.fingerprint = fingerprint;
+            this.driverStep = driverStep;
+        }
+    }
+
+    // Fingerprint of a stage: the fingerprint of what it reads (inputs or upstream stage),
+    // its name and the settings that change its output
+    static String fingerprint(String upstream, String stage, Configuration conf, String... keys) {
+        StringBuilder sb = new StringBuilder(upstream).append('|').append(stage);
+        for (String key : keys)
+            sb.append('|').append(key).append('=').append(conf.get(key, ""));
+        return MD5Hash.digest(sb.toString()).toString();
+    }
+
+    // Content fingerprint of the raw inputs: the file checksum when the file system has one
+    // (HDFS), otherwise the length and modification time of each file
+    static String inputsFingerprint(Configuration conf, List<Path> studentVle, Path vlePath) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        List<FileStatus> files = new ArrayList<>();
+        for (Path path : studentVle)
+            files.addAll(listPartitions(conf, path));
+        files.addAll(listPartitions(conf, vlePath));
+        for (FileStatus file : files) {
+            FileChecksum checksum = file.getPath().getFileSystem(conf).getFileChecksum(file.getPath());
+            sb.append(file.getPath()).append('\t').append(file.getLen()).append('\t')
+                    .append(checksum != null ? checksum.toString() : Long.toString(file.getModificationTime())).append('\n');
+        }
+        return MD5Hash.digest(sb.toString()).toString();
+    }
+
+    // Stage fingerprints of the last runs ("stage \t fingerprint" per line), empty map when none
+    static Map<String, String> readFingerprints(FileSystem fs, Path file) throws IOException {
+        Map<String, String> fingerprints = new HashMap<>();
+        if (!fs.exists(file))
+            return fingerprints;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab > 0)
+                    fingerprints.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+        }
+        return fingerprints;
+    }
+
+    static void writeFingerprints(FileSystem fs, Path file, Map<String, String> fingerprints) throws IOException {
+        try (Writer out = new OutputStreamWriter(fs.create(file, true), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : fingerprints.entrySet())
+                out.write(entry.getKey() + "\t" + entry.getValue() + "\n");
+        }
+    }
+
+    // Jobs 1 to 5 (Job 3 fused into Job 2, and Job 6 with oulad.scoring.topKByType) over all
+    // the studentVle inputs, as a chain of stages run one after the other (see runStages), each
+    // reading the output of the one before it. With oulad.checkpoint, a stage whose
+    // fingerprint matches the one recorded by a previous successful run, and whose output is
+    // still there, is skipped: a rerun after a failure resumes at the failed stage.
+    static boolean runFull(Configuration conf, List<Path> studentVle, Path vlePath, String outputBase, RunReport report)
+            throws Exception {
+        Path base = new Path(outputBase);
+        FileSystem fs = base.getFileSystem(conf);
+        boolean checkpoint = conf.getBoolean(CHECKPOINT_KEY, true);
+        Path stagesFile = new Path(base, STAGES);
+        Map<String, String> recorded = checkpoint ? readFingerprints(fs, stagesFile) : new HashMap<>();
+
+        Path joined = new Path(base, "job1_join");
+        Path aggregates = new Path(base, "job2_agg");
+        Path features = new Path(base, "job3_features");
+        Path pivot = new Path(base, "job4_pivot");
+        Path scores = new Path(base, "job5_scoring");
+        Path typeTopK = new Path(base, "job6_topk_types");
+
+        // Each fingerprint chains the previous one: a changed input or setting reruns every stage after it
+        String joinPrint = fingerprint(inputsFingerprint(conf, studentVle, vlePath), "job1_join", conf,
+                JOIN_KEY, SKEW_KEY, INTERMEDIATE_KEY, INTERMEDIATE_CODEC_KEY);
+        String aggPrint = fingerprint(joinPrint, "job2_agg", conf);
+        String pivotPrint = fingerprint(aggPrint, "job4_pivot", conf, PIVOT_FORMAT_KEY);
+        String scorePrint = fingerprint(pivotPrint, "job5_scoring", conf, SCORING_OUTPUT_KEY, TOP_K_KEY);
+        String typeTopKPrint = fingerprint(scorePrint, "job6_topk_types", conf, TOP_K_KEY);
+
+        // Every stage reads the output of the one before it (Job 4 and later also the dictionary
+        // built after Job 2): the stages that are not skipped run one after the other
+        List<Stage> stages = new ArrayList<>();
+        if (!skipStage(fs, base, recorded, "job1_join", joinPrint, report)) {
+            fs.delete(joined, true);
+            stages.add(new Stage("job1_join", joinJob(conf, studentVle, vlePath, joined, new Path(outputBase + "_skew_plan")),
+                    joinPrint, null));
+        }
+        if (!skipStage(fs, base, recorded, "job2_agg", aggPrint, report, new Path(features, FeatureDictionary.FILE_NAME))) {
+            fs.delete(aggregates, true);
+            stages.add(new Stage("job2_agg", aggregationJob(conf, Collections.singletonList(joined), aggregates), aggPrint, () -> {
+                publishFeatures(conf, aggregates, features);
+                return null;
+            }));
+        }
+        if (!skipStage(fs, base, recorded, "job4_pivot", pivotPrint, report)) {
+            fs.delete(pivot, true);
+            stages.add(new Stage("job4_pivot", pivotJob(conf, aggregates, null, features, pivot), pivotPrint, null));
+        }
+        if (!skipStage(fs, base, recorded, "job5_scoring", scorePrint, report)) {
+            fs.delete(scores, true);
+            stages.add(new Stage("job5_scoring", scoringJob(conf, pivot, features, scores), scorePrint, null));
+        }
+        if (conf.getInt(TOP_K_KEY, 0) > 0 && conf.getBoolean(TOP_K_BY_TYPE_KEY, false)
+                && !skipStage(fs, base, recorded, "job6_topk_types", typeTopKPrint, report)) {
+            fs.delete(typeTopK, true);
+            stages.add(new Stage("job6_topk_types", typeTopKJob(conf, scores, features, typeTopK), typeTopKPrint, null));
+        }
+        return runStages(fs, checkpoint ? stagesFile : null, recorded, stages, report);
+    }
+
+    // True when the stage output (and any other file it produces) is complete and was produced
+    // from the same fingerprint; otherwise the stale fingerprint is forgotten before the stage reruns
+    private static boolean skipStage(FileSystem fs, Path base, Map<String, String> recorded, String stage, String fingerprint,
+            RunReport report, Path... produced) throws IOException {
+        boolean complete = fingerprint.equals(recorded.get(stage)) && fs.exists(new Path(new Path(base, stage), "_SUCCESS"));
+        for (Path file : produced)
+            complete = complete && fs.exists(file);
+        if (complete) {
+            System.out.println("Stage " + stage + " unchanged since the last run, skipped");
+            report.skip(stage);
+            return true;
+        }
+        recorded.remove(stage);
+        return false;
+    }
+
+    // Runs the stages in order. A success is recorded (fingerprint) right away, so a later
+    // failure keeps it for the next run; the stages after a failure do not run.
+    static boolean runStages(FileSystem fs, Path stagesFile, Map<String, String> recorded, List<Stage> stages,
+            RunReport report) throws Exception {
+        if (stagesFile != null)
+            writeFingerprints(fs, stagesFile, recorded);
+        for (int i = 0; i < stages.size(); i++) {
+            if (!runStage(fs, stagesFile, recorded, stages.get(i), report)) {
+                for (Stage next : stages.subList(i + 1, stages.size()))
+                    System.out.println("Stage " + next.name + " not run: a stage it depends on failed");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean runStage(FileSystem fs, Path stagesFile, Map<String, String> recorded, Stage stage,
+            RunReport report) {
+        try {
+            if (!report.run(stage.job))
+                return false;
+            if (stage.driverStep != null)
+                stage.driverStep.call();
+            if (stagesFile != null) {
+                recorded.put(stage.name, stage.fingerprint);
+                writeFingerprints(fs, stagesFile, recorded);
+            }
+            return true;
+        } catch (Exception e) {
+            System.err.println("Stage " + stage.name + " failed:");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    // Incremental run. Without a usable state (first run, or a processed partition changed or
+    // vanished since), every stage is recomputed and the watermark written for the next run.
+    static boolean runIncremental(Configuration conf, Path studentVle, Path vlePath, String outputBase, RunReport report)
+            throws Exception {
+        Path base = new Path(outputBase);
+        FileSystem fs = base.getFileSystem(conf);
+        // A run that died after its commit point is completed, an uncommitted one discarded
+        applyCommit(fs, base);
+        fs.delete(new Path(base, DELTA_DIR), true);
+        List<FileStatus> partitions = listPartitions(conf, studentVle);
+        Path watermark = new Path(base, WATERMARK);
+        Map<String, Long> processed = readWatermark(fs, watermark);
+
+        List<Path> fresh = new ArrayList<>();
+        boolean usableState = processed != null && fs.exists(new Path(base, "job2_agg"))
+                && fs.exists(new Path(base, "job3_features/" + FeatureDictionary.FILE_NAME)) && fs.exists(new Path(base, "job5_scoring"));
+        if (usableState) {
+            Map<String, Long> current = new HashMap<>();
+            for (FileStatus partition : partitions) {
+                current.put(partition.getPath().toString(), partition.getLen());
+                if (!processed.containsKey(partition.getPath().toString()))
+                    fresh.add(partition.getPath());
+            }
+            for (Map.Entry<String, Long> entry : processed.entrySet()) {
+                if (!entry.getValue().equals(current.get(entry.getKey()))) {
+                    System.out.println("Processed partition changed or removed, full recompute: " + entry.getKey());
+                    usableState = false;
+                    break;
+                }
+            }
+        }
+
+        if (!usableState) {
+            // Without a watermark, a run that dies midway is never mistaken for a usable state
+            fs.delete(watermark, false);
+            for (String stage : STATE_STAGES)
+                fs.delete(new Path(base, stage), true);
+            fs.delete(new Path(base, STAGES), false);
+            List<Path> all = new ArrayList<>();
+            for (FileStatus partition : partitions)
+                all.add(partition.getPath());
+            if (!runFull(conf, all, vlePath, outputBase, report))
+                return false;
+            writeWatermark(fs, watermark, partitions);
+            return true;
+        }
+        if (fresh.isEmpty()) {
+            System.out.println("No new studentVle partition since the last run");
+            return true;
+        }
+        System.out.println(fresh.size() + " new studentVle partition(s): " + fresh);
+
+        // Stages of this run are built in _delta/ and replace the state only once all succeeded
+        Path delta = new Path(base, DELTA_DIR);
+        Path joined = new Path(delta, "job1_join");
+        Path aggregates = new Path(delta, "job2_agg");
+        Path features = new Path(delta, "job3_features");
+        if (!report.run(joinJob(conf, fresh, vlePath, joined, new Path(outputBase + "_skew_plan")))
+                || !runAggregation(conf, Arrays.asList(new Path(base, "job2_agg"), joined), aggregates, features, report))
+            return false;
+
+        // A new feature shifts the dictionary indices: every vector and score changes
+        boolean sameFeatures = sameContent(fs, new Path(base, "job3_features/" + FeatureDictionary.FILE_NAME),
+                new Path(features, FeatureDictionary.FILE_NAME));
+        if (!sameFeatures)
+            System.out.println("Feature dictionary changed: all students are re-pivoted and re-scored");
+        if (!report.run(pivotJob(conf, aggregates, sameFeatures ? joined : null, features, new Path(delta, "job4_pivot")))
+                || !report.run(scoringJob(conf, new Path(delta, "job4_pivot"), features, new Path(delta, "job5_scoring"))))
+            return false;
+        if (sameFeatures) {
+            if (!report.run(scoreMergeJob(conf, new Path(base, "job5_scoring"), new Path(delta, "job5_scoring"),
+                    new Path(delta, "job5_merged"))))
+                return false;
+            fs.delete(new Path(delta, "job5_scoring"), true);
+            rename(fs, new Path(delta, "job5_merged"), new Path(delta, "job5_scoring"));
+        }
+
+        // New state: job1_join and job4_pivot only hold this run's partitions and students.
+        // Commit point: the complete state and its watermark switch with a single rename
+        writeWatermark(fs, new Path(delta, WATERMARK), partitions);
+        rename(fs, delta, new Path(base, COMMIT_DIR));
+        applyCommit(fs, base);
+        return runTypeTopK(conf, outputBase, report);
+    }
+
+    // Moves a committed state from _commit/ into the output base, watermark last. Each step
+    // can be replayed, so a run that dies here is completed by the next one
+    static void applyCommit(FileSystem fs, Path base) throws IOException {
+        Path commit = new Path(base, COMMIT_DIR);
+        if (!fs.exists(commit))
+            return;
+        for (String stage : STATE_STAGES) {
+            Path source = new Path(commit, stage);
+            if (!fs.exists(source))
+                continue;
+            Path target = new Path(base, stage);
+            if (fs.exists(target) && !fs.delete(target, true))
+                throw new IOException("Cannot delete " + target);
+            rename(fs, source, target);
+        }
+        Path watermark = new Path(commit, WATERMARK);
+        if (fs.exists(watermark)) {
+            fs.delete(new Path(base, WATERMARK), false);
+            rename(fs, watermark, new Path(base, WATERMARK));
+        }
+        // The stages no longer match the fingerprints of the last full run
+        fs.delete(new Path(base, STAGES), false);
+        if (!fs.delete(commit, true))
+            throw new IOException("Cannot delete " + commit);
+    }
+
+    static void rename(FileSystem fs, Path source, Path target) throws IOException {
+        if (!fs.rename(source, target))
+            throw new IOException("Cannot rename " + source + " to " + target);
+    }
+
+    // studentVle files matched by the input path (glob, file or directory), sorted
+    static List<FileStatus> listPartitions(Configuration conf, Path input) throws IOException {
+        FileSystem fs = input.getFileSystem(conf);
+        List<FileStatus> partitions = new ArrayList<>();
+        FileStatus[] matches = fs.globStatus(input);
+        if (matches == null)
+            throw new IOException("Input path does not exist: " + input);
+        for (FileStatus match : matches) {
+            FileStatus[] files = match.isDirectory() ? fs.listStatus(match.getPath()) : new FileStatus[] { match };
+            for (FileStatus file : files) {
+                String name = file.getPath().getName();
+                if (file.isFile() && !name.startsWith("_") && !name.startsWith("."))
+                    partitions.add(file);
+            }
+        }
+        partitions.sort((a, b) -> a.getPath().compareTo(b.getPath()));
+        return partitions;
+    }
+
+    // Processed partitions and their length, null when there is no watermark yet
+    static Map<String, Long> readWatermark(FileSystem fs, Path watermark) throws IOException {
+        if (!fs.exists(watermark))
+            return null;
+        Map<String, Long> processed = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(watermark), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                if (tab > 0)
+                    processed.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+            }
+        }
+        return processed;
+    }
+
+    static void writeWatermark(FileSystem fs, Path watermark, List<FileStatus> partitions) throws IOException {
+        try (Writer out = new OutputStreamWriter(fs.create(watermark, true), StandardCharsets.UTF_8)) {
+            for (FileStatus partition : partitions)
+                out.write(partition.getPath() + "\t" + partition.getLen() + "\n");
+        }
+    }
+
+    static boolean sameContent(FileSystem fs, Path a, Path b) throws IOException {
+        long remaining = fs.getFileStatus(a).getLen();
+        if (remaining != fs.getFileStatus(b).getLen())
+            return false;
+        try (InputStream inA = fs.open(a); InputStream inB = fs.open(b)) {
+            byte[] bufA = new byte[64 * 1024];
+            byte[] bufB = new byte[64 * 1024];
+            while (remaining > 0) {
+                int n = (int) Math.min(remaining, bufA.length);
+                IOUtils.readFully(inA, bufA, 0, n);
+                IOUtils.readFully(inB, bufB, 0, n);
+                for (int i = 0; i < n; i++) {
+                    if (bufA[i] != bufB[i])
+                        return false;
+                }
+                remaining -= n;
+            }
+        }
+        return true;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        args = new GenericOptionsParser(conf, args).getRemainingArgs();
+        if (args.length < 3) {
+            System.err.println("Usage: OuladRecommendation [-D " + JOIN_KEY
+                    + "=reduce|broadcast|sorted] [-D " + PIVOT_FORMAT_KEY + "=sparse|dense] [-D "
+                    + SCORING_OUTPUT_KEY + "=dense|sparse] [-D " + TOP_K_KEY + "=K] [-D " + TOP_K_BY_TYPE_KEY
+                    + "=true] [-D " + INTERMEDIATE_KEY
+                    + "=sequence|text] [-D " + SKEW_KEY + "=true] [-D " + EMBEDDED_KEY
+                    + "=true] [-D " + INCREMENTAL_KEY + "=true] [-D " + CHECKPOINT_KEY
+                    + "=false] <studentVle path> <vle path> <output base>");
+            System.exit(-1);
+        }
+        String outputBase = args[2];
+        RunReport report = new RunReport(conf, "OuladRecommendation", new Path(outputBase + "_report.json"));
+        if (conf.getBoolean(EMBEDDED_KEY, false))
+            report.setting("localRunnerProfile", LocalRunnerProfile.configure(conf, Collections.singletonList(new Path(args[0]))));
+
+        // Binary intermediates: compressed shuffle and block-compressed SequenceFiles between
+        // jobs; the codec is probed once and pinned for every job of the run
+        if (sequenceIntermediates(conf)) {
+            Class<? extends CompressionCodec> codec = chooseCodec(conf);
+            conf.set(INTERMEDIATE_CODEC_KEY, codec.getName());
+            conf.setBoolean(MRJobConfig.MAP_OUTPUT_COMPRESS, true);
+            conf.setClass(MRJobConfig.MAP_OUTPUT_COMPRESS_CODEC, codec, CompressionCodec.class);
+        }
+
+        boolean success;
+        if (conf.getBoolean(INCREMENTAL_KEY, false))
+            success = runIncremental(conf, new Path(args[0]), new Path(args[1]), outputBase, report);
+        else
+            success = runFull(conf, Collections.singletonList(new Path(args[0])), new Path(args[1]), outputBase, report);
+        report.write();
+        System.exit(success ? 0 : 1);
     }
 }
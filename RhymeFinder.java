@@ -1,97 +1,348 @@
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
-import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
 
 public class RhymeFinder {
 
+    // Longueurs de suffixe calculees en une seule passe, ex : "2,3,4,5" (defaut : 4)
+    public static final String SUFFIX_LENGTHS_KEY = "rhyme.suffixLengths";
+
+    // Longueur minimale d'un mot (defaut : 6, soit "longueur > 5")
+    public static final String MIN_WORD_LENGTH_KEY = "rhyme.minWordLength";
+
+    // Taille memoire estimee (octets) au-dela de laquelle le Mapper vide ses listes
+    public static final String FLUSH_BYTES_KEY = "rhyme.flushBytes";
+
+    // Partitionnement par echantillonnage (SkewPartitioning) : les suffixes tres frequents
+    // sont repartis sur plusieurs Reducers puis fusionnes (defaut : false)
+    public static final String SKEW_KEY = "rhyme.skew";
+
+    // Jobs dans le processus du driver sur fichiers locaux, LocalJobRunner multithread
+    // (profil LocalRunnerProfile), defaut : false
+    public static final String EMBEDDED_KEY = "rhyme.embedded";
+
+    // Compteurs metier, repris dans le rapport d'execution (RunReport)
+    public enum RhymeCounters {
+        WORDS_TOO_SHORT,      // mots ecartes par le filtrage precoce
+        SUFFIXES_BUFFERED,    // couples (suffixe, mot) agreges par le Mapper
+        BUFFER_FLUSHES,       // vidages du tampon avant la fin du split
+        RHYME_GROUPS,         // suffixes ecrits (au moins deux mots)
+        SINGLE_WORD_SUFFIXES, // suffixes ecartes (un seul mot)
+        SPREAD_PARTIALS       // listes partielles de suffixes repartis (SkewPartitioning)
+    }
+
+    static int[] parseSuffixLengths(Configuration conf) {
+        String[] tokens = conf.getTrimmedStrings(SUFFIX_LENGTHS_KEY, "4");
+        int[] lengths = new int[tokens.length];
+        for (int i = 0; i < tokens.length; i++) {
+            lengths[i] = Integer.parseInt(tokens[i]);
+        }
+        return lengths;
+    }
+
+    // Liste de mots deja jointe par ", " (format de sortie) et nombre de mots.
+    // La fusion est une simple concatenation d'octets : utilisable par le Combiner
+    // et ecrite telle quelle par le Reducer, sans liste intermediaire.
+    public static class WordListWritable implements Writable {
+
+        private static final byte[] SEPARATOR = ", ".getBytes(StandardCharsets.UTF_8);
+
+        private byte[] bytes = new byte[64];
+        private int length;
+        private int count;
+
+        public void clear() {
+            length = 0;
+            count = 0;
+        }
+
+        public void add(Text word) {
+            append(word.getBytes(), word.getLength(), 1);
+        }
+
+        public void merge(WordListWritable other) {
+            append(other.bytes, other.length, other.count);
+        }
+
+        public int getCount() {
+            return count;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        // Copie la liste jointe dans un Text de sortie
+        public void copyTo(Text text) {
+            text.set(bytes, 0, length);
+        }
+
+        private void append(byte[] src, int len, int words) {
+            if (words == 0) {
+                return;
+            }
+            int needed = length + (count > 0 ? SEPARATOR.length : 0) + len;
+            if (needed > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(needed, bytes.length * 2));
+            }
+            if (count > 0) {
+                System.arraycopy(SEPARATOR, 0, bytes, length, SEPARATOR.length);
+                length += SEPARATOR.length;
+            }
+            System.arraycopy(src, 0, bytes, length, len);
+            length += len;
+            count += words;
+        }
+
+        @Override
+        public void write(DataOutput out) throws IOException {
+            WritableUtils.writeVInt(out, count);
+            WritableUtils.writeVInt(out, length);
+            out.write(bytes, 0, length);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            count = WritableUtils.readVInt(in);
+            length = WritableUtils.readVInt(in);
+            if (length > bytes.length) {
+                bytes = new byte[length];
+            }
+            in.readFully(bytes, 0, length);
+        }
+    }
+
     // Mapper: LongWritable (Offset) -> Text (Line)
-    // Output: Text (Suffix of 4 chars), Text (Word)
-    public static class RhymeMapper extends Mapper<LongWritable, Text, Text, Text> {
+    // Output: Text (Suffixe, pour chaque longueur demandee), WordListWritable (Mots)
+    // In-mapper combining : les mots sont agreges par suffixe sur tout le split.
+    public static class RhymeMapper extends RunReport.TimedMapper<LongWritable, Text, Text, WordListWritable> {
+
+        private int[] suffixLengths;
+        private int minWordLength;
+        private long flushBytes;
+        private long bufferedBytes;
 
+        private Map<String, WordListWritable> buffer = new HashMap<>();
         private Text suffixKey = new Text();
         private Text wordValue = new Text();
+        private Counter tooShort;
+        private Counter buffered;
+
+        @Override
+        protected void setup(Context context) {
+            Configuration conf = context.getConfiguration();
+            suffixLengths = parseSuffixLengths(conf);
+            minWordLength = conf.getInt(MIN_WORD_LENGTH_KEY, 6);
+            flushBytes = conf.getLong(FLUSH_BYTES_KEY, 16L * 1024 * 1024);
+            tooShort = context.getCounter(RhymeCounters.WORDS_TOO_SHORT);
+            buffered = context.getCounter(RhymeCounters.SUFFIXES_BUFFERED);
+        }
 
         @Override
         public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
             String word = value.toString().trim();
 
-            // Filtrage precoce (Early Filtering) : Longueur > 5
-            if (word.length() > 5) {
-                // Extraction des 4 derniers caracteres
-                String suffix = word.substring(word.length() - 4);
+            // Filtrage precoce (Early Filtering) : mots trop courts ignores
+            if (word.length() < minWordLength) {
+                tooShort.increment(1);
+                return;
+            }
+            wordValue.set(word);
+
+            for (int suffixLength : suffixLengths) {
+                if (word.length() <= suffixLength) {
+                    continue;
+                }
+                // Extraction des suffixLength derniers caracteres
+                String suffix = word.substring(word.length() - suffixLength);
+
+                WordListWritable words = buffer.get(suffix);
+                if (words == null) {
+                    words = new WordListWritable();
+                    buffer.put(suffix, words);
+                    bufferedBytes += 2 * suffix.length() + 120;
+                }
+                words.add(wordValue);
+                bufferedBytes += wordValue.getLength() + 2;
+                buffered.increment(1);
+            }
+
+            if (bufferedBytes >= flushBytes) {
+                context.getCounter(RhymeCounters.BUFFER_FLUSHES).increment(1);
+                flush(context);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            flush(context);
+        }
+
+        private void flush(Context context) throws IOException, InterruptedException {
+            for (Map.Entry<String, WordListWritable> entry : buffer.entrySet()) {
+                suffixKey.set(entry.getKey());
+                context.write(suffixKey, entry.getValue());
+            }
+            buffer.clear();
+            bufferedBytes = 0;
+        }
+    }
+
+    // Combiner : concatenation des listes d'un meme suffixe
+    public static class RhymeCombiner extends Reducer<Text, WordListWritable, Text, WordListWritable> {
 
-                suffixKey.set(suffix);
-                wordValue.set(word);
+        private WordListWritable merged = new WordListWritable();
 
-                context.write(suffixKey, wordValue);
+        @Override
+        public void reduce(Text key, Iterable<WordListWritable> values, Context context) throws IOException, InterruptedException {
+            merged.clear();
+            for (WordListWritable val : values) {
+                merged.merge(val);
             }
+            context.write(key, merged);
         }
     }
 
-    // Reducer: Text (Suffix), Iterable<Text> (Words)
+    // Reducer: Text (Suffix), Iterable<WordListWritable> (Words)
     // Output: Text (Suffix), Text (List of words)
-    public static class RhymeReducer extends Reducer<Text, Text, Text, Text> {
+    // Avec plusieurs longueurs, chaque longueur N est ecrite dans le sous-dossier lenN/.
+    public static class RhymeReducer extends RunReport.TimedReducer<Text, WordListWritable, Text, Text> {
+
+        private WordListWritable merged = new WordListWritable();
+        private Text joinedWords = new Text();
+        private MultipleOutputs<Text, Text> outputs;
+        private SkewPartitioning.SpreadKeys spreadKeys;
 
         @Override
-        public void reduce(Text key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
-            List<String> rhymeWords = new ArrayList<>();
+        protected void setup(Context context) throws IOException {
+            if (parseSuffixLengths(context.getConfiguration()).length > 1) {
+                outputs = new MultipleOutputs<>(context);
+            }
+            spreadKeys = SkewPartitioning.SpreadKeys.open(context);
+        }
+
+        @Override
+        public void reduce(Text key, Iterable<WordListWritable> values, Context context) throws IOException, InterruptedException {
+            merged.clear();
+            for (WordListWritable val : values) {
+                merged.merge(val);
+            }
 
-            // Parcourir la liste des mots pour le suffixe donne
-            for (Text val : values) {
-                rhymeWords.add(val.toString());
+            // Suffixe reparti sur plusieurs Reducers : liste partielle, fusionnee plus tard
+            if (spreadKeys != null && spreadKeys.contains(key)) {
+                spreadKeys.write(key, merged);
+                context.getCounter(RhymeCounters.SPREAD_PARTIALS).increment(1);
+                return;
             }
 
             // Condition de rime : La liste doit contenir plus d'un mot
-            if (rhymeWords.size() > 1) {
-                StringBuilder joinedWords = new StringBuilder();
-                for (int i = 0; i < rhymeWords.size(); i++) {
-                    joinedWords.append(rhymeWords.get(i));
-                    if (i < rhymeWords.size() - 1) {
-                        joinedWords.append(", ");
-                    }
+            if (merged.getCount() > 1) {
+                merged.copyTo(joinedWords);
+                if (outputs != null) {
+                    String suffix = key.toString();
+                    outputs.write(key, joinedWords, "len" + suffix.length() + "/part");
+                } else {
+                    context.write(key, joinedWords);
                 }
-                context.write(key, new Text(joinedWords.toString()));
+                context.getCounter(RhymeCounters.RHYME_GROUPS).increment(1);
+            } else {
+                context.getCounter(RhymeCounters.SINGLE_WORD_SUFFIXES).increment(1);
+            }
+        }
+
+        @Override
+        protected void cleanup(Context context) throws IOException, InterruptedException {
+            if (outputs != null) {
+                outputs.close();
+            }
+            if (spreadKeys != null) {
+                spreadKeys.close();
             }
         }
     }
 
     public static void main(String[] args) throws Exception {
         Configuration conf = new Configuration();
+        String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+
+        if (otherArgs.length < 2) {
+            System.err.println("Usage: RhymeFinder [-D " + SUFFIX_LENGTHS_KEY + "=2,3,4,5] [-D " + MIN_WORD_LENGTH_KEY
+                    + "=6] [-D " + SKEW_KEY + "=true] [-D " + EMBEDDED_KEY + "=true] <input path> <output path>");
+            System.exit(-1);
+        }
+
+        RunReport report = new RunReport(conf, "RhymeFinder", new Path(otherArgs[1] + "_report.json"));
+        if (conf.getBoolean(EMBEDDED_KEY, false)) {
+            report.setting("localRunnerProfile", LocalRunnerProfile.configure(conf, Collections.singletonList(new Path(otherArgs[0]))));
+        }
+
         Job job = Job.getInstance(conf, "Rhyme Finder");
 
         job.setJarByClass(RhymeFinder.class);
 
         job.setMapperClass(RhymeMapper.class);
-        // Nous n'utilisons pas de Combiner ici car la concatenation de chaines dans le
-        // combiner
-        // complexifierait le type d'entree du Reducer (Text vs Iterable<Text> standard)
-        // et le gain reseau est modere pour des listes de mots simples par rapport a
-        // l'overhead de deserialisation.
-        // L'architecture standard garantit la proprete et la scalabilite O(n).
-
+        // Combiner : les listes de mots sont deja jointes en octets (WordListWritable),
+        // la fusion est une concatenation et le Reducer recoit une valeur par split.
+        job.setCombinerClass(RhymeCombiner.class);
         job.setReducerClass(RhymeReducer.class);
 
+        job.setMapOutputKeyClass(Text.class);
+        job.setMapOutputValueClass(WordListWritable.class);
         job.setOutputKeyClass(Text.class);
         job.setOutputValueClass(Text.class);
 
-        if (args.length < 2) {
-            System.err.println("Usage: RhymeFinder <input path> <output path>");
-            System.exit(-1);
+        // Plusieurs longueurs : sorties lenN/ via MultipleOutputs, pas de part-r-* vides
+        if (parseSuffixLengths(conf).length > 1) {
+            LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class);
         }
 
-        FileInputFormat.addInputPath(job, new Path(args[0]));
-        FileOutputFormat.setOutputPath(job, new Path(args[1]));
+        FileInputFormat.addInputPath(job, new Path(otherArgs[0]));
+        FileOutputFormat.setOutputPath(job, new Path(otherArgs[1]));
+
+        if (conf.getBoolean(SKEW_KEY, false)) {
+            // Echantillon : memes suffixes que le Mapper, un par mot et par longueur
+            int[] suffixLengths = parseSuffixLengths(conf);
+            int minWordLength = conf.getInt(MIN_WORD_LENGTH_KEY, 6);
+            SkewPartitioning.configure(job, new Path(otherArgs[1] + "_skew_plan"),
+                    Collections.singletonList(new Path(otherArgs[0])), (line, keys) -> {
+                        String word = line.trim();
+                        if (word.length() < minWordLength) {
+                            return;
+                        }
+                        for (int suffixLength : suffixLengths) {
+                            if (word.length() > suffixLength) {
+                                keys.add(word.substring(word.length() - suffixLength));
+                            }
+                        }
+                    });
+            boolean success = report.run(job, () -> SkewPartitioning.waitForCompletion(job, true));
+            report.write();
+            System.exit(success ? 0 : 1);
+        }
 
-        System.exit(job.waitForCompletion(true) ? 0 : 1);
+        boolean success = report.run(job);
+        report.write();
+        System.exit(success ? 0 : 1);
     }
 }
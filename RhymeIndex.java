@@ -0,0 +1,303 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+// Index inverse des suffixes construit a partir de la sortie de RhymeFinder.
+//
+// Tous les mots de la sortie sont inverses ("adorable" -> "elbaroda") et tries : les mots
+// partageant un suffixe de longueur quelconque forment alors une plage contigue, trouvee
+// par recherche dichotomique sur le prefixe inverse. Le fichier binaire est ouvert en
+// memory-mapping : seules les pages touchees par la recherche sont chargees.
+//
+// Format (big-endian) :
+//   int MAGIC, int VERSION, int n
+//   int offsets[n + 1]            -- debut de chaque mot dans la zone de donnees
+//   byte data[offsets[n]]         -- mots inverses en UTF-8, tries par octets
+public class RhymeIndex implements AutoCloseable {
+
+    private static final int MAGIC = 0x52485958; // "RHYX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int dataStart;
+
+    private RhymeIndex(RandomAccessFile file, MappedByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Fichier d'index de rimes invalide");
+        }
+        this.size = buffer.getInt(8);
+        this.dataStart = HEADER_BYTES + 4 * (size + 1);
+    }
+
+    public static RhymeIndex open(String indexFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            // Limite : 2 Go par mapping, largement suffisant pour un dictionnaire de mots
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return new RhymeIndex(file, buffer);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // Nombre de mots indexes
+    public int size() {
+        return size;
+    }
+
+    // Mots partageant les suffixLength derniers caracteres de word (word exclu)
+    public List<String> rhymesWith(String word, int suffixLength) {
+        List<String> rhymes = new ArrayList<>();
+        if (word.length() < suffixLength) {
+            return rhymes;
+        }
+        byte[] prefix = reversedBytes(word.substring(word.length() - suffixLength));
+        for (int i = lowerBound(prefix); i < size && startsWith(i, prefix); i++) {
+            String rhyme = reversedString(i);
+            if (!rhyme.equals(word)) {
+                rhymes.add(rhyme);
+            }
+        }
+        return rhymes;
+    }
+
+    // Nombre de mots se terminant par suffix, sans decoder les mots
+    public int countWithSuffix(String suffix) {
+        byte[] prefix = reversedBytes(suffix);
+        int from = lowerBound(prefix);
+        int to = from;
+        while (to < size && startsWith(to, prefix)) {
+            to++;
+        }
+        return to - from;
+    }
+
+    // Mot d'indice i (ordre de l'index), remis a l'endroit
+    public String wordAt(int i) {
+        return reversedString(i);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    // Premier indice dont le mot inverse est >= prefix
+    private int lowerBound(byte[] prefix) {
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Compare le mot i aux octets de prefix, limite a la longueur de prefix
+    private int compare(int i, byte[] prefix) {
+        int start = dataStart + offset(i);
+        int len = offset(i + 1) - offset(i);
+        int n = Math.min(len, prefix.length);
+        for (int k = 0; k < n; k++) {
+            int cmp = (buffer.get(start + k) & 0xff) - (prefix[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return len >= prefix.length ? 0 : -1;
+    }
+
+    private boolean startsWith(int i, byte[] prefix) {
+        return compare(i, prefix) == 0;
+    }
+
+    private int offset(int i) {
+        return buffer.getInt(HEADER_BYTES + 4 * i);
+    }
+
+    private String reversedString(int i) {
+        int start = offset(i);
+        byte[] bytes = new byte[offset(i + 1) - start];
+        ByteBuffer view = buffer.duplicate();
+        view.position(dataStart + start);
+        view.get(bytes);
+        return new StringBuilder(new String(bytes, StandardCharsets.UTF_8)).reverse().toString();
+    }
+
+    private static byte[] reversedBytes(String s) {
+        return new StringBuilder(s).reverse().toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ==========================================
+    // CONSTRUCTION DE L'INDEX
+    // ==========================================
+
+    // Lit la sortie de RhymeFinder (fichier ou dossier, local ou HDFS, y compris les
+    // sous-dossiers lenN/) et ecrit l'index binaire dans le fichier local indexFile.
+    public static int build(Configuration conf, Path jobOutput, String indexFile) throws IOException {
+        FileSystem fs = jobOutput.getFileSystem(conf);
+        TreeSet<String> reversed = new TreeSet<>(RhymeIndex::compareUtf8);
+        collectWords(fs, jobOutput, reversed);
+
+        byte[][] words = new byte[reversed.size()][];
+        int i = 0;
+        for (String word : reversed) {
+            words[i++] = word.getBytes(StandardCharsets.UTF_8);
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(words.length);
+            int offset = 0;
+            for (byte[] word : words) {
+                out.writeInt(offset);
+                offset += word.length;
+            }
+            out.writeInt(offset);
+            for (byte[] word : words) {
+                out.write(word);
+            }
+        }
+        return words.length;
+    }
+
+    private static void collectWords(FileSystem fs, Path path, TreeSet<String> reversed) throws IOException {
+        FileStatus status = fs.getFileStatus(path);
+        if (status.isDirectory()) {
+            for (FileStatus child : fs.listStatus(path)) {
+                String name = child.getPath().getName();
+                if (!name.startsWith("_") && !name.startsWith(".")) {
+                    collectWords(fs, child.getPath(), reversed);
+                }
+            }
+            return;
+        }
+
+        // Ligne : suffixe \t mot, mot, mot...
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                for (String word : line.substring(tab + 1).split(",")) {
+                    String w = word.trim();
+                    if (!w.isEmpty()) {
+                        reversed.add(new StringBuilder(w).reverse().toString());
+                    }
+                }
+            }
+        }
+    }
+
+    // Ordre des octets UTF-8 (non signes), identique a celui de la recherche dans l'index
+    private static int compareUtf8(String a, String b) {
+        byte[] x = a.getBytes(StandardCharsets.UTF_8);
+        byte[] y = b.getBytes(StandardCharsets.UTF_8);
+        return Arrays.compareUnsigned(x, y);
+    }
+
+    // ==========================================
+    // BENCHMARK
+    // ==========================================
+
+    // Latence de rhymesWith() sur des mots tires au hasard dans l'index
+    static void benchmark(RhymeIndex index, int queries, int suffixLength) {
+        if (index.size() == 0 || queries <= 0) {
+            System.out.println("mots indexes : " + index.size() + ", requetes : " + queries + " : rien a mesurer");
+            return;
+        }
+        Random random = new Random(42);
+        int warmup = Math.min(queries, 10000);
+        long sink = 0;
+        for (int q = 0; q < warmup; q++) {
+            sink += index.rhymesWith(index.wordAt(random.nextInt(index.size())), suffixLength).size();
+        }
+
+        long[] latencies = new long[queries];
+        for (int q = 0; q < queries; q++) {
+            String word = index.wordAt(random.nextInt(index.size()));
+            long start = System.nanoTime();
+            sink += index.rhymesWith(word, suffixLength).size();
+            latencies[q] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("mots indexes : %d, requetes : %d, suffixe : %d (resultats cumules : %d)%n",
+                index.size(), queries, suffixLength, sink);
+        System.out.printf("p50=%.2f us  p90=%.2f us  p99=%.2f us  p99.9=%.2f us  max=%.2f us%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[queries - 1] / 1000.0);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(i, 0)] / 1000.0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: RhymeIndex build <RhymeFinder output> <index file>");
+            System.err.println("       RhymeIndex query <index file> <word> [suffix length]");
+            System.err.println("       RhymeIndex bench <index file> [queries] [suffix length]");
+            System.exit(-1);
+        }
+
+        switch (args[0]) {
+            case "build":
+                if (args.length < 3) {
+                    System.err.println("Usage: RhymeIndex build <RhymeFinder output> <index file>");
+                    System.exit(-1);
+                }
+                int count = build(new Configuration(), new Path(args[1]), args[2]);
+                System.out.println(count + " mots indexes dans " + args[2]);
+                break;
+            case "query":
+                try (RhymeIndex index = open(args[1])) {
+                    int suffixLength = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+                    System.out.println(String.join(", ", index.rhymesWith(args[2], suffixLength)));
+                }
+                break;
+            case "bench":
+                try (RhymeIndex index = open(args[1])) {
+                    int queries = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+                    int suffixLength = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+                    benchmark(index, queries, suffixLength);
+                }
+                break;
+            default:
+                System.err.println("Commande inconnue : " + args[0]);
+                System.exit(-1);
+        }
+    }
+}
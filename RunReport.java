@@ -0,0 +1,349 @@
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.ReduceContext;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskType;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+
+// Rapport d'execution JSON des drivers et mesures communes des taches.
+//
+// Cote taches :
+//   - TimedMapper : histogramme du temps de map() hors ecriture (analyse de la ligne) et
+//     du temps passe dans context.write(), sur un enregistrement sur report.timingSample ;
+//   - TimedReducer : histogramme de la taille des groupes et taille du plus gros groupe
+//     de chaque Reducer (indicateur de desequilibre).
+// Les histogrammes sont des compteurs Hadoop a seaux en puissances de 4 ("le_256" = au
+// plus 256), agreges par le framework comme les compteurs metier des programmes.
+//
+// Cote driver : run() lance un job et garde ses compteurs, skip() note une etape sautee,
+// setting() note un reglage du driver (ex : profil LocalRunnerProfile), write() ecrit le
+// rapport (un objet par etape : duree, statut, tous les compteurs, desequilibre des Reducers).
+public class RunReport {
+
+    // Chemin du rapport (defaut : fourni par le driver, <sortie>_report.json)
+    public static final String PATH_KEY = "report.path";
+
+    // Un enregistrement sur N est chronometre (defaut : 64, 0 = pas de chronometrage)
+    public static final String TIMING_SAMPLE_KEY = "report.timingSample";
+
+    // Groupes de compteurs des histogrammes et de la taille max de groupe par Reducer
+    public static final String MAP_PARSE_GROUP = "map.parse.ns";
+    public static final String MAP_EMIT_GROUP = "map.emit.ns";
+    public static final String GROUP_SIZE_GROUP = "reduce.group.size";
+    public static final String MAX_GROUP_GROUP = "reduce.max.group";
+
+    // Compteurs reserves en plus de la limite par defaut (120) : un par Reducer pour
+    // reduce.max.group, et les seaux des histogrammes
+    private static final int DEFAULT_COUNTERS_MAX = 120;
+    private static final int HISTOGRAM_COUNTERS = 40;
+
+    private static final String[] BUCKETS = new String[14];
+
+    static {
+        for (int i = 0; i < BUCKETS.length - 1; i++) {
+            BUCKETS[i] = "le_" + (1L << (2 * i));
+        }
+        BUCKETS[BUCKETS.length - 1] = "gt_" + (1L << (2 * (BUCKETS.length - 2)));
+    }
+
+    // Seau d'une valeur : puissances de 4 de 1 a 4^12 (~16,8 millions), puis depassement
+    static int bucket(long value) {
+        int i = 0;
+        while (i < BUCKETS.length - 1 && value > (1L << (2 * i))) {
+            i++;
+        }
+        return i;
+    }
+
+    // Histogramme d'un groupe de compteurs ; les compteurs des seaux sont resolus une fois
+    // (pas de recherche par nom ni d'allocation par enregistrement)
+    static class Histogram {
+        private final TaskAttemptContext context;
+        private final String group;
+        private final Counter[] counters = new Counter[BUCKETS.length];
+
+        Histogram(TaskAttemptContext context, String group) {
+            this.context = context;
+            this.group = group;
+        }
+
+        void add(long value) {
+            int i = bucket(value);
+            if (counters[i] == null) {
+                counters[i] = context.getCounter(group, BUCKETS[i]);
+            }
+            counters[i].increment(1);
+        }
+    }
+
+    // ==========================================
+    // COTE TACHES
+    // ==========================================
+
+    // Mapper chronometre : les sous-classes ne changent que leur classe mere
+    public abstract static class TimedMapper<KI, VI, KO, VO> extends Mapper<KI, VI, KO, VO> {
+
+        // Contexte dont les ecritures sont chronometrees
+        private class TimedContext extends WrappedMapper<KI, VI, KO, VO>.Context {
+            long emitNanos;
+
+            TimedContext(WrappedMapper<KI, VI, KO, VO> wrapper, MapContext<KI, VI, KO, VO> context) {
+                wrapper.super(context);
+            }
+
+            @Override
+            public void write(KO key, VO value) throws IOException, InterruptedException {
+                long start = System.nanoTime();
+                super.write(key, value);
+                emitNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public void run(Context context) throws IOException, InterruptedException {
+            int sample = context.getConfiguration().getInt(TIMING_SAMPLE_KEY, 64);
+            TimedContext timed = new TimedContext(new WrappedMapper<>(), context);
+            Histogram parse = new Histogram(context, MAP_PARSE_GROUP);
+            Histogram emit = new Histogram(context, MAP_EMIT_GROUP);
+            long records = 0;
+            setup(context);
+            try {
+                while (context.nextKeyValue()) {
+                    if (sample > 0 && ++records % sample == 0) {
+                        timed.emitNanos = 0;
+                        long start = System.nanoTime();
+                        map(context.getCurrentKey(), context.getCurrentValue(), timed);
+                        long total = System.nanoTime() - start;
+                        parse.add(total - timed.emitNanos);
+                        emit.add(timed.emitNanos);
+                    } else {
+                        map(context.getCurrentKey(), context.getCurrentValue(), context);
+                    }
+                }
+            } finally {
+                cleanup(context);
+            }
+        }
+    }
+
+    // Reducer mesurant la taille de ses groupes. Utilise comme Combiner (tache Map),
+    // il se comporte comme un Reducer ordinaire.
+    public abstract static class TimedReducer<KI, VI, KO, VO> extends Reducer<KI, VI, KO, VO> {
+
+        // Valeurs du groupe courant, comptees au fil de la lecture par le Reducer
+        private class CountingValues implements Iterable<VI>, Iterator<VI> {
+            private Iterator<VI> values;
+            long count;
+
+            void reset(Iterable<VI> group) {
+                values = group.iterator();
+                count = 0;
+            }
+
+            @Override
+            public Iterator<VI> iterator() {
+                return this;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return values.hasNext();
+            }
+
+            @Override
+            public VI next() {
+                count++;
+                return values.next();
+            }
+        }
+
+        @Override
+        public void run(Context context) throws IOException, InterruptedException {
+            if (context.getTaskAttemptID().getTaskType() == TaskType.MAP) {
+                super.run(context);
+                return;
+            }
+
+            CountingValues group = new CountingValues();
+            Histogram sizes = new Histogram(context, GROUP_SIZE_GROUP);
+            long maxGroup = 0;
+            setup(context);
+            try {
+                while (context.nextKey()) {
+                    group.reset(context.getValues());
+                    reduce(context.getCurrentKey(), group, context);
+                    // Valeurs non lues par reduce() (sortie anticipee) : comptees quand meme
+                    while (group.hasNext()) {
+                        group.next();
+                    }
+                    Iterator<VI> iter = context.getValues().iterator();
+                    if (iter instanceof ReduceContext.ValueIterator) {
+                        ((ReduceContext.ValueIterator<VI>) iter).resetBackupStore();
+                    }
+                    sizes.add(group.count);
+                    maxGroup = Math.max(maxGroup, group.count);
+                }
+            } finally {
+                cleanup(context);
+            }
+            context.getCounter(MAX_GROUP_GROUP, reducerName(context)).increment(maxGroup);
+        }
+
+        private static String reducerName(TaskAttemptContext context) {
+            return String.format("r-%05d", context.getTaskAttemptID().getTaskID().getId());
+        }
+    }
+
+    // ==========================================
+    // COTE DRIVER
+    // ==========================================
+
+    private final Configuration conf;
+    private final String program;
+    private final Path path;
+    private final long start = System.currentTimeMillis();
+    private final List<String> stages = new ArrayList<>();
+    private final Map<String, String> settings = new LinkedHashMap<>();
+
+    public RunReport(Configuration conf, String program, Path defaultPath) {
+        this.conf = conf;
+        this.program = program;
+        this.path = new Path(conf.get(PATH_KEY, defaultPath.toString()));
+    }
+
+    // Lance le job (waitForCompletion) et enregistre l'etape
+    public boolean run(Job job) throws Exception {
+        return run(job, () -> job.waitForCompletion(true));
+    }
+
+    // Variante pour un lanceur particulier (ex : SkewPartitioning.waitForCompletion)
+    public boolean run(Job job, Callable<Boolean> runner) throws Exception {
+        Configuration jobConf = job.getConfiguration();
+        int countersMax = DEFAULT_COUNTERS_MAX + HISTOGRAM_COUNTERS + job.getNumReduceTasks();
+        if (jobConf.getInt(MRJobConfig.COUNTERS_MAX_KEY, DEFAULT_COUNTERS_MAX) < countersMax) {
+            jobConf.setInt(MRJobConfig.COUNTERS_MAX_KEY, countersMax);
+        }
+
+        long stageStart = System.currentTimeMillis();
+        boolean success = runner.call();
+        long elapsed = System.currentTimeMillis() - stageStart;
+        stages.add(stageJson(job, success, elapsed));
+        return success;
+    }
+
+    // Etape sautee par le driver (sortie deja a jour)
+    public void skip(String name) {
+        stages.add("{\"name\": " + quote(name) + ", \"skipped\": true}");
+    }
+
+    // Reglage applique par le driver, ecrit dans "settings"
+    public void setting(String name, String value) {
+        settings.put(name, value);
+    }
+
+    // Ecrit le rapport ; a appeler une fois toutes les etapes lancees (meme en cas d'echec)
+    public void write() throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"program\": ").append(quote(program))
+                .append(",\n  \"startTime\": ").append(start)
+                .append(",\n  \"elapsedMs\": ").append(System.currentTimeMillis() - start)
+                .append(",\n  \"settings\": {");
+        boolean first = true;
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            json.append(first ? "" : ", ").append(quote(setting.getKey())).append(": ").append(quote(setting.getValue()));
+            first = false;
+        }
+        json.append("},\n  \"stages\": [");
+        for (int i = 0; i < stages.size(); i++) {
+            json.append(i > 0 ? "," : "").append("\n    ").append(stages.get(i));
+        }
+        json.append("\n  ]\n}\n");
+
+        FileSystem fs = path.getFileSystem(conf);
+        try (Writer out = new OutputStreamWriter(fs.create(path, true), StandardCharsets.UTF_8)) {
+            out.write(json.toString());
+        }
+        System.out.println("Rapport d'execution : " + fs.makeQualified(path));
+    }
+
+    private static String stageJson(Job job, boolean success, long elapsed) throws IOException, InterruptedException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"name\": ").append(quote(job.getJobName()))
+                .append(", \"jobId\": ").append(job.getJobID() == null ? "null" : quote(job.getJobID().toString()))
+                .append(", \"success\": ").append(success)
+                .append(", \"elapsedMs\": ").append(elapsed)
+                .append(", \"reduceTasks\": ").append(job.getNumReduceTasks());
+
+        Counters counters = job.getCounters();
+        if (counters == null) {
+            return json.append("}").toString();
+        }
+
+        json.append(", \"counters\": {");
+        boolean firstGroup = true;
+        for (CounterGroup group : counters) {
+            json.append(firstGroup ? "" : ", ").append(quote(group.getName())).append(": {");
+            boolean first = true;
+            for (Counter counter : group) {
+                json.append(first ? "" : ", ").append(quote(counter.getName())).append(": ").append(counter.getValue());
+                first = false;
+            }
+            json.append("}");
+            firstGroup = false;
+        }
+        json.append("}");
+
+        // Desequilibre : plus gros groupe d'un Reducer rapporte a la moyenne des Reducers
+        CounterGroup maxGroups = counters.getGroup(MAX_GROUP_GROUP);
+        if (maxGroups.size() > 0) {
+            long max = 0;
+            long sum = 0;
+            for (Counter counter : maxGroups) {
+                max = Math.max(max, counter.getValue());
+                sum += counter.getValue();
+            }
+            double mean = (double) sum / maxGroups.size();
+            json.append(", \"skew\": {\"maxGroupSize\": ").append(max)
+                    .append(", \"meanReducerMaxGroupSize\": ").append(String.format(Locale.ROOT, "%.1f", mean))
+                    .append(", \"ratio\": ").append(String.format(Locale.ROOT, "%.2f", mean > 0 ? max / mean : 0.0))
+                    .append("}");
+        }
+        return json.append("}").toString();
+    }
+
+    static String quote(String s) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,468 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+// Magasin cle-valeur immuable des recommandations, construit a partir de la sortie du
+// Job 5 d'OuladRecommendation (job5_scoring, lignes "etudiant \t scores").
+//
+// Les identifiants d'etudiants sont tries par octets : une recherche dichotomique dans le
+// fichier ouvert en memory-mapping donne l'emplacement des scores de l'etudiant dans la
+// zone des valeurs, sans charger le fichier sur le tas. Les valeurs decodees les plus
+// recentes sont gardees dans un cache LRU.
+//
+// Format (big-endian) :
+//   int MAGIC, int VERSION, int n
+//   int keyOffsets[n + 1]         -- debut de chaque identifiant dans la zone des cles
+//   int valueOffsets[n]           -- debut des scores de chaque etudiant (zone des valeurs)
+//   int valueLengths[n]
+//   byte keys[keyOffsets[n]]      -- identifiants en UTF-8, tries par octets
+//   byte values[...]              -- scores en UTF-8, dans l'ordre de la sortie du job
+public class ScoreStore implements AutoCloseable {
+
+    private static final int MAGIC = 0x4F535331; // "OSS1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+
+    // Nombre d'entrees decodees gardees en cache par defaut
+    public static final int DEFAULT_CACHE_ENTRIES = 1024;
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final int keyOffsetsStart;
+    private final int valueOffsetsStart;
+    private final int valueLengthsStart;
+    private final int keysStart;
+    private final int valuesStart;
+    private final Map<String, String> cache;
+
+    private ScoreStore(RandomAccessFile file, MappedByteBuffer buffer, int cacheEntries) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Fichier de scores invalide");
+        }
+        this.size = buffer.getInt(8);
+        this.keyOffsetsStart = HEADER_BYTES;
+        this.valueOffsetsStart = keyOffsetsStart + 4 * (size + 1);
+        this.valueLengthsStart = valueOffsetsStart + 4 * size;
+        this.keysStart = valueLengthsStart + 4 * size;
+        this.valuesStart = keysStart + buffer.getInt(keyOffsetsStart + 4 * size);
+
+        // LinkedHashMap en ordre d'acces : l'entree la plus ancienne est evincee
+        this.cache = cacheEntries <= 0 ? null : new LinkedHashMap<String, String>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > cacheEntries;
+            }
+        };
+    }
+
+    public static ScoreStore open(String storeFile) throws IOException {
+        return open(storeFile, DEFAULT_CACHE_ENTRIES);
+    }
+
+    // cacheEntries <= 0 : pas de cache, chaque lecture decode la valeur
+    public static ScoreStore open(String storeFile, int cacheEntries) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(storeFile, "r");
+        try {
+            // Limite : 2 Go par mapping ; au-dela, exporter la sortie top-K ou creuse du Job 5
+            if (file.length() > Integer.MAX_VALUE) {
+                throw new IOException("Fichier trop volumineux pour un seul mapping (" + file.length() + " octets)");
+            }
+            MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            return new ScoreStore(file, buffer, cacheEntries);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // Nombre d'etudiants
+    public int size() {
+        return size;
+    }
+
+    // Scores de l'etudiant (texte de la sortie du Job 5), null s'il est absent
+    public String get(String student) {
+        if (cache != null) {
+            synchronized (cache) {
+                String cached = cache.get(student);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+        }
+        int i = find(student.getBytes(StandardCharsets.UTF_8), 0, size);
+        if (i < 0) {
+            return null;
+        }
+        String value = valueAt(i);
+        if (cache != null) {
+            synchronized (cache) {
+                cache.put(student, value);
+            }
+        }
+        return value;
+    }
+
+    // Lecture groupee : les identifiants sont tries puis cherches dans l'ordre de l'index,
+    // chaque recherche repartant de la position de la precedente (recherche exponentielle :
+    // le cout depend de l'ecart entre deux etudiants demandes, pas de la taille du magasin).
+    // Resultat dans l'ordre de la demande, etudiants absents omis. Sans passage par le cache.
+    public Map<String, String> getAll(Collection<String> students) {
+        byte[][] keys = new byte[students.size()][];
+        String[] names = students.toArray(new String[0]);
+        Integer[] order = new Integer[names.length];
+        for (int i = 0; i < names.length; i++) {
+            keys[i] = names[i].getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+
+        String[] values = new String[names.length];
+        int from = 0;
+        for (int k : order) {
+            int lo = gallop(keys[k], from);
+            if (lo < size && compare(lo, keys[k]) == 0) {
+                values[k] = valueAt(lo);
+            }
+            from = lo;
+        }
+
+        Map<String, String> result = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i++) {
+            if (values[i] != null) {
+                result.put(names[i], values[i]);
+            }
+        }
+        return result;
+    }
+
+    // Identifiant d'indice i (ordre de l'index)
+    public String studentAt(int i) {
+        int start = keyOffset(i);
+        return decode(keysStart + start, keyOffset(i + 1) - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    // Indice de l'etudiant dans [from, to), -1 s'il est absent
+    private int find(byte[] key, int from, int to) {
+        int i = lowerBound(key, from, to);
+        return i < to && compare(i, key) == 0 ? i : -1;
+    }
+
+    // Premier indice de [from, to) dont l'identifiant est >= key
+    private int lowerBound(byte[] key, int from, int to) {
+        int lo = from;
+        int hi = to;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Comme lowerBound(key, from, size), en elargissant l'intervalle par pas doubles depuis from
+    private int gallop(byte[] key, int from) {
+        int probe = from;
+        int step = 1;
+        while (probe < size && compare(probe, key) < 0) {
+            from = probe + 1;
+            probe += step;
+            step <<= 1;
+        }
+        return lowerBound(key, from, Math.min(probe, size));
+    }
+
+    // Compare l'identifiant i aux octets de key (ordre des octets non signes)
+    private int compare(int i, byte[] key) {
+        int start = keysStart + keyOffset(i);
+        int len = keyOffset(i + 1) - keyOffset(i);
+        int n = Math.min(len, key.length);
+        for (int k = 0; k < n; k++) {
+            int cmp = (buffer.get(start + k) & 0xff) - (key[k] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return len - key.length;
+    }
+
+    private int keyOffset(int i) {
+        return buffer.getInt(keyOffsetsStart + 4 * i);
+    }
+
+    private String valueAt(int i) {
+        return decode(valuesStart + buffer.getInt(valueOffsetsStart + 4 * i), buffer.getInt(valueLengthsStart + 4 * i));
+    }
+
+    private String decode(int position, int length) {
+        byte[] bytes = new byte[length];
+        // Copie en bloc sur une vue du buffer : la position du buffer partage n'est pas modifiee
+        ByteBuffer view = buffer.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // ==========================================
+    // CONSTRUCTION DU MAGASIN
+    // ==========================================
+
+    // Lit la sortie du Job 5 (fichier ou dossier, local ou HDFS) et ecrit le magasin dans le
+    // fichier local storeFile. Les scores sont recopies au fil de la lecture dans un fichier
+    // temporaire : seuls les identifiants et les positions restent sur le tas.
+    public static int build(Configuration conf, Path jobOutput, String storeFile) throws IOException {
+        FileSystem fs = jobOutput.getFileSystem(conf);
+        File values = File.createTempFile("scores", ".values", new File(storeFile).getAbsoluteFile().getParentFile());
+        try {
+            List<byte[]> keys = new ArrayList<>();
+            List<long[]> positions = new ArrayList<>();
+            long written;
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(values))) {
+                written = collectScores(fs, jobOutput, keys, positions, out, 0);
+            }
+            // Le fichier entier (en-tete, positions, cles et scores) tient dans un seul mapping
+            long total = 4L * (3 + keys.size() + 1 + 2L * keys.size()) + written;
+            for (byte[] key : keys) {
+                total += key.length;
+            }
+            if (total > Integer.MAX_VALUE) {
+                throw new IOException("Sortie trop volumineuse pour un seul mapping (" + total + " octets)");
+            }
+
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys.get(a), keys.get(b)));
+            for (int i = 1; i < order.length; i++) {
+                if (Arrays.equals(keys.get(order[i - 1]), keys.get(order[i]))) {
+                    throw new IOException("Etudiant en double dans la sortie du Job 5 : "
+                            + new String(keys.get(order[i]), StandardCharsets.UTF_8));
+                }
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(storeFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(order.length);
+                int offset = 0;
+                for (int i : order) {
+                    out.writeInt(offset);
+                    offset += keys.get(i).length;
+                }
+                out.writeInt(offset);
+                for (int i : order) {
+                    out.writeInt((int) positions.get(i)[0]);
+                }
+                for (int i : order) {
+                    out.writeInt((int) positions.get(i)[1]);
+                }
+                for (int i : order) {
+                    out.write(keys.get(i));
+                }
+                try (InputStream in = new BufferedInputStream(new FileInputStream(values))) {
+                    byte[] chunk = new byte[65536];
+                    int n;
+                    while ((n = in.read(chunk)) > 0) {
+                        out.write(chunk, 0, n);
+                    }
+                }
+            }
+            return order.length;
+        } finally {
+            values.delete();
+        }
+    }
+
+    // Ligne : etudiant \t scores. Retourne la position atteinte dans la zone des valeurs.
+    private static long collectScores(FileSystem fs, Path path, List<byte[]> keys, List<long[]> positions,
+            OutputStream values, long position) throws IOException {
+        FileStatus status = fs.getFileStatus(path);
+        if (status.isDirectory()) {
+            for (FileStatus child : fs.listStatus(path)) {
+                String name = child.getPath().getName();
+                if (!name.startsWith("_") && !name.startsWith(".")) {
+                    position = collectScores(fs, child.getPath(), keys, positions, values, position);
+                }
+            }
+            return position;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) {
+                    continue;
+                }
+                byte[] scores = line.substring(tab + 1).getBytes(StandardCharsets.UTF_8);
+                keys.add(line.substring(0, tab).getBytes(StandardCharsets.UTF_8));
+                positions.add(new long[] { position, scores.length });
+                values.write(scores);
+                position += scores.length;
+            }
+        }
+        return position;
+    }
+
+    // ==========================================
+    // BENCHMARK
+    // ==========================================
+
+    // Latence de get() sur des etudiants tires au hasard, sans cache puis avec un cache et
+    // des requetes concentrees (90 % sur 1 % des etudiants), et debit de getAll()
+    static void benchmark(String storeFile, int queries, int batchSize) throws IOException {
+        try (ScoreStore direct = open(storeFile, 0)) {
+            String[] students = new String[direct.size()];
+            for (int i = 0; i < students.length; i++) {
+                students[i] = direct.studentAt(i);
+            }
+            if (students.length == 0 || queries <= 0 || batchSize <= 0) {
+                System.out.println("etudiants : " + students.length + ", requetes : " + queries + " : rien a mesurer");
+                return;
+            }
+            Random random = new Random(42);
+            System.out.printf("etudiants : %d, requetes : %d%n", students.length, queries);
+            System.out.print("get sans cache      : ");
+            latencies(direct, students, queries, random, false);
+
+            try (ScoreStore cached = open(storeFile, Math.max(1, students.length / 100))) {
+                System.out.print("get cache LRU (1 %) : ");
+                latencies(cached, students, queries, random, true);
+            }
+
+            int batches = Math.max(1, queries / batchSize);
+            List<List<String>> requests = new ArrayList<>(batches);
+            for (int b = 0; b < batches; b++) {
+                List<String> batch = new ArrayList<>(batchSize);
+                for (int q = 0; q < batchSize; q++) {
+                    batch.add(students[random.nextInt(students.length)]);
+                }
+                requests.add(batch);
+            }
+            long sink = 0;
+            for (int b = 0; b < Math.min(batches, 2000); b++) {
+                sink += direct.getAll(requests.get(b)).size();
+            }
+            sink = 0;
+            long start = System.nanoTime();
+            for (List<String> batch : requests) {
+                sink += direct.getAll(batch).size();
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("getAll par %d       : %.2f us par etudiant (trouves : %d)%n", batchSize,
+                    nanos / 1000.0 / ((long) batches * batchSize), sink);
+        }
+    }
+
+    private static void latencies(ScoreStore store, String[] students, int queries, Random random, boolean hot) {
+        int hotSet = Math.max(1, students.length / 100);
+        long sink = 0;
+        for (int q = 0; q < Math.min(queries, 10000); q++) {
+            sink += store.get(pick(students, random, hot, hotSet)).length();
+        }
+
+        long[] latencies = new long[queries];
+        for (int q = 0; q < queries; q++) {
+            String student = pick(students, random, hot, hotSet);
+            long start = System.nanoTime();
+            sink += store.get(student).length();
+            latencies[q] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        System.out.printf("p50=%.2f us  p90=%.2f us  p99=%.2f us  p99.9=%.2f us  max=%.2f us (octets lus : %d)%n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[queries - 1] / 1000.0, sink);
+    }
+
+    private static String pick(String[] students, Random random, boolean hot, int hotSet) {
+        if (hot && random.nextInt(10) < 9) {
+            return students[random.nextInt(hotSet)];
+        }
+        return students[random.nextInt(students.length)];
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(i, 0)] / 1000.0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ScoreStore build <job5_scoring output> <store file>");
+            System.err.println("       ScoreStore get <store file> <student id> [student id...]");
+            System.err.println("       ScoreStore bench <store file> [queries] [batch size]");
+            System.exit(-1);
+        }
+
+        switch (args[0]) {
+            case "build":
+                if (args.length < 3) {
+                    System.err.println("Usage: ScoreStore build <job5_scoring output> <store file>");
+                    System.exit(-1);
+                }
+                int count = build(new Configuration(), new Path(args[1]), args[2]);
+                System.out.println(count + " etudiants exportes dans " + args[2]);
+                break;
+            case "get":
+                try (ScoreStore store = open(args[1])) {
+                    if (args.length == 3) {
+                        String scores = store.get(args[2]);
+                        System.out.println(scores == null ? "Etudiant inconnu : " + args[2] : args[2] + "\t" + scores);
+                    } else {
+                        Map<String, String> found = store.getAll(Arrays.asList(args).subList(2, args.length));
+                        for (Map.Entry<String, String> entry : found.entrySet()) {
+                            System.out.println(entry.getKey() + "\t" + entry.getValue());
+                        }
+                    }
+                }
+                break;
+            case "bench":
+                int queries = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+                int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+                benchmark(args[1], queries, batchSize);
+                break;
+            default:
+                System.err.println("Commande inconnue : " + args[0]);
+                System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,493 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocatedFileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.partition.HashPartitioner;
+import org.apache.hadoop.util.LineReader;
+
+// Partitionnement tenant compte du desequilibre des cles (suffixes "tion", paires
+// populaires, id_site tres visites...), commun aux trois programmes.
+//
+// 1. Le driver echantillonne l'entree et estime le poids de chaque cle.
+// 2. Un plan est calcule : les cles lourdes sont reparties ("salees") sur plusieurs
+//    Reducers, les autres cles echantillonnees sont placees par poids decroissant sur le
+//    Reducer le moins charge, les cles inconnues gardent le hachage du HashPartitioner.
+// 3. Le plan est diffuse par le DistributedCache et lu par SkewPartitioner.
+// 4. Pour une agregation, chaque Reducer n'a qu'un resultat partiel des cles reparties :
+//    il l'ecrit dans <sortie>/_skew/ (SpreadKeys) et un job de fusion relance le meme
+//    Reducer sur ces partiels (waitForCompletion). Pour une jointure, le Mapper du petit
+//    cote emet une copie par Reducer (replicas()) et aucune fusion n'est necessaire.
+public class SkewPartitioning {
+
+    // Nombre total de lignes lues par l'echantillonnage (defaut : 100000)
+    public static final String SAMPLE_RECORDS_KEY = "skew.sampleRecords";
+
+    // Nombre de zones lues par fichier, reparties sur toute sa longueur (defaut : 10)
+    public static final String SAMPLE_CHUNKS_KEY = "skew.sampleChunks";
+
+    // Une cle est lourde si son poids depasse cette fraction de la part equitable
+    // d'un Reducer (total / nb Reducers). Defaut : 0.5
+    public static final String HEAVY_SHARE_KEY = "skew.heavyShare";
+
+    // Nombre maximal de cles placees explicitement (les plus lourdes), defaut : 10000
+    public static final String BALANCED_KEYS_KEY = "skew.balancedKeys";
+
+    // Nombre de cles reparties du plan, renseigne par configure()
+    public static final String SPREAD_KEYS_KEY = "skew.spreadKeys";
+
+    // Positionne pour le job de fusion : plan ignore, partiels ecrits normalement
+    public static final String MERGE_KEY = "skew.merge";
+
+    // Lien symbolique du plan dans le DistributedCache
+    public static final String PLAN_LINK = "skew_plan";
+
+    // Sortie nommee et dossier des resultats partiels des cles reparties
+    public static final String SPREAD_OUTPUT = "skew";
+    public static final String SPREAD_DIR = "_skew";
+
+    // Cles de partitionnement produites par une ligne de l'entree (meme forme que
+    // SkewPartitioner.partitionKey()), une occurrence par enregistrement emis
+    public interface KeyExtractor {
+        void extract(String line, List<String> keys);
+    }
+
+    // ==========================================
+    // PLAN DE PARTITIONNEMENT
+    // ==========================================
+
+    // Format texte : nombre de Reducers sur la premiere ligne, puis "cle \t p1,p2,..."
+    public static class Plan {
+
+        private final int reducers;
+        private final Map<Text, Entry> entries = new HashMap<>();
+        private int spreadKeys;
+
+        Plan(int reducers) {
+            this.reducers = reducers;
+        }
+
+        public int getReducers() {
+            return reducers;
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        public int getSpreadKeys() {
+            return spreadKeys;
+        }
+
+        // Nombre de Reducers recevant la cle (1 si elle n'est pas repartie)
+        public int replicas(Text key) {
+            Entry entry = entries.get(key);
+            return entry == null ? 1 : entry.partitions.length;
+        }
+
+        public boolean isSpread(Text key) {
+            return replicas(key) > 1;
+        }
+
+        Entry get(Text key) {
+            return entries.get(key);
+        }
+
+        void put(String key, int[] partitions) {
+            entries.put(new Text(key), new Entry(partitions));
+            if (partitions.length > 1) {
+                spreadKeys++;
+            }
+        }
+
+        void write(FileSystem fs, Path path) throws IOException {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(fs.create(path, true), StandardCharsets.UTF_8))) {
+                out.println(reducers);
+                for (Map.Entry<Text, Entry> e : entries.entrySet()) {
+                    StringBuilder sb = new StringBuilder(e.getKey().toString()).append('\t');
+                    int[] partitions = e.getValue().partitions;
+                    for (int i = 0; i < partitions.length; i++) {
+                        sb.append(i > 0 ? "," : "").append(partitions[i]);
+                    }
+                    out.println(sb);
+                }
+            }
+        }
+
+        // Plan du DistributedCache (null si absent : partitionnement par hachage)
+        public static Plan loadLocal() throws IOException {
+            File file = new File(PLAN_LINK);
+            if (!file.exists()) {
+                return null;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                Plan plan = new Plan(Integer.parseInt(reader.readLine().trim()));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.lastIndexOf('\t');
+                    String[] tokens = line.substring(tab + 1).split(",");
+                    int[] partitions = new int[tokens.length];
+                    for (int i = 0; i < tokens.length; i++) {
+                        partitions[i] = Integer.parseInt(tokens[i]);
+                    }
+                    plan.put(line.substring(0, tab), partitions);
+                }
+                return plan;
+            }
+        }
+    }
+
+    // Reducers d'une cle ; une cle repartie les parcourt a tour de role
+    static class Entry {
+        final int[] partitions;
+        int next;
+
+        Entry(int[] partitions) {
+            this.partitions = partitions;
+        }
+
+        int nextPartition(int offset) {
+            int partition = partitions[(next + offset) % partitions.length];
+            next = (next + 1) % partitions.length;
+            return partition;
+        }
+    }
+
+    // ==========================================
+    // ECHANTILLONNAGE ET CALCUL DU PLAN
+    // ==========================================
+
+    // Poids (nombre d'enregistrements) de chaque cle sur un echantillon de l'entree.
+    // Entrees : fichiers, dossiers (parcourus recursivement) ou globs ("part_*").
+    // Chaque fichier est lu par zones reparties sur sa longueur (debut de ligne recale) ;
+    // un fichier compresse est lu depuis le debut.
+    static Map<String, Long> sample(Configuration conf, List<Path> inputs, KeyExtractor extractor) throws IOException {
+        List<FileStatus> files = new ArrayList<>();
+        for (Path input : inputs) {
+            FileSystem fs = input.getFileSystem(conf);
+            FileStatus[] matches = fs.globStatus(input);
+            if (matches == null) {
+                throw new FileNotFoundException("Entree inexistante : " + input);
+            }
+            for (FileStatus match : matches) {
+                if (!match.isDirectory()) {
+                    addSampled(match, files);
+                    continue;
+                }
+                RemoteIterator<LocatedFileStatus> it = fs.listFiles(match.getPath(), true);
+                while (it.hasNext()) {
+                    addSampled(it.next(), files);
+                }
+            }
+        }
+
+        Map<String, Long> weights = new HashMap<>();
+        if (files.isEmpty()) {
+            return weights;
+        }
+        int perFile = Math.max(1, conf.getInt(SAMPLE_RECORDS_KEY, 100000) / files.size());
+        int chunks = Math.max(1, conf.getInt(SAMPLE_CHUNKS_KEY, 10));
+        CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+        List<String> keys = new ArrayList<>();
+        Text line = new Text();
+
+        for (FileStatus file : files) {
+            FileSystem fs = file.getPath().getFileSystem(conf);
+            CompressionCodec codec = codecs.getCodec(file.getPath());
+            int fileChunks = codec != null ? 1 : chunks;
+            for (int c = 0; c < fileChunks; c++) {
+                long offset = file.getLen() * c / fileChunks;
+                try (FSDataInputStream raw = fs.open(file.getPath())) {
+                    InputStream in = raw;
+                    if (codec != null) {
+                        in = codec.createInputStream(raw);
+                    } else {
+                        raw.seek(offset);
+                    }
+                    LineReader reader = new LineReader(in, conf);
+                    if (offset > 0 && codec == null) {
+                        reader.readLine(line); // Ligne coupee par le seek
+                    }
+                    for (int n = 0; n < perFile / fileChunks + 1 && reader.readLine(line) > 0; n++) {
+                        keys.clear();
+                        extractor.extract(line.toString(), keys);
+                        for (String key : keys) {
+                            weights.merge(key, 1L, Long::sum);
+                        }
+                    }
+                }
+            }
+        }
+        return weights;
+    }
+
+    // Fichiers caches ("_SUCCESS", ".crc") ignores
+    private static void addSampled(FileStatus file, List<FileStatus> files) {
+        String name = file.getPath().getName();
+        if (!name.startsWith("_") && !name.startsWith(".")) {
+            files.add(file);
+        }
+    }
+
+    // Cles lourdes d'abord, puis placement glouton (la plus lourde sur le Reducer le moins charge)
+    static Plan buildPlan(Map<String, Long> weights, int reducers, Configuration conf) {
+        Plan plan = new Plan(reducers);
+        long total = 0;
+        for (long weight : weights.values()) {
+            total += weight;
+        }
+        if (total == 0 || reducers < 2) {
+            return plan;
+        }
+
+        double heavyWeight = conf.getFloat(HEAVY_SHARE_KEY, 0.5f) * total / reducers;
+        int balancedKeys = conf.getInt(BALANCED_KEYS_KEY, 10000);
+
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(weights.entrySet());
+        sorted.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        double[] loads = new double[reducers];
+        for (int i = 0; i < sorted.size() && i < balancedKeys; i++) {
+            long weight = sorted.get(i).getValue();
+            int salts = 1;
+            if (weight >= heavyWeight) {
+                salts = (int) Math.min(reducers, Math.max(2, Math.ceil(weight / heavyWeight)));
+            }
+            int[] partitions = leastLoaded(loads, salts);
+            for (int p : partitions) {
+                loads[p] += (double) weight / salts;
+            }
+            plan.put(sorted.get(i).getKey(), partitions);
+        }
+        return plan;
+    }
+
+    // Les n Reducers les moins charges, tries
+    private static int[] leastLoaded(double[] loads, int n) {
+        Integer[] order = new Integer[loads.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(loads[a], loads[b]));
+        int[] partitions = new int[n];
+        for (int i = 0; i < n; i++) {
+            partitions[i] = order[i];
+        }
+        Arrays.sort(partitions);
+        return partitions;
+    }
+
+    // ==========================================
+    // INSTALLATION DANS UN JOB
+    // ==========================================
+
+    // A appeler une fois le job configure (classes de sortie du Mapper, nb de Reducers) :
+    // echantillonne inputs, ecrit le plan dans planPath, le diffuse et installe
+    // SkewPartitioner (un driver peut ensuite le remplacer par une sous-classe).
+    // Retourne le plan (vide si le job a moins de deux Reducers).
+    public static Plan configure(Job job, Path planPath, List<Path> inputs, KeyExtractor extractor) throws Exception {
+        Configuration conf = job.getConfiguration();
+        Plan plan = buildPlan(sample(conf, inputs, extractor), job.getNumReduceTasks(), conf);
+        if (plan.size() == 0) {
+            return plan;
+        }
+
+        FileSystem fs = planPath.getFileSystem(conf);
+        plan.write(fs, planPath);
+        URI uri = fs.makeQualified(planPath).toUri();
+        job.addCacheFile(new URI(uri.toString() + "#" + PLAN_LINK));
+        job.setPartitionerClass(SkewPartitioner.class);
+
+        conf.setInt(SPREAD_KEYS_KEY, plan.getSpreadKeys());
+        MultipleOutputs.addNamedOutput(job, SPREAD_OUTPUT, SequenceFileOutputFormat.class,
+                job.getMapOutputKeyClass(), job.getMapOutputValueClass());
+        System.out.println("Plan de partitionnement : " + plan.size() + " cles placees dont "
+                + plan.getSpreadKeys() + " reparties sur plusieurs Reducers");
+        return plan;
+    }
+
+    // Lance le job puis, si des Reducers ont ecrit des partiels dans <sortie>/_skew/, le job
+    // de fusion : meme configuration, Mapper identite, HashPartitioner, plan desactive.
+    // Les fichiers fusionnes rejoignent la sortie sous le nom part-r-skew-NNNNN.
+    public static boolean waitForCompletion(Job job, boolean verbose) throws Exception {
+        Configuration mergeConf = new Configuration(job.getConfiguration());
+        if (!job.waitForCompletion(verbose)) {
+            return false;
+        }
+
+        Path output = FileOutputFormat.getOutputPath(job);
+        Path spreadDir = new Path(output, SPREAD_DIR);
+        FileSystem fs = output.getFileSystem(mergeConf);
+        int spreadKeys = mergeConf.getInt(SPREAD_KEYS_KEY, 0);
+        if (spreadKeys == 0 || !fs.exists(spreadDir)) {
+            return true;
+        }
+
+        mergeConf.setBoolean(MERGE_KEY, true);
+        Job merge = Job.getInstance(mergeConf, job.getJobName() + " - fusion des cles reparties");
+        merge.setInputFormatClass(SequenceFileInputFormat.class);
+        // Fichiers listes un par un : le filtre de FileInputFormat ignore un chemin "_skew"
+        FileInputFormat.setInputPaths(merge, FileUtil.stat2Paths(fs.listStatus(spreadDir)));
+        merge.setMapperClass(Mapper.class);
+        merge.setPartitionerClass(HashPartitioner.class);
+        merge.setNumReduceTasks(Math.max(1, Math.min(spreadKeys, job.getNumReduceTasks())));
+        Path mergedDir = new Path(output, "_skew_merge");
+        FileOutputFormat.setOutputPath(merge, mergedDir);
+        if (!merge.waitForCompletion(verbose)) {
+            return false;
+        }
+
+        moveMerged(fs, mergedDir, output);
+        fs.delete(spreadDir, true);
+        fs.delete(mergedDir, true);
+        return true;
+    }
+
+    // Deplace les sorties fusionnees (y compris les sous-dossiers de MultipleOutputs)
+    private static void moveMerged(FileSystem fs, Path from, Path to) throws IOException {
+        for (FileStatus child : fs.listStatus(from)) {
+            String name = child.getPath().getName();
+            if (name.startsWith("_") || name.startsWith(".")) {
+                continue;
+            }
+            if (child.isDirectory()) {
+                Path target = new Path(to, name);
+                fs.mkdirs(target);
+                moveMerged(fs, child.getPath(), target);
+            } else {
+                fs.rename(child.getPath(), new Path(to, name.replaceFirst("^part-([mr])-", "part-$1-skew-")));
+            }
+        }
+    }
+
+    // ==========================================
+    // COTE TACHES
+    // ==========================================
+
+    // Partitioner suivant le plan ; cles absentes du plan : meme hachage que HashPartitioner
+    // (sur partitionKey()). Le tourniquet d'une cle repartie demarre a un rang propre a
+    // chaque tache, et des copies consecutives d'un enregistrement (replicas()) atteignent
+    // ainsi chacun de ses Reducers.
+    public static class SkewPartitioner<K, V> extends Partitioner<K, V> implements Configurable {
+
+        private Configuration conf;
+        private Plan plan;
+        private int offset;
+        private Text text = new Text();
+
+        @Override
+        public void setConf(Configuration conf) {
+            this.conf = conf;
+            offset = conf.getInt(MRJobConfig.TASK_PARTITION, 0);
+            try {
+                plan = conf.getBoolean(MERGE_KEY, false) ? null : Plan.loadLocal();
+            } catch (IOException e) {
+                throw new IllegalStateException("Plan de partitionnement illisible", e);
+            }
+        }
+
+        @Override
+        public Configuration getConf() {
+            return conf;
+        }
+
+        // Cle du plan : la cle elle-meme si c'est un Text, sinon son toString()
+        protected Text partitionKey(K key, Text reuse) {
+            if (key instanceof Text) {
+                return (Text) key;
+            }
+            reuse.set(key.toString());
+            return reuse;
+        }
+
+        @Override
+        public int getPartition(K key, V value, int numPartitions) {
+            Text planKey = partitionKey(key, text);
+            if (plan != null && plan.getReducers() == numPartitions) {
+                Entry entry = plan.get(planKey);
+                if (entry != null) {
+                    return entry.nextPartition(offset);
+                }
+            }
+            return (planKey.hashCode() & Integer.MAX_VALUE) % numPartitions;
+        }
+    }
+
+    // Cote Reducer d'une agregation : detourne le resultat partiel des cles reparties
+    // vers <sortie>/_skew/ au lieu de l'ecrire.
+    public static class SpreadKeys {
+
+        private final Plan plan;
+        @SuppressWarnings("rawtypes")
+        private final MultipleOutputs outputs;
+        private Text text = new Text();
+
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        private SpreadKeys(Plan plan, TaskInputOutputContext context) {
+            this.plan = plan;
+            this.outputs = new MultipleOutputs(context);
+        }
+
+        // null si aucun plan, aucune cle repartie, ou pendant le job de fusion
+        public static SpreadKeys open(TaskInputOutputContext<?, ?, ?, ?> context) throws IOException {
+            Configuration conf = context.getConfiguration();
+            if (conf.getBoolean(MERGE_KEY, false) || conf.getInt(SPREAD_KEYS_KEY, 0) == 0) {
+                return null;
+            }
+            Plan plan = Plan.loadLocal();
+            return plan == null ? null : new SpreadKeys(plan, context);
+        }
+
+        public boolean contains(Object key) {
+            if (key instanceof Text) {
+                return plan.isSpread((Text) key);
+            }
+            text.set(key.toString());
+            return plan.isSpread(text);
+        }
+
+        // Ecrit le resultat partiel (type de sortie du Mapper) pour le job de fusion
+        @SuppressWarnings("unchecked")
+        public void write(Object key, Object partial) throws IOException, InterruptedException {
+            outputs.write(SPREAD_OUTPUT, key, partial, SPREAD_DIR + "/part");
+        }
+
+        public void close() throws IOException, InterruptedException {
+            outputs.close();
+        }
+    }
+}
@@ -0,0 +1,489 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.map.WrappedMapper;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.apache.hadoop.mapreduce.task.MapContextImpl;
+import org.apache.hadoop.mapreduce.task.ReduceContextImpl;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.Progress;
+
+// Micro-benchmarks des Mappers/Reducers, executes hors Hadoop sur des donnees generees
+// en memoire (DataGenerator) : meme code que dans un job, sans demarrage de job ni I/O.
+//
+// Chaque passe traite tout le jeu de donnees via Mapper.run() / Reducer.run() (setup,
+// boucle, cleanup). Les Reducers lisent des paires cle/valeur serialisees et triees comme
+// apres le shuffle. Apres bench.warmup passes de chauffe, bench.iterations passes sont
+// mesurees : debit (ops/s, moyenne +- ecart-type), temps par op et octets alloues par op
+// (compteur d'allocation du thread, JVM HotSpot).
+//
+// Les jobs OULAD lisent features.dict dans le repertoire courant (lien du DistributedCache) :
+// lancer depuis un repertoire de travail jetable (voir run_benchmarks.sh).
+public class Benchmarks {
+
+    // Nombre de passes de chauffe et de mesure (defauts : 5 et 10)
+    public static final String WARMUP_KEY = "bench.warmup";
+    public static final String ITERATIONS_KEY = "bench.iterations";
+
+    // Facteur applique a la taille de tous les jeux de donnees (defaut : 1)
+    public static final String SCALE_KEY = "bench.scale";
+
+    private static final long SEED = 42;
+
+    interface Workload {
+        // Une passe complete, retourne le nombre d'operations effectuees
+        long run() throws Exception;
+    }
+
+    private final int warmup;
+    private final int iterations;
+    private final double scale;
+    private final String filter;
+
+    Benchmarks(Configuration conf, String filter) {
+        this.warmup = conf.getInt(WARMUP_KEY, 5);
+        this.iterations = conf.getInt(ITERATIONS_KEY, 10);
+        this.scale = conf.getDouble(SCALE_KEY, 1.0);
+        this.filter = filter;
+    }
+
+    int scaled(int n) {
+        return Math.max(1, (int) (n * scale));
+    }
+
+    // ==========================================
+    // MESURE
+    // ==========================================
+
+    void measure(String name, String param, Workload workload) throws Exception {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        for (int i = 0; i < warmup; i++) {
+            workload.run();
+        }
+
+        double[] opsPerSecond = new double[iterations];
+        long totalOps = 0;
+        long totalNanos = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < iterations; i++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long ops = workload.run();
+            long nanos = System.nanoTime() - start;
+            totalBytes += allocatedBytes() - bytesBefore;
+            totalOps += ops;
+            totalNanos += nanos;
+            opsPerSecond[i] = ops * 1e9 / nanos;
+        }
+
+        double mean = Arrays.stream(opsPerSecond).average().orElse(0);
+        double variance = Arrays.stream(opsPerSecond).map(x -> (x - mean) * (x - mean)).sum() / Math.max(1, iterations - 1);
+        boolean allocation = allocatedBytes() >= 0;
+        System.out.printf(Locale.ROOT, "%-16s %-14s %14.0f +- %-10.0f %12.1f %12s %12s%n", name, param, mean,
+                Math.sqrt(variance), (double) totalNanos / totalOps,
+                allocation ? String.format(Locale.ROOT, "%.1f", (double) totalBytes / totalOps) : "n/a",
+                allocation ? String.format(Locale.ROOT, "%.1f", totalBytes / 1048576.0 / (totalNanos / 1e9)) : "n/a");
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    // ==========================================
+    // EXECUTION D'UN MAPPER / REDUCER HORS HADOOP
+    // ==========================================
+
+    // Compteurs de la tache (les Mappers peuvent incrementer des compteurs)
+    static class BenchReporter extends StatusReporter {
+        private final Counters counters = new Counters();
+
+        @Override
+        public Counter getCounter(Enum<?> name) {
+            return counters.findCounter(name);
+        }
+
+        @Override
+        public Counter getCounter(String group, String name) {
+            return counters.findCounter(group, name);
+        }
+
+        @Override
+        public void progress() {
+        }
+
+        @Override
+        public float getProgress() {
+            return 0;
+        }
+
+        @Override
+        public void setStatus(String status) {
+        }
+    }
+
+    // Sortie consommee sans etre stockee : seul le nombre d'enregistrements est garde
+    static class CountingWriter<K, V> extends RecordWriter<K, V> {
+        long records;
+
+        @Override
+        public void write(K key, V value) {
+            records++;
+        }
+
+        @Override
+        public void close(TaskAttemptContext context) {
+        }
+    }
+
+    // Entree du Mapper : valeurs Text en memoire, cle = numero de ligne
+    static class LinesReader extends RecordReader<LongWritable, Text> {
+        private final List<Text> lines;
+        private final LongWritable key = new LongWritable();
+        private int position = -1;
+
+        LinesReader(List<Text> lines) {
+            this.lines = lines;
+        }
+
+        @Override
+        public void initialize(InputSplit split, TaskAttemptContext context) {
+        }
+
+        @Override
+        public boolean nextKeyValue() {
+            position++;
+            key.set(position);
+            return position < lines.size();
+        }
+
+        @Override
+        public LongWritable getCurrentKey() {
+            return key;
+        }
+
+        @Override
+        public Text getCurrentValue() {
+            return lines.get(position);
+        }
+
+        @Override
+        public float getProgress() {
+            return (float) position / lines.size();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Sortie de shuffle simulee : paires serialisees triees par le comparateur de la cle
+    static class ShuffledInput implements RawKeyValueIterator {
+        private final byte[][] keys;
+        private final byte[][] values;
+        private final DataInputBuffer key = new DataInputBuffer();
+        private final DataInputBuffer value = new DataInputBuffer();
+        private int position = -1;
+
+        ShuffledInput(byte[][] keys, byte[][] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        @Override
+        public DataInputBuffer getKey() {
+            key.reset(keys[position], keys[position].length);
+            return key;
+        }
+
+        @Override
+        public DataInputBuffer getValue() {
+            value.reset(values[position], values[position].length);
+            return value;
+        }
+
+        @Override
+        public boolean next() {
+            return ++position < keys.length;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public Progress getProgress() {
+            return new Progress();
+        }
+    }
+
+    // Paires (cle, valeur) serialisees une fois, triees comme par le shuffle
+    static class Shuffle<K extends WritableComparable<?>, V extends Writable> {
+        final Class<K> keyClass;
+        final Class<V> valueClass;
+        final byte[][] keys;
+        final byte[][] values;
+
+        Shuffle(Class<K> keyClass, Class<V> valueClass, List<K> keyList, List<V> valueList) throws IOException {
+            this.keyClass = keyClass;
+            this.valueClass = valueClass;
+            int n = keyList.size();
+            byte[][] k = new byte[n][];
+            byte[][] v = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                k[i] = serialize(keyList.get(i));
+                v[i] = serialize(valueList.get(i));
+            }
+            RawComparator<?> comparator = WritableComparator.get(keyClass.asSubclass(WritableComparable.class));
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparing((Integer i) -> k[i],
+                    (a, b) -> comparator.compare(a, 0, a.length, b, 0, b.length)));
+            keys = new byte[n][];
+            values = new byte[n][];
+            for (int i = 0; i < n; i++) {
+                keys[i] = k[order[i]];
+                values[i] = v[order[i]];
+            }
+        }
+
+        int size() {
+            return keys.length;
+        }
+
+        private static byte[] serialize(Writable writable) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writable.write(new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        }
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static long runMapper(Mapper mapper, Configuration conf, List<Text> lines) throws Exception {
+        CountingWriter writer = new CountingWriter();
+        MapContextImpl context = new MapContextImpl(conf, new TaskAttemptID(), new LinesReader(lines), writer, null,
+                new BenchReporter(), null);
+        mapper.run(new WrappedMapper().getMapContext(context));
+        return lines.size();
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    static long runReducer(Reducer reducer, Configuration conf, Shuffle shuffle) throws Exception {
+        CountingWriter writer = new CountingWriter();
+        BenchReporter reporter = new BenchReporter();
+        ReduceContextImpl context = new ReduceContextImpl(conf, new TaskAttemptID(),
+                new ShuffledInput(shuffle.keys, shuffle.values), reporter.getCounter("bench", "keys"),
+                reporter.getCounter("bench", "values"), writer, null, reporter,
+                WritableComparator.get(shuffle.keyClass), shuffle.keyClass, shuffle.valueClass);
+        reducer.run(new WrappedReducer().getReducerContext(context));
+        return shuffle.size();
+    }
+
+    static List<Text> toText(List<String> lines) {
+        List<Text> texts = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            texts.add(new Text(line));
+        }
+        return texts;
+    }
+
+    // Configuration des jobs OULAD : features.dict ecrit dans le repertoire courant. Le
+    // fichier precedent est supprime d'abord : le cache JVM du dictionnaire garde sa projection.
+    static Configuration featuresConf(List<String> features) throws IOException {
+        File file = new File(OuladRecommendation.FeatureDictionary.FILE_NAME);
+        file.delete();
+        List<Text> sorted = new ArrayList<>();
+        for (String feature : features) {
+            sorted.add(new Text(feature));
+        }
+        Collections.sort(sorted);
+        try (OutputStream out = new FileOutputStream(file)) {
+            OuladRecommendation.FeatureDictionary.write(sorted, out);
+        }
+        Configuration conf = new Configuration(false);
+        conf.set(MRJobConfig.CACHE_FILES, file.toURI() + "#" + file.getName());
+        return conf;
+    }
+
+    static List<String> features(int count, Random random) {
+        String[] types = { "resource", "oucontent", "url", "forumng", "quiz", "subpage", "homepage", "glossary" };
+        List<String> features = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            features.add((500000 + i) + "-" + types[random.nextInt(types.length)]);
+        }
+        return features;
+    }
+
+    // ==========================================
+    // BENCHMARKS
+    // ==========================================
+
+    void pairsMapper() throws Exception {
+        for (int basket : new int[] { 4, 8, 16, 32 }) {
+            List<Text> lines = toText(DataGenerator.transactions(scaled(20000), 2000, basket, SEED));
+            Configuration conf = new Configuration(false);
+            measure("pairs-mapper", "basket=" + basket,
+                    () -> runMapper(new MarketBasketAnalysis.PairsMapper(), conf, lines));
+        }
+    }
+
+    void rhyme() throws Exception {
+        List<String> words = DataGenerator.words(scaled(200000), SEED);
+        Configuration conf = new Configuration(false);
+        List<Text> lines = toText(words);
+        measure("rhyme-mapper", "words=" + words.size(), () -> runMapper(new RhymeFinder.RhymeMapper(), conf, lines));
+
+        // Entree du Reducer sans Combiner : un mot par enregistrement
+        List<Text> suffixes = new ArrayList<>();
+        List<RhymeFinder.WordListWritable> singles = new ArrayList<>();
+        for (String word : words) {
+            if (word.length() >= 6) {
+                suffixes.add(new Text(word.substring(word.length() - 4)));
+                RhymeFinder.WordListWritable list = new RhymeFinder.WordListWritable();
+                list.add(new Text(word));
+                singles.add(list);
+            }
+        }
+        Shuffle<Text, RhymeFinder.WordListWritable> shuffle = new Shuffle<>(Text.class,
+                RhymeFinder.WordListWritable.class, suffixes, singles);
+        measure("rhyme-reducer", "records=" + shuffle.size(), () -> runReducer(new RhymeFinder.RhymeReducer(), conf, shuffle));
+    }
+
+    // Decoupage des lignes de studentVle sur les octets du Text, comme dans les Mappers
+    void parseCsv() throws Exception {
+        List<Text> rows = toText(DataGenerator.studentVle(scaled(200000), 5000, 2000, SEED));
+        OuladRecommendation.CsvFields fields = new OuladRecommendation.CsvFields();
+        measure("parse-csv", "rows=" + rows.size(), () -> {
+            long count = 0;
+            for (Text row : rows) {
+                count += fields.parse(row);
+            }
+            return count > 0 ? rows.size() : 0;
+        });
+        // Mapper complet (jointure reduce) : decoupage et ecriture de "S|etudiant|clics"
+        Configuration conf = new Configuration(false);
+        measure("student-vle-mapper", "rows=" + rows.size(),
+                () -> runMapper(new OuladRecommendation.StudentVleMapper(), conf, rows));
+    }
+
+    void joinReducer() throws Exception {
+        List<Text> keys = new ArrayList<>();
+        List<Text> values = new ArrayList<>();
+        OuladRecommendation.CsvFields fields = new OuladRecommendation.CsvFields();
+        for (Text row : toText(DataGenerator.vle(2000, SEED))) {
+            fields.parse(row);
+            if (!fields.string(0).equals("id_site") && OuladRecommendation.isTargetPresentation(fields, 1, 2)) {
+                keys.add(new Text(fields.string(0)));
+                values.add(new Text("V|" + fields.string(3)));
+            }
+        }
+        for (Text row : toText(DataGenerator.studentVle(scaled(200000), 5000, 2000, SEED + 1))) {
+            fields.parse(row);
+            if (!fields.string(0).equals("code_module")) {
+                keys.add(new Text(fields.string(3)));
+                values.add(new Text("S|" + fields.string(2) + "|" + fields.string(5)));
+            }
+        }
+        Shuffle<Text, Text> shuffle = new Shuffle<>(Text.class, Text.class, keys, values);
+        Configuration conf = new Configuration(false);
+        measure("join-reducer", "records=" + shuffle.size(),
+                () -> runReducer(new OuladRecommendation.JoinReducer(), conf, shuffle));
+    }
+
+    // Pivot et scoring : 30 features visitees par etudiant, nombre total de features variable
+    void pivotAndScoring() throws Exception {
+        Random random = new Random(SEED);
+        int students = scaled(5000);
+        for (int featureCount : new int[] { 100, 1000, 5000 }) {
+            List<String> features = features(featureCount, random);
+            Configuration conf = featuresConf(features);
+
+            List<Text> keys = new ArrayList<>();
+            List<Text> values = new ArrayList<>();
+            List<Text> vectors = new ArrayList<>();
+            long[] dense = new long[featureCount];
+            for (int s = 0; s < students; s++) {
+                Arrays.fill(dense, 0);
+                for (int v = 0; v < 30; v++) {
+                    int f = random.nextInt(featureCount);
+                    long clicks = 1 + random.nextInt(20);
+                    dense[f] += clicks;
+                    keys.add(new Text(Integer.toString(100000 + s)));
+                    values.add(new Text(features.get(f) + ":" + clicks));
+                }
+                StringBuilder line = new StringBuilder().append(100000 + s).append('\t');
+                for (int f = 0; f < featureCount; f++) {
+                    line.append(f > 0 ? "," : "").append(dense[f]);
+                }
+                vectors.add(new Text(line.toString()));
+            }
+
+            Shuffle<Text, Text> shuffle = new Shuffle<>(Text.class, Text.class, keys, values);
+            measure("pivot-reducer", "features=" + featureCount, () -> {
+                runReducer(new OuladRecommendation.PivotReducer(), conf, shuffle);
+                return students;
+            });
+            measure("scoring-mapper", "features=" + featureCount,
+                    () -> runMapper(new OuladRecommendation.ScoringMapper(), conf, vectors));
+            // Mode top-K : tas borne de 10 entrees au lieu d'un score par feature
+            Configuration topConf = new Configuration(conf);
+            topConf.setInt(OuladRecommendation.TOP_K_KEY, 10);
+            measure("scoring-mapper", "top10 features=" + featureCount,
+                    () -> runMapper(new OuladRecommendation.ScoringMapper(), topConf, vectors));
+        }
+        new File(OuladRecommendation.FeatureDictionary.FILE_NAME).delete();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Configuration conf = new Configuration();
+        String[] otherArgs = new GenericOptionsParser(conf, args).getRemainingArgs();
+        Benchmarks benchmarks = new Benchmarks(conf, otherArgs.length > 0 ? otherArgs[0] : null);
+
+        System.out.printf("%-16s %-14s %14s    %-10s %12s %12s %12s%n", "benchmark", "param", "ops/s", "(stddev)",
+                "ns/op", "B/op", "alloc MB/s");
+        benchmarks.pairsMapper();
+        benchmarks.rhyme();
+        benchmarks.parseCsv();
+        benchmarks.joinReducer();
+        benchmarks.pivotAndScoring();
+    }
+}
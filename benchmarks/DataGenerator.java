@@ -0,0 +1,161 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+// Generateurs deterministes (meme graine = memes fichiers) des trois jeux de donnees :
+// transactions, liste de mots, CSV au format OULAD. Les distributions sont volontairement
+// desequilibrees (loi de Zipf) pour reproduire les cles chaudes des vrais jeux.
+public class DataGenerator {
+
+    private static final String[] SUFFIXES = { "tion", "able", "ment", "ness", "ally", "ing", "ship", "ence", "ous", "ity",
+            "ward", "less", "hood", "ful", "ive" };
+    private static final String[] SYLLABLES = { "ba", "co", "de", "fi", "ga", "hu", "ja", "ki", "lo", "ma", "ne", "po", "qua",
+            "re", "si", "tu", "va", "wo", "xe", "zu", "an", "el", "in", "or", "us" };
+    private static final String[] ACTIVITY_TYPES = { "resource", "oucontent", "url", "forumng", "quiz", "subpage",
+            "homepage", "glossary", "ouwiki", "dataplus" };
+
+    // Tirage selon une loi de Zipf d'exposant s sur [0, n) par table cumulative
+    static class Zipf {
+        private final double[] cumulative;
+
+        Zipf(int n, double s) {
+            cumulative = new double[n];
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                total += 1.0 / Math.pow(i + 1, s);
+                cumulative[i] = total;
+            }
+            for (int i = 0; i < n; i++) {
+                cumulative[i] /= total;
+            }
+        }
+
+        int next(Random random) {
+            int i = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(cumulative.length - 1, i >= 0 ? i : -i - 1);
+        }
+    }
+
+    // Transactions "T000001 => Item0003, Item0017, ..." de basketSize articles distincts
+    // (basketSize <= 0 : taille tiree entre 2 et 10)
+    public static List<String> transactions(int count, int items, int basketSize, long seed) {
+        Random random = new Random(seed);
+        Zipf zipf = new Zipf(items, 1.1);
+        List<String> lines = new ArrayList<>(count);
+        int width = Integer.toString(count).length();
+        for (int t = 0; t < count; t++) {
+            int size = Math.min(items, basketSize > 0 ? basketSize : 2 + random.nextInt(9));
+            Set<String> basket = new LinkedHashSet<>();
+            while (basket.size() < size) {
+                basket.add(String.format("Item%04d", zipf.next(random)));
+            }
+            lines.add(String.format("T%0" + width + "d => %s", t + 1, String.join(", ", basket)));
+        }
+        return lines;
+    }
+
+    // Mots d'une ligne chacun : syllabes puis un suffixe tire selon Zipf ("tion" domine)
+    public static List<String> words(int count, long seed) {
+        Random random = new Random(seed);
+        Zipf zipf = new Zipf(SUFFIXES.length, 1.0);
+        List<String> lines = new ArrayList<>(count);
+        for (int w = 0; w < count; w++) {
+            StringBuilder word = new StringBuilder();
+            int syllables = 1 + random.nextInt(3);
+            for (int s = 0; s < syllables; s++) {
+                word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            lines.add(word.append(SUFFIXES[zipf.next(random)]).toString());
+        }
+        return lines;
+    }
+
+    // vle.csv : sites dont 80 % dans le module DDD (2013B/2013J), le reste hors filtre
+    public static List<String> vle(int sites, long seed) {
+        Random random = new Random(seed);
+        List<String> lines = new ArrayList<>(sites + 1);
+        lines.add("\"id_site\",\"code_module\",\"code_presentation\",\"activity_type\",\"week_from\",\"week_to\"");
+        for (int s = 0; s < sites; s++) {
+            boolean target = random.nextInt(5) != 0;
+            String module = target ? "DDD" : "AAA";
+            String presentation = random.nextBoolean() ? "2013B" : "2013J";
+            String type = ACTIVITY_TYPES[random.nextInt(ACTIVITY_TYPES.length)];
+            lines.add(String.format("\"%d\",\"%s\",\"%s\",\"%s\",\"\",\"\"", 500000 + s, module, presentation, type));
+        }
+        return lines;
+    }
+
+    // studentVle.csv : rows lignes, sites tires selon Zipf (quelques sites tres visites)
+    public static List<String> studentVle(int rows, int students, int sites, long seed) {
+        Random random = new Random(seed);
+        Zipf zipf = new Zipf(sites, 1.2);
+        List<String> lines = new ArrayList<>(rows + 1);
+        lines.add("\"code_module\",\"code_presentation\",\"id_student\",\"id_site\",\"date\",\"sum_click\"");
+        for (int r = 0; r < rows; r++) {
+            lines.add(String.format("\"DDD\",\"%s\",\"%d\",\"%d\",\"%d\",\"%d\"", random.nextBoolean() ? "2013B" : "2013J",
+                    100000 + random.nextInt(students), 500000 + zipf.next(random), random.nextInt(260) - 20,
+                    1 + random.nextInt(random.nextInt(10) == 0 ? 50 : 6)));
+        }
+        return lines;
+    }
+
+    static void write(List<String> lines, File file) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (String line : lines) {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+        System.out.println(lines.size() + " lignes -> " + file);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: DataGenerator transactions <fichier> <nb> [articles=1000] [taille panier=0] [graine=42]");
+            System.err.println("       DataGenerator words <fichier> <nb> [graine=42]");
+            System.err.println("       DataGenerator oulad <dossier> <lignes studentVle> [etudiants=5000] [sites=2000] [graine=42]");
+            System.exit(-1);
+        }
+
+        int count = Integer.parseInt(args[2]);
+        switch (args[0]) {
+            case "transactions":
+                write(transactions(count, intArg(args, 3, 1000), intArg(args, 4, 0), longArg(args, 5)), new File(args[1]));
+                break;
+            case "words":
+                write(words(count, longArg(args, 3)), new File(args[1]));
+                break;
+            case "oulad": {
+                File dir = new File(args[1]);
+                dir.mkdirs();
+                int students = intArg(args, 3, 5000);
+                int sites = intArg(args, 4, 2000);
+                long seed = longArg(args, 5);
+                write(vle(sites, seed), new File(dir, "vle.csv"));
+                write(studentVle(count, students, sites, seed + 1), new File(dir, "studentVle.csv"));
+                break;
+            }
+            default:
+                System.err.println("Jeu de donnees inconnu : " + args[0]);
+                System.exit(-1);
+        }
+    }
+
+    private static int intArg(String[] args, int i, int defaultValue) {
+        return args.length > i ? Integer.parseInt(args[i]) : defaultValue;
+    }
+
+    private static long longArg(String[] args, int i) {
+        return args.length > i ? Long.parseLong(args[i]) : 42L;
+    }
+}
@@ -0,0 +1,24 @@
+#!/bin/bash
+# Micro-benchmarks des Mappers/Reducers (voir Benchmarks.java).
+# Usage : benchmarks/run_benchmarks.sh [-D bench.iterations=N] [-D bench.scale=X] [filtre]
+#   ex : benchmarks/run_benchmarks.sh -D bench.scale=0.5 scoring
+
+HADOOP_CLASSPATH=$(hadoop classpath)
+ROOT_DIR=$(cd "$(dirname "$0")/.." && pwd)
+BUILD_DIR=$(mktemp -d)
+WORK_DIR=$(mktemp -d)
+
+# Programmes et harnais compiles ensemble (package par defaut)
+javac -classpath "$HADOOP_CLASSPATH" -d $BUILD_DIR $ROOT_DIR/*.java $ROOT_DIR/benchmarks/*.java
+if [ $? -ne 0 ]; then
+    echo "Erreur de compilation"
+    exit 1
+fi
+
+# Tas fixe pour des mesures d'allocation comparables ; features.dict est ecrit dans WORK_DIR
+cd $WORK_DIR
+java -Xms2g -Xmx2g -cp "$BUILD_DIR:$HADOOP_CLASSPATH" Benchmarks "$@"
+STATUS=$?
+
+rm -rf $BUILD_DIR $WORK_DIR
+exit $STATUS
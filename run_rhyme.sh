@@ -1,9 +1,10 @@
 #!/bin/bash
 set -e
 
-echo "Compiling RhymeFinder..."
+echo "Compiling RhymeFinder and the shared classes..."
 mkdir -p build
-javac -classpath $(hadoop classpath) -d build RhymeFinder.java
+# RhymeFinder utilise SkewPartitioning, RunReport et LocalRunnerProfile : tout le dossier est compile
+javac -classpath $(hadoop classpath) -d build *.java
 jar -cvf rhyme-finder.jar -C build/ .
 
 echo "Preparing HDFS data..."
@@ -0,0 +1,63 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Micro-benchmarks : generateurs deterministes et de la forme attendue, et harnais execute
+// de bout en bout sur un jeu reduit (chaque benchmark produit sa ligne de mesure).
+public class BenchmarksTest {
+
+    static void run(Tests t) {
+        t.check("bench-data-generator", BenchmarksTest::dataGenerator);
+        t.check("bench-harness", BenchmarksTest::harness);
+    }
+
+    // Meme graine = memes lignes ; paniers d'articles distincts de la taille demandee ;
+    // sites de studentVle tous presents dans vle, le premier (Zipf) le plus visite
+    static void dataGenerator() throws Exception {
+        Tests.assertEquals(DataGenerator.transactions(300, 50, 0, 1), DataGenerator.transactions(300, 50, 0, 1), "transactions");
+        Tests.assertEquals(DataGenerator.words(300, 1), DataGenerator.words(300, 1), "mots");
+        Tests.assertEquals(DataGenerator.studentVle(300, 20, 30, 1), DataGenerator.studentVle(300, 20, 30, 1), "studentVle");
+        Tests.assertTrue(!DataGenerator.words(300, 1).equals(DataGenerator.words(300, 2)), "graines differentes");
+
+        List<String> transactions = DataGenerator.transactions(1000, 50, 6, 1);
+        Tests.assertEquals("T0001", transactions.get(0).substring(0, transactions.get(0).indexOf(' ')), "ID bourre");
+        for (String transaction : transactions) {
+            Tests.assertEquals(6, MarketBasketAnalysisTest.items(transaction).size(), "articles distincts de " + transaction);
+        }
+
+        List<String> vle = DataGenerator.vle(30, 1);
+        List<String> studentVle = DataGenerator.studentVle(5000, 20, 30, 1);
+        Tests.assertEquals(31, vle.size(), "vle avec en-tete");
+        Tests.assertEquals(5001, studentVle.size(), "studentVle avec en-tete");
+        Set<String> sites = new HashSet<>();
+        for (String line : vle.subList(1, vle.size())) {
+            sites.add(OuladRecommendationTest.fields(line)[0]);
+        }
+        Map<String, Integer> visits = new HashMap<>();
+        for (String line : studentVle.subList(1, studentVle.size())) {
+            String[] f = OuladRecommendationTest.fields(line);
+            Tests.assertEquals(6, f.length, "colonnes de " + line);
+            Tests.assertTrue(sites.contains(f[3]), "site " + f[3] + " absent de vle");
+            visits.merge(f[3], 1, Integer::sum);
+        }
+        for (int count : visits.values()) {
+            Tests.assertTrue(count <= visits.get("500000"), "site le plus visite : 500000");
+        }
+    }
+
+    // Une passe mesuree sur 2 % des donnees : tous les benchmarks s'executent
+    static void harness() throws Exception {
+        Tests.runProgram("bench", "Benchmarks", "-D", Benchmarks.WARMUP_KEY + "=0", "-D", Benchmarks.ITERATIONS_KEY + "=1",
+                "-D", Benchmarks.SCALE_KEY + "=0.02");
+        String log = new String(Files.readAllBytes(new File("bench.log").toPath()), StandardCharsets.UTF_8);
+        for (String name : new String[] { "pairs-mapper", "rhyme-mapper", "rhyme-reducer", "parse-csv", "student-vle-mapper",
+                "join-reducer", "pivot-reducer", "scoring-mapper" }) {
+            Tests.assertTrue(log.contains("\n" + name + " "), "mesure de " + name + " absente");
+        }
+    }
+}
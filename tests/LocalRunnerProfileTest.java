@@ -0,0 +1,93 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+// LocalRunnerProfile : reglages appliques a la configuration, et memes resultats que le calcul
+// direct pour les trois programmes lances avec le profil (LocalJobRunner multithread), qui
+// est note dans le rapport d'execution.
+public class LocalRunnerProfileTest {
+
+    static void run(Tests t) {
+        t.check("local-profile-configure", LocalRunnerProfileTest::configure);
+        t.check("local-profile-programs", LocalRunnerProfileTest::programs);
+    }
+
+    // Un Reducer par thread sauf nombre impose, splits d'au moins 1 Mo, tampon de tri partage
+    static void configure() throws Exception {
+        Tests.writeLines(DataGenerator.words(1000, 3), "embedded/words.txt");
+        List<Path> inputs = Collections.singletonList(new Path(new File("embedded/words.txt").getAbsolutePath()));
+
+        Configuration conf = new Configuration();
+        conf.setInt(LocalRunnerProfile.THREADS_KEY, 3);
+        conf.setLong(LocalRunnerProfile.MEMORY_MB_KEY, 300);
+        Tests.assertEquals("3 threads, tampon de tri 100 Mo par tache, splits de 1024 Ko", LocalRunnerProfile.configure(conf, inputs),
+                "resume des reglages");
+        Tests.assertEquals("local", conf.get("mapreduce.framework.name"), "moteur");
+        Tests.assertEquals(3, conf.getInt(MRJobConfig.NUM_REDUCES, 0), "Reducers");
+        Tests.assertEquals(100, conf.getInt(MRJobConfig.IO_SORT_MB, 0), "tampon de tri par tache");
+        Tests.assertEquals(1L << 20, conf.getLong(FileInputFormat.SPLIT_MAXSIZE, 0), "taille de split minimale");
+
+        conf = new Configuration();
+        conf.setInt(LocalRunnerProfile.THREADS_KEY, 3);
+        conf.setInt(MRJobConfig.NUM_REDUCES, 1);
+        LocalRunnerProfile.configure(conf, inputs);
+        Tests.assertEquals(1, conf.getInt(MRJobConfig.NUM_REDUCES, 0), "Reducer unique impose");
+
+        // 8 Mo en deux parties designees par un glob : 4 splits (2 threads, 2 par thread) de 2 Mo
+        byte[] part = new byte[4 << 20];
+        Arrays.fill(part, (byte) 'a');
+        new File("embedded/big").mkdirs();
+        Files.write(new File("embedded/big/part_00").toPath(), part);
+        Files.write(new File("embedded/big/part_01").toPath(), part);
+        for (String input : new String[] { "embedded/big/part_*", "embedded/big" }) {
+            conf = new Configuration();
+            conf.setInt(LocalRunnerProfile.THREADS_KEY, 2);
+            LocalRunnerProfile.configure(conf, Collections.singletonList(new Path(new File(input).getAbsolutePath())));
+            Tests.assertEquals(2L << 20, conf.getLong(FileInputFormat.SPLIT_MAXSIZE, 0), "taille de split pour " + input);
+        }
+
+        // Valeur par defaut de mapred-default.xml, visible une fois un JobConf cree : remplacee
+        new JobConf();
+        conf = new Configuration();
+        conf.setInt(LocalRunnerProfile.THREADS_KEY, 3);
+        Tests.assertEquals("1", conf.get(MRJobConfig.NUM_REDUCES), "valeur de mapred-default.xml");
+        LocalRunnerProfile.configure(conf, inputs);
+        Tests.assertEquals(3, conf.getInt(MRJobConfig.NUM_REDUCES, 0), "Reducers malgre mapred-default.xml");
+    }
+
+    // Mappers et Reducers inchanges, plusieurs threads et Reducers : memes sorties ; un
+    // Reducer impose donne une seule partie
+    static void programs() throws Exception {
+        List<String> transactions = MarketBasketAnalysisTest.transactions();
+        Tests.writeLines(transactions, "embedded/tx.txt");
+        Tests.runProgram("embedded/mba", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.EMBEDDED_KEY + "=true",
+                "-D", LocalRunnerProfile.THREADS_KEY + "=3", "embedded/tx.txt", "embedded/mba");
+        Tests.assertLines(MarketBasketAnalysisTest.expectedPairs(transactions, 1), Tests.readOutput("embedded/mba"),
+                "MarketBasketAnalysis embarque");
+        JsonNode settings = new ObjectMapper().readTree(new File("embedded/mba_report.json")).get("settings");
+        Tests.assertTrue(settings.get("localRunnerProfile").asText().startsWith("3 threads, "), "profil absent du rapport");
+
+        List<String> words = RhymeFinderTest.words();
+        Tests.writeLines(words, "embedded/words.txt");
+        Tests.runProgram("embedded/rhyme", "RhymeFinder", "-D", RhymeFinder.EMBEDDED_KEY + "=true",
+                "-D", LocalRunnerProfile.THREADS_KEY + "=3", "-D", "mapreduce.job.reduces=1", "embedded/words.txt", "embedded/rhyme");
+        Tests.assertEquals(1, new File("embedded/rhyme").list((dir, name) -> name.startsWith("part-")).length,
+                "parties avec un Reducer impose");
+        Tests.assertLines(RhymeFinderTest.expectedRhymes(words, 4, 6), RhymeFinderTest.normalize(Tests.readOutput("embedded/rhyme")),
+                "RhymeFinder embarque");
+
+        Tests.assertLines(OuladRecommendationTest.expectedScores(), OuladRecommendationTest.runOulad("embedded",
+                "-D", OuladRecommendation.EMBEDDED_KEY + "=true", "-D", LocalRunnerProfile.THREADS_KEY + "=3"), "OuladRecommendation embarque");
+    }
+}
@@ -0,0 +1,518 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+
+// MarketBasketAnalysis : resultats de chaque mode compares a un calcul direct sur les
+// transactions generees, et Writables du programme.
+public class MarketBasketAnalysisTest {
+
+    static final long SEED = 7;
+
+    static void run(Tests t) {
+        t.check("mba-pairs-reference", MarketBasketAnalysisTest::pairsMatchReference);
+        t.check("mba-apriori-pruning", MarketBasketAnalysisTest::aprioriPruning);
+        t.check("mba-stripe-writable", MarketBasketAnalysisTest::stripeRoundTrip);
+        t.check("mba-stripes-mode", MarketBasketAnalysisTest::stripesMode);
+        t.check("mba-item-pair-writable", MarketBasketAnalysisTest::itemPairComparator);
+        t.check("mba-encoded-mode", MarketBasketAnalysisTest::encodedMode);
+        t.check("mba-transaction-set-writable", MarketBasketAnalysisTest::transactionSetRoundTrip);
+        t.check("mba-metrics-output", MarketBasketAnalysisTest::metricsOutput);
+        t.check("mba-ranked-items-writable", MarketBasketAnalysisTest::rankedItemsRoundTrip);
+        t.check("mba-fpgrowth-mode", MarketBasketAnalysisTest::fpGrowthMode);
+        t.check("mba-count-min-sketch", MarketBasketAnalysisTest::countMinSketch);
+        t.check("mba-space-saving", MarketBasketAnalysisTest::spaceSaving);
+        t.check("mba-pair-windows", MarketBasketAnalysisTest::pairWindows);
+        t.check("mba-stream-mode", MarketBasketAnalysisTest::streamMode);
+    }
+
+    // ==========================================
+    // REFERENCE
+    // ==========================================
+
+    static List<String> transactions() {
+        return DataGenerator.transactions(400, 60, 0, SEED);
+    }
+
+    // Articles distincts d'une transaction "ID => A, B, ...", tries
+    static TreeSet<String> items(String transaction) {
+        TreeSet<String> items = new TreeSet<>();
+        for (String item : transaction.substring(transaction.indexOf("=>") + 2).split(",")) {
+            if (!item.trim().isEmpty()) {
+                items.add(item.trim());
+            }
+        }
+        return items;
+    }
+
+    // TransIDs de chaque paire "[A, B]" (A < B)
+    static Map<String, TreeSet<String>> pairIds(List<String> transactions) {
+        Map<String, TreeSet<String>> pairs = new TreeMap<>();
+        for (String transaction : transactions) {
+            String id = transaction.substring(0, transaction.indexOf("=>")).trim();
+            List<String> items = new ArrayList<>(items(transaction));
+            for (int i = 0; i < items.size(); i++) {
+                for (int j = i + 1; j < items.size(); j++) {
+                    pairs.computeIfAbsent("[" + items.get(i) + ", " + items.get(j) + "]", k -> new TreeSet<>()).add(id);
+                }
+            }
+        }
+        return pairs;
+    }
+
+    // Sortie attendue des modes pairs/stripes/encoded : "[A, B] \t T1,T2,...", support >= minSupport
+    static List<String> expectedPairs(List<String> transactions, int minSupport) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, TreeSet<String>> pair : pairIds(transactions).entrySet()) {
+            if (pair.getValue().size() >= minSupport) {
+                lines.add(pair.getKey() + "\t" + String.join(",", pair.getValue()));
+            }
+        }
+        return lines;
+    }
+
+    // Support de chaque itemset "[A, B, C]" de 2 a maxLength articles (0 = sans limite),
+    // par enumeration des sous-ensembles de chaque transaction
+    static Map<String, Integer> itemsetSupports(List<String> transactions, int maxLength) {
+        Map<String, Integer> supports = new TreeMap<>();
+        for (String transaction : transactions) {
+            List<String> items = new ArrayList<>(items(transaction));
+            for (int mask = 1; mask < 1 << items.size(); mask++) {
+                int length = Integer.bitCount(mask);
+                if (length < 2 || (maxLength > 0 && length > maxLength)) {
+                    continue;
+                }
+                List<String> itemset = new ArrayList<>();
+                for (int i = 0; i < items.size(); i++) {
+                    if ((mask & 1 << i) != 0) {
+                        itemset.add(items.get(i));
+                    }
+                }
+                supports.merge(itemset.toString(), 1, Integer::sum);
+            }
+        }
+        return supports;
+    }
+
+    // Sortie attendue du mode fpgrowth : "[A, B, C] \t support", support >= minSupport
+    static List<String> expectedItemsets(Map<String, Integer> supports, int minSupport) {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Integer> itemset : supports.entrySet()) {
+            if (itemset.getValue() >= minSupport) {
+                lines.add(itemset.getKey() + "\t" + itemset.getValue());
+            }
+        }
+        return lines;
+    }
+
+    // ==========================================
+    // TESTS
+    // ==========================================
+
+    static void pairsMatchReference() throws Exception {
+        List<String> transactions = transactions();
+        Tests.writeLines(transactions, "mba/tx.txt");
+        Tests.runProgram("mba/pairs", "MarketBasketAnalysis", "mba/tx.txt", "mba/pairs");
+        Tests.assertLines(expectedPairs(transactions, 1), Tests.readOutput("mba/pairs"), "mode pairs");
+    }
+
+    // Apriori : l'elagage des articles rares ne retire que les paires sous le seuil
+    static void aprioriPruning() throws Exception {
+        List<String> transactions = transactions();
+        Tests.writeLines(transactions, "mba/tx.txt");
+        Tests.runProgram("mba/pairs-min3", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.MIN_SUPPORT_KEY + "=3", "mba/tx.txt", "mba/pairs-min3");
+        Tests.assertLines(expectedPairs(transactions, 3), Tests.readOutput("mba/pairs-min3"), "pairs, support >= 3");
+    }
+
+    // Stripe : aller-retour et fusion = union cellule par cellule
+    static void stripeRoundTrip() throws Exception {
+        MarketBasketAnalysis.StripeWritable a = new MarketBasketAnalysis.StripeWritable();
+        a.add("Bread", "T01");
+        a.add("Milk", "T01");
+        a.add("Milk", "T04");
+        MarketBasketAnalysis.StripeWritable b = new MarketBasketAnalysis.StripeWritable();
+        b.add("Milk", "T03");
+        b.add("Wine", "T03");
+
+        MarketBasketAnalysis.StripeWritable copy = Tests.deserialize(Tests.serialize(a), new MarketBasketAnalysis.StripeWritable());
+        Tests.assertEquals(cells(a), cells(copy), "stripe relue");
+        copy.merge(b);
+        Tests.assertEquals("{Bread=T01, Milk=T01,T03,T04, Wine=T03}", cells(copy), "stripe fusionnee");
+
+        // Stripe reutilisee : les ensembles recycles par clear() repartent vides
+        copy.clear();
+        Tests.assertEquals("{}", cells(copy), "stripe videe");
+        copy.merge(b);
+        copy.add("Eggs", "X9");
+        Tests.assertEquals("{Eggs=X9, Milk=T03, Wine=T03}", cells(copy), "stripe reutilisee");
+        Tests.deserialize(Tests.serialize(a), copy);
+        Tests.assertEquals(cells(a), cells(copy), "stripe relue dans un objet reutilise");
+    }
+
+    static String cells(MarketBasketAnalysis.StripeWritable stripe) {
+        Map<String, String> cells = new TreeMap<>();
+        for (Map.Entry<String, MarketBasketAnalysis.TransactionSetWritable> cell : stripe.getCells().entrySet()) {
+            cells.put(cell.getKey(), cell.getValue().toString());
+        }
+        return cells.toString();
+    }
+
+    // Stripes : memes paires et TransIDs que le calcul direct, y compris quand le Mapper
+    // vide ses stripes en cours de split (seuil memoire minimal)
+    static void stripesMode() throws Exception {
+        List<String> transactions = transactions();
+        Tests.writeLines(transactions, "mba/tx.txt");
+        Tests.runProgram("mba/stripes", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.MODE_KEY + "=stripes",
+                "mba/tx.txt", "mba/stripes");
+        Tests.assertLines(expectedPairs(transactions, 1), Tests.readOutput("mba/stripes"), "mode stripes");
+        Tests.runProgram("mba/stripes-flush", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.MODE_KEY + "=stripes",
+                "-D", MarketBasketAnalysis.STRIPES_FLUSH_BYTES_KEY + "=4096", "-D", MarketBasketAnalysis.MIN_SUPPORT_KEY + "=2",
+                "mba/tx.txt", "mba/stripes-flush");
+        Tests.assertLines(expectedPairs(transactions, 2), Tests.readOutput("mba/stripes-flush"), "mode stripes, vidages");
+    }
+
+    // Paire d'identifiants : aller-retour, comparateur binaire du meme signe que compareTo,
+    // cle du plan identique a toString() (bornes et negatifs compris)
+    static void itemPairComparator() throws Exception {
+        Random random = new Random(SEED);
+        int[] ids = {0, 1, 9, 10, -1, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        WritableComparator comparator = WritableComparator.get(MarketBasketAnalysis.ItemPairWritable.class);
+        Tests.assertTrue(comparator instanceof MarketBasketAnalysis.ItemPairWritable.Comparator, "comparateur binaire enregistre");
+        MarketBasketAnalysis.ItemPairWritable a = new MarketBasketAnalysis.ItemPairWritable();
+        MarketBasketAnalysis.ItemPairWritable b = new MarketBasketAnalysis.ItemPairWritable();
+        MarketBasketAnalysis.ItemPairWritable copy = new MarketBasketAnalysis.ItemPairWritable();
+        Text planKey = new Text();
+        byte[] scratch = new byte[MarketBasketAnalysis.ItemPairWritable.PLAN_KEY_BYTES];
+        for (int i = 0; i < 2000; i++) {
+            a.set(pick(random, ids), pick(random, ids));
+            b.set(pick(random, ids), i % 5 == 0 ? a.getItemB() : pick(random, ids));
+            byte[] bytesA = Tests.serialize(a);
+            byte[] bytesB = Tests.serialize(b);
+            Tests.assertEquals(a, Tests.deserialize(bytesA, copy), "paire relue");
+            int raw = comparator.compare(bytesA, 0, bytesA.length, bytesB, 0, bytesB.length);
+            Tests.assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(raw), "comparaison de " + a + " et " + b);
+            a.planKey(planKey, scratch);
+            Tests.assertEquals(a.toString(), planKey.toString(), "cle du plan");
+        }
+    }
+
+    // Une fois sur deux une valeur limite, sinon un identifiant quelconque
+    static int pick(Random random, int[] ids) {
+        return random.nextBoolean() ? ids[random.nextInt(ids.length)] : random.nextInt();
+    }
+
+    // Encoded : le dictionnaire d'identifiants ne change pas le resultat, avec ou sans plan de skew
+    static void encodedMode() throws Exception {
+        List<String> transactions = transactions();
+        Tests.writeLines(transactions, "mba/tx.txt");
+        Tests.runProgram("mba/encoded", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.MODE_KEY + "=encoded",
+                "mba/tx.txt", "mba/encoded");
+        Tests.assertLines(expectedPairs(transactions, 1), Tests.readOutput("mba/encoded"), "mode encoded");
+        Tests.runProgram("mba/encoded-skew", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.MODE_KEY + "=encoded",
+                "-D", MarketBasketAnalysis.SKEW_KEY + "=true", "-D", "mapreduce.job.reduces=4",
+                "mba/tx.txt", "mba/encoded-skew");
+        Tests.assertLines(expectedPairs(transactions, 1), Tests.readOutput("mba/encoded-skew"), "mode encoded, plan de skew");
+    }
+
+    // Ensemble de TransIDs : forme compacte (prefixe + deltas) et repli sur les chaines quand
+    // les IDs ne partagent pas le meme schema ; lecture dans un objet deja rempli, fusion = union
+    static void transactionSetRoundTrip() throws Exception {
+        Tests.assertEquals("T01,T04,T07", transactionSet("T07", "T01", "T04", "T01").toString(), "IDs bourres");
+        Tests.assertEquals("T9,T10,T100", transactionSet("T10", "T9", "T100").toString(), "ordre numerique");
+        String[][] cases = {
+            {"T07", "T01", "T04", "T01"},                   // bourres, desordre, doublon
+            {"T10", "T9", "T100"},                          // non bourres, tri numerique
+            {"12", "3", "12"},                              // sans prefixe
+            {"T01", "U02", "T03"},                          // prefixes differents
+            {"T007", "T12"},                                // largeur incompatible
+            {"T1", "abc", "T1"},                            // non numerique
+            {"T" + Long.MAX_VALUE, "T9999999999999999999"}, // nombre trop long
+        };
+        MarketBasketAnalysis.TransactionSetWritable reused = new MarketBasketAnalysis.TransactionSetWritable();
+        reused.set("X999");
+        for (String[] ids : cases) {
+            MarketBasketAnalysis.TransactionSetWritable set = transactionSet(ids);
+            Tests.assertEquals(distinct(ids), new TreeSet<>(set.toList()), "IDs de " + Arrays.toString(ids));
+            Tests.assertEquals(distinct(ids).size(), set.size(), "taille de " + Arrays.toString(ids));
+            Tests.assertEquals(set.toString(), Tests.deserialize(Tests.serialize(set), reused).toString(),
+                    "ensemble relu " + Arrays.toString(ids));
+        }
+
+        for (String[] a : cases) {
+            for (String[] b : cases) {
+                MarketBasketAnalysis.TransactionSetWritable merged = transactionSet(a);
+                merged.merge(transactionSet(b));
+                TreeSet<String> union = distinct(a);
+                union.addAll(distinct(b));
+                Tests.assertEquals(union, new TreeSet<>(merged.toList()), "union de " + Arrays.toString(a) + " et " + Arrays.toString(b));
+                Tests.assertEquals(union.size(), merged.size(), "taille de l'union");
+            }
+        }
+    }
+
+    static MarketBasketAnalysis.TransactionSetWritable transactionSet(String... ids) {
+        MarketBasketAnalysis.TransactionSetWritable set = new MarketBasketAnalysis.TransactionSetWritable();
+        for (String id : ids) {
+            set.add(id);
+        }
+        return set;
+    }
+
+    static TreeSet<String> distinct(String... ids) {
+        return new TreeSet<>(Arrays.asList(ids));
+    }
+
+    // Metriques : support, confiances et lift calcules depuis la cardinalite des ensembles
+    static void metricsOutput() throws Exception {
+        List<String> transactions = transactions();
+        Tests.writeLines(transactions, "mba/tx.txt");
+        Tests.runProgram("mba/metrics", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.OUTPUT_KEY + "=all",
+                "-D", MarketBasketAnalysis.MIN_SUPPORT_KEY + "=2", "mba/tx.txt", "mba/metrics");
+
+        Map<String, Integer> itemSupports = new TreeMap<>();
+        for (String transaction : transactions) {
+            for (String item : items(transaction)) {
+                itemSupports.merge(item, 1, Integer::sum);
+            }
+        }
+        double n = transactions.size();
+        List<String> expected = new ArrayList<>();
+        for (Map.Entry<String, TreeSet<String>> pair : pairIds(transactions).entrySet()) {
+            int support = pair.getValue().size();
+            if (support < 2) {
+                continue;
+            }
+            String[] ab = pair.getKey().substring(1, pair.getKey().length() - 1).split(", ");
+            int supportA = itemSupports.get(ab[0]);
+            int supportB = itemSupports.get(ab[1]);
+            expected.add(pair.getKey() + "\t" + String.join(",", pair.getValue()) + "\t"
+                    + String.format(Locale.ROOT, "support=%.4f conf(A=>B)=%.4f conf(B=>A)=%.4f lift=%.4f",
+                    support / n, (double) support / supportA, (double) support / supportB, support * n / ((double) supportA * supportB)));
+        }
+        Tests.assertLines(expected, Tests.readOutput("mba/metrics"), "sortie ids + metriques");
+    }
+
+    // Rangs croissants encodes en ecarts : aller-retour, y compris vers un objet reutilise plus petit
+    static void rankedItemsRoundTrip() throws Exception {
+        MarketBasketAnalysis.RankedItemsWritable ranked = new MarketBasketAnalysis.RankedItemsWritable();
+        int[] ranks = new int[40];
+        for (int i = 0; i < ranks.length; i++) {
+            ranks[i] = i * i * 37;
+        }
+        ranked.set(ranks, ranks.length);
+        MarketBasketAnalysis.RankedItemsWritable copy = Tests.deserialize(Tests.serialize(ranked),
+                new MarketBasketAnalysis.RankedItemsWritable());
+        Tests.assertEquals(ranks.length, copy.size(), "taille relue");
+        for (int i = 0; i < ranks.length; i++) {
+            Tests.assertEquals(ranks[i], copy.rankAt(i), "rang " + i);
+        }
+        ranked.set(new int[] { 3, 9 }, 2);
+        copy = Tests.deserialize(Tests.serialize(ranked), copy);
+        Tests.assertEquals("2:3,9", copy.size() + ":" + copy.rankAt(0) + "," + copy.rankAt(1), "objet reutilise");
+        ranked.set(new int[0], 0);
+        Tests.assertEquals(0, Tests.deserialize(Tests.serialize(ranked), copy).size(), "prefixe vide");
+    }
+
+    // FP-Growth : itemsets de toute taille identiques a l'enumeration directe (supports des
+    // paires egaux a ceux du mode pairs), longueur maximale, et agregation par article
+    static void fpGrowthMode() throws Exception {
+        List<String> transactions = transactions();
+        Tests.writeLines(transactions, "mba/tx.txt");
+        int minSupport = 4;
+        Map<String, Integer> supports = itemsetSupports(transactions, 0);
+        List<String> expected = expectedItemsets(supports, minSupport);
+        Tests.runProgram("mba/fpgrowth", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.MODE_KEY + "=fpgrowth",
+                "-D", MarketBasketAnalysis.MIN_SUPPORT_KEY + "=" + minSupport, "-D", MarketBasketAnalysis.GROUPS_KEY + "=3",
+                "-D", "mapreduce.job.reduces=2", "mba/tx.txt", "mba/fpgrowth");
+        List<String> itemsets = Tests.readOutput("mba/fpgrowth");
+        Tests.assertLines(expected, itemsets, "mode fpgrowth");
+        Tests.assertTrue(expected.stream().anyMatch(line -> line.split(", ").length > 3), "aucun itemset de plus de 3 articles");
+
+        List<String> pairs = new ArrayList<>();
+        for (String line : itemsets) {
+            if (line.split(", ").length == 2) {
+                pairs.add(line);
+            }
+        }
+        List<String> pairSupports = new ArrayList<>();
+        for (String line : expectedPairs(transactions, minSupport)) {
+            int tab = line.indexOf('\t');
+            pairSupports.add(line.substring(0, tab) + "\t" + line.substring(tab + 1).split(",").length);
+        }
+        Tests.assertLines(pairSupports, pairs, "supports des paires");
+
+        int perItem = 3;
+        Tests.runProgram("mba/fpgrowth-max3", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.MODE_KEY + "=fpgrowth",
+                "-D", MarketBasketAnalysis.MIN_SUPPORT_KEY + "=" + minSupport, "-D", MarketBasketAnalysis.MAX_ITEMSET_KEY + "=3",
+                "-D", MarketBasketAnalysis.PER_ITEM_KEY + "=" + perItem, "mba/tx.txt", "mba/fpgrowth-max3");
+        Map<String, Integer> bounded = itemsetSupports(transactions, 3);
+        Tests.assertLines(expectedItemsets(bounded, minSupport), Tests.readOutput("mba/fpgrowth-max3"), "itemsets de 3 articles au plus");
+
+        // Par article : les K itemsets les plus frequents qui le contiennent, ex aequo par nom
+        Map<String, List<Map.Entry<String, Integer>>> byItem = new TreeMap<>();
+        for (Map.Entry<String, Integer> itemset : bounded.entrySet()) {
+            if (itemset.getValue() >= minSupport) {
+                String key = itemset.getKey();
+                for (String item : key.substring(1, key.length() - 1).split(", ")) {
+                    byItem.computeIfAbsent(item, k -> new ArrayList<>()).add(itemset);
+                }
+            }
+        }
+        List<String> expectedPerItem = new ArrayList<>();
+        for (Map.Entry<String, List<Map.Entry<String, Integer>>> item : byItem.entrySet()) {
+            List<Map.Entry<String, Integer>> ranked = item.getValue();
+            ranked.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey())
+                    : Integer.compare(b.getValue(), a.getValue()));
+            List<String> entries = new ArrayList<>();
+            for (Map.Entry<String, Integer> itemset : ranked.subList(0, Math.min(perItem, ranked.size()))) {
+                entries.add(itemset.getKey() + ":" + itemset.getValue());
+            }
+            expectedPerItem.add(item.getKey() + "\t" + String.join(" ", entries));
+        }
+        Tests.assertLines(expectedPerItem, Tests.readOutput("mba/fpgrowth-max3_per_item"), "itemsets par article");
+    }
+
+    // Estimation jamais inferieure au vrai nombre, exacte sans collision ; retirer un sketch
+    // de tranche redonne les nombres restants
+    static void countMinSketch() throws Exception {
+        Random random = new Random(SEED);
+        MarketBasketAnalysis.CountMinSketch small = new MarketBasketAnalysis.CountMinSketch(3, 64);
+        MarketBasketAnalysis.CountMinSketch wide = new MarketBasketAnalysis.CountMinSketch(4, 1 << 16);
+        MarketBasketAnalysis.CountMinSketch pane = new MarketBasketAnalysis.CountMinSketch(3, 64);
+        Map<Long, Integer> counts = new HashMap<>();
+        Map<Long, Integer> paneCounts = new HashMap<>();
+        for (int i = 0; i < 20000; i++) {
+            long hash = MarketBasketAnalysis.hashItem("Item" + (int) Math.pow(500, random.nextDouble()));
+            small.add(hash);
+            wide.add(hash);
+            counts.merge(hash, 1, Integer::sum);
+            if (i % 3 == 0) {
+                pane.add(hash);
+                paneCounts.merge(hash, 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<Long, Integer> count : counts.entrySet()) {
+            Tests.assertTrue(small.estimate(count.getKey()) >= count.getValue(), "sous-estimation de " + count.getKey());
+            Tests.assertEquals(count.getValue(), wide.estimate(count.getKey()), "estimation sans collision");
+        }
+        Tests.assertEquals(0, wide.estimate(MarketBasketAnalysis.hashItem("absent")), "article absent");
+
+        small.subtract(pane);
+        for (Map.Entry<Long, Integer> count : counts.entrySet()) {
+            int rest = count.getValue() - paneCounts.getOrDefault(count.getKey(), 0);
+            Tests.assertTrue(small.estimate(count.getKey()) >= rest, "sous-estimation apres retrait de " + count.getKey());
+        }
+        small.clear();
+        Tests.assertEquals(0, small.estimate(counts.keySet().iterator().next()), "sketch vide");
+    }
+
+    // Toute paire de frequence superieure a 1 / capacity reste suivie, au plus capacity paires
+    static void spaceSaving() throws Exception {
+        Random random = new Random(SEED);
+        int capacity = 20;
+        MarketBasketAnalysis.SpaceSaving summary = new MarketBasketAnalysis.SpaceSaving(capacity);
+        for (int round = 0; round < 2; round++) {
+            Map<String, Integer> counts = new HashMap<>();
+            int total = 30000;
+            for (int i = 0; i < total; i++) {
+                int r = random.nextInt(100);
+                String pair = r < 12 ? "[A, B]" : r < 20 ? "[A, C]" : r < 26 ? "[B, D]" : "[X" + random.nextInt(5000) + ", Y]";
+                summary.offer(pair, MarketBasketAnalysis.hashItem(pair));
+                counts.merge(pair, 1, Integer::sum);
+            }
+            Set<String> tracked = new HashSet<>();
+            for (int i = 0; i < summary.size(); i++) {
+                tracked.add(summary.pair(i));
+                Tests.assertEquals(MarketBasketAnalysis.hashItem(summary.pair(i)), summary.hash(i), "hachage de " + summary.pair(i));
+            }
+            Tests.assertEquals(capacity, summary.size(), "paires suivies");
+            Tests.assertEquals(capacity, tracked.size(), "paires distinctes suivies");
+            for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                if (count.getValue() > total / capacity) {
+                    Tests.assertTrue(tracked.contains(count.getKey()), "heavy hitter perdu : " + count.getKey());
+                }
+            }
+            summary.clear();
+            Tests.assertEquals(0, summary.size(), "resume vide");
+        }
+    }
+
+    // Fenetre de 3 tranches de 1 s : nombres exacts (sketch large), tranches expirees
+    // retirees, saut au-dela de la fenetre
+    static void pairWindows() throws Exception {
+        MarketBasketAnalysis.PairWindows windows = new MarketBasketAnalysis.PairWindows(3, 1000, 4, 1 << 12, 100, 10500);
+        Tests.assertEquals(10000L, windows.paneStart(), "debut de tranche");
+        windows.add(Arrays.asList("A", "B", "C"));
+        windows.add(Arrays.asList("A", "A", "B"));
+        Tests.assertTrue(!windows.advance(10999), "meme tranche");
+        Tests.assertTrue(windows.advance(11000), "tranche suivante");
+        windows.add(Arrays.asList("A", "B"));
+        windows.add(Arrays.asList("B", "C"));
+        Tests.assertTrue(windows.advance(12400), "troisieme tranche");
+        windows.add(Arrays.asList("C", "D"));
+        Tests.assertEquals(10000L, windows.windowStart(), "debut de fenetre");
+        Tests.assertEquals(5L, windows.transactions(), "transactions de la fenetre");
+        Tests.assertEquals("[[A, B]=3, [B, C]=2, [A, C]=1, [C, D]=1]", windows.top(10, 1).toString(), "fenetre complete");
+        Tests.assertEquals("[[A, B]=3, [B, C]=2]", windows.top(2, 1).toString(), "deux meilleures paires");
+        Tests.assertEquals("[[A, B]=3, [B, C]=2]", windows.top(10, 2).toString(), "support minimal");
+
+        // La premiere tranche expire
+        Tests.assertTrue(windows.advance(13000), "quatrieme tranche");
+        Tests.assertEquals(11000L, windows.windowStart(), "fenetre glissee");
+        Tests.assertEquals(3L, windows.transactions(), "transactions apres glissement");
+        Tests.assertEquals("[[A, B]=1, [B, C]=1, [C, D]=1]", windows.top(10, 1).toString(), "tranche expiree retiree");
+
+        Tests.assertTrue(windows.advance(60000), "saut");
+        Tests.assertEquals(0L, windows.transactions(), "fenetre vide apres un saut");
+        Tests.assertEquals("[]", windows.top(10, 1).toString(), "aucune paire apres un saut");
+        windows.add(Arrays.asList("E", "F"));
+        Tests.assertEquals("[[E, F]=1]", windows.top(10, 1).toString(), "fenetre reprise");
+    }
+
+    // Journal lu sans suivi dans une seule fenetre (2 tranches d'une heure : la derniere
+    // capture couvre tout le journal meme si une tranche se termine pendant la lecture) :
+    // paires les plus frequentes et supports identiques au calcul direct
+    static void streamMode() throws Exception {
+        List<String> transactions = new ArrayList<>(transactions());
+        transactions.add(200, "ligne sans separateur");
+        Tests.writeLines(transactions, "mba/stream-log.txt");
+        int top = 25;
+        Tests.runProgram("mba/stream", "MarketBasketAnalysis", "-D", MarketBasketAnalysis.MODE_KEY + "=stream",
+                "-D", MarketBasketAnalysis.STREAM_FOLLOW_KEY + "=false", "-D", MarketBasketAnalysis.STREAM_WINDOW_KEY + "=7200",
+                "-D", MarketBasketAnalysis.STREAM_SLIDE_KEY + "=3600", "-D", MarketBasketAnalysis.STREAM_TOP_KEY + "=" + top,
+                "-D", MarketBasketAnalysis.STREAM_CANDIDATES_KEY + "=100000", "-D", MarketBasketAnalysis.MIN_SUPPORT_KEY + "=2",
+                "mba/stream-log.txt", "mba/stream");
+
+        List<Map.Entry<String, Integer>> supports = new ArrayList<>();
+        for (Map.Entry<String, TreeSet<String>> pair : pairIds(transactions()).entrySet()) {
+            supports.add(new AbstractMap.SimpleEntry<>(pair.getKey(), pair.getValue().size()));
+        }
+        supports.sort((a, b) -> a.getValue().equals(b.getValue()) ? a.getKey().compareTo(b.getKey())
+                : Integer.compare(b.getValue(), a.getValue()));
+        List<String> expected = new ArrayList<>();
+        for (Map.Entry<String, Integer> pair : supports.subList(0, top)) {
+            expected.add(pair.getKey() + "\t" + pair.getValue());
+        }
+
+        String[] snapshots = new File("mba/stream").list((dir, name) -> name.startsWith("window-"));
+        Tests.assertTrue(snapshots.length > 0, "aucun instantane");
+        Arrays.sort(snapshots);
+        List<String> last = Files.readAllLines(new File("mba/stream", snapshots[snapshots.length - 1]).toPath());
+        Tests.assertEquals(expected, last, "paires de la fenetre");
+        String log = new String(Files.readAllBytes(new File("mba/stream.log").toPath()));
+        Tests.assertTrue(log.contains(" 1 lignes mal formees"), "ligne mal formee non comptee");
+    }
+}
@@ -0,0 +1,865 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+// OuladRecommendation: Job 5 scores of every join, pivot and intermediate mode compared with
+// a direct computation over the generated CSV files, and the job chain's Writables.
+public class OuladRecommendationTest {
+
+    static final long SEED = 5;
+
+    static void run(Tests t) {
+        t.check("oulad-reduce-join", OuladRecommendationTest::reduceJoin);
+        t.check("oulad-broadcast-join", OuladRecommendationTest::broadcastJoin);
+        t.check("oulad-site-tag-key", OuladRecommendationTest::siteTagKey);
+        t.check("oulad-sorted-join", OuladRecommendationTest::sortedJoin);
+        t.check("oulad-sparse-vector-writable", OuladRecommendationTest::sparseVectorRoundTrip);
+        t.check("oulad-pivot-formats", OuladRecommendationTest::pivotFormats);
+        t.check("oulad-score-buffer", OuladRecommendationTest::scoreBuffer);
+        t.check("oulad-activity-key", OuladRecommendationTest::activityKeyComparator);
+        t.check("oulad-intermediate-formats", OuladRecommendationTest::intermediateFormats);
+        t.check("oulad-intermediate-codec", OuladRecommendationTest::intermediateCodec);
+        t.check("oulad-feature-dictionary", OuladRecommendationTest::featureDictionary);
+        t.check("oulad-parallel-features", OuladRecommendationTest::parallelFeatures);
+        t.check("oulad-csv-fields", OuladRecommendationTest::csvFields);
+        t.check("oulad-csv-quoting", OuladRecommendationTest::csvQuoting);
+        t.check("oulad-top-k-heap", OuladRecommendationTest::topKHeap);
+        t.check("oulad-top-k", OuladRecommendationTest::topK);
+        t.check("oulad-incremental", OuladRecommendationTest::incremental);
+        t.check("oulad-incremental-commit-replay", OuladRecommendationTest::commitReplay);
+        t.check("oulad-checkpoint", OuladRecommendationTest::checkpoint);
+        t.check("oulad-stage-failure", OuladRecommendationTest::stageFailure);
+    }
+
+    // ==========================================
+    // REFERENCE
+    // ==========================================
+
+    static List<String> vle() {
+        return DataGenerator.vle(60, SEED);
+    }
+
+    static List<String> studentVle() {
+        return DataGenerator.studentVle(4000, 120, 60, SEED);
+    }
+
+    // Generated fields are quoted and hold no comma
+    static String[] fields(String line) {
+        String[] fields = line.split(",", -1);
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = fields[i].replace("\"", "");
+        }
+        return fields;
+    }
+
+    // id_site -> activity_type of the DDD 2013B/2013J sites
+    static Map<String, String> siteTypes(List<String> vle) {
+        Map<String, String> types = new HashMap<>();
+        for (String line : vle.subList(1, vle.size())) {
+            String[] f = fields(line);
+            if (f[1].equals("DDD") && (f[2].equals("2013B") || f[2].equals("2013J")))
+                types.put(f[0], f[3]);
+        }
+        return types;
+    }
+
+    // Student -> feature "id_site-activity_type" -> total clicks, joined rows only
+    static Map<String, Map<String, Long>> studentClicks(List<String> vle, List<String> studentVle) {
+        Map<String, String> types = siteTypes(vle);
+        Map<String, Map<String, Long>> clicks = new TreeMap<>();
+        for (String line : studentVle.subList(1, studentVle.size())) {
+            String[] f = fields(line);
+            String type = types.get(f[3]);
+            if (type != null)
+                clicks.computeIfAbsent(f[2], k -> new TreeMap<>()).merge(f[3] + "-" + type, Long.parseLong(f[5]), Long::sum);
+        }
+        return clicks;
+    }
+
+    static TreeSet<String> features(Map<String, Map<String, Long>> clicks) {
+        TreeSet<String> features = new TreeSet<>();
+        for (Map<String, Long> student : clicks.values()) {
+            features.addAll(student.keySet());
+        }
+        return features;
+    }
+
+    static String type(String feature) {
+        return feature.substring(feature.indexOf('-') + 1);
+    }
+
+    // Clicks of one student per activity type
+    static Map<String, Long> typeSums(Map<String, Long> student) {
+        Map<String, Long> sums = new HashMap<>();
+        for (Map.Entry<String, Long> feature : student.entrySet()) {
+            sums.merge(type(feature.getKey()), feature.getValue(), Long::sum);
+        }
+        return sums;
+    }
+
+    static long total(Map<String, Long> student) {
+        long total = 0;
+        for (long clicks : student.values()) {
+            total += clicks;
+        }
+        return total;
+    }
+
+    // part * 100 / total, two decimals rounded half-up
+    static String percent(long part, long total) {
+        return BigDecimal.valueOf(part).multiply(BigDecimal.valueOf(100)).divide(BigDecimal.valueOf(total), 2, RoundingMode.HALF_UP)
+                .toPlainString();
+    }
+
+    // Dense Job 5 lines "student \t s0,s1,...": 0 for a visited feature, else the share of
+    // the student's clicks going to the feature's activity type
+    static List<String> expectedScores(Map<String, Map<String, Long>> clicks) {
+        TreeSet<String> features = features(clicks);
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Long>> student : clicks.entrySet()) {
+            Map<String, Long> sums = typeSums(student.getValue());
+            long total = total(student.getValue());
+            List<String> scores = new ArrayList<>(features.size());
+            for (String feature : features) {
+                long part = student.getValue().containsKey(feature) ? 0 : sums.getOrDefault(type(feature), 0L);
+                scores.add(percent(part, total));
+            }
+            lines.add(student.getKey() + "\t" + String.join(",", scores));
+        }
+        lines.sort(null);
+        return lines;
+    }
+
+    static List<String> expectedScores() {
+        return expectedScores(studentClicks(vle(), studentVle()));
+    }
+
+    // Sparse Job 5 lines "student \t type=score,...|visited indices": types in dictionary
+    // order (first appearance in the sorted features), students' types only
+    static List<String> expectedSparseScores(Map<String, Map<String, Long>> clicks) {
+        List<String> features = new ArrayList<>(features(clicks));
+        LinkedHashSet<String> types = new LinkedHashSet<>();
+        for (String feature : features) {
+            types.add(type(feature));
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Long>> student : clicks.entrySet()) {
+            Map<String, Long> sums = typeSums(student.getValue());
+            long total = total(student.getValue());
+            List<String> scores = new ArrayList<>();
+            for (String type : types) {
+                if (sums.containsKey(type))
+                    scores.add(type + "=" + percent(sums.get(type), total));
+            }
+            List<String> visited = new ArrayList<>();
+            for (String feature : student.getValue().keySet()) {
+                visited.add(Integer.toString(features.indexOf(feature)));
+            }
+            lines.add(student.getKey() + "\t" + String.join(",", scores) + "|" + String.join(",", visited));
+        }
+        lines.sort(null);
+        return lines;
+    }
+
+    // Runs the whole chain on the generated files into oulad/<name> and returns the Job 5 lines
+    static List<String> runOulad(String name, String... options) throws Exception {
+        return runOulad(name, studentVle(), options);
+    }
+
+    static List<String> runOulad(String name, List<String> studentVle, String... options) throws Exception {
+        Tests.writeLines(vle(), "oulad/vle.csv");
+        Tests.writeLines(studentVle, "oulad/" + name + "-studentVle.csv");
+        List<String> args = new ArrayList<>(Arrays.asList(options));
+        args.addAll(Arrays.asList("oulad/" + name + "-studentVle.csv", "oulad/vle.csv", "oulad/" + name));
+        Tests.runProgram("oulad/" + name, "OuladRecommendation", args.toArray(new String[0]));
+        return Tests.readOutput("oulad/" + name + "/job5_scoring");
+    }
+
+    static String option(String key, Object value) {
+        return key + "=" + value;
+    }
+
+    // ==========================================
+    // TESTS
+    // ==========================================
+
+    static void reduceJoin() throws Exception {
+        List<String> expected = expectedScores();
+        Tests.assertTrue(expected.size() > 100, "generated students: " + expected.size());
+        Tests.assertLines(expected, runOulad("reduce"), "reduce-side join");
+    }
+
+    // Broadcast join: vle.csv loaded by every StudentVleMapper, map-only Job 1
+    static void broadcastJoin() throws Exception {
+        Tests.assertLines(expectedScores(), runOulad("broadcast", "-D", option(OuladRecommendation.JOIN_KEY, "broadcast")),
+                "broadcast join");
+    }
+
+    // Secondary sort: the V record sorts first within its site, grouping and partitioning
+    // ignore the tag
+    static void siteTagKey() throws Exception {
+        List<OuladRecommendation.SiteTagKey> keys = new ArrayList<>();
+        for (String site : new String[] { "546", "5460", "12" }) {
+            for (byte tag : new byte[] { OuladRecommendation.SiteTagKey.TAG_STUDENT, OuladRecommendation.SiteTagKey.TAG_VLE }) {
+                OuladRecommendation.SiteTagKey key = new OuladRecommendation.SiteTagKey();
+                key.set(site, tag);
+                keys.add(Tests.deserialize(Tests.serialize(key), new OuladRecommendation.SiteTagKey()));
+                Tests.assertEquals(key, keys.get(keys.size() - 1), "key read back");
+            }
+        }
+        Collections.sort(keys);
+        OuladRecommendation.SiteGroupingComparator grouping = new OuladRecommendation.SiteGroupingComparator();
+        OuladRecommendation.SitePartitioner partitioner = new OuladRecommendation.SitePartitioner();
+        for (int i = 0; i < keys.size(); i += 2) {
+            OuladRecommendation.SiteTagKey vle = keys.get(i);
+            OuladRecommendation.SiteTagKey student = keys.get(i + 1);
+            Tests.assertTrue(vle.compareTo(student) < 0, "V record before S records of site " + vle.getSite());
+            Tests.assertEquals(0, grouping.compare(vle, student), "one group for site " + vle.getSite());
+            Tests.assertEquals(partitioner.getPartition(vle, null, 7), partitioner.getPartition(student, null, 7),
+                    "one partition for site " + vle.getSite());
+            if (i > 0)
+                Tests.assertTrue(grouping.compare(keys.get(i - 1), vle) < 0, "sites in order");
+        }
+    }
+
+    // Sorted join over several reducers: V record streamed first, S records joined on the fly
+    static void sortedJoin() throws Exception {
+        Tests.assertLines(expectedScores(), runOulad("sorted", "-D", option(OuladRecommendation.JOIN_KEY, "sorted"),
+                "-D", "mapreduce.job.reduces=3"), "sorted join");
+    }
+
+    // Delta-encoded indices and VLong clicks, read back into a vector reused from a larger one
+    static void sparseVectorRoundTrip() throws Exception {
+        OuladRecommendation.SparseVectorWritable reused = new OuladRecommendation.SparseVectorWritable();
+        for (int i = 0; i < 40; i++) {
+            reused.add(i * 3, i);
+        }
+        long[][] cases = {
+            {},
+            {0, 1},
+            {5, 3000000000L, 6, 1, 70000, Long.MAX_VALUE},
+            {Integer.MAX_VALUE, 2},
+        };
+        for (long[] entries : cases) {
+            OuladRecommendation.SparseVectorWritable vector = new OuladRecommendation.SparseVectorWritable();
+            for (int i = 0; i < entries.length; i += 2) {
+                vector.add((int) entries[i], entries[i + 1]);
+            }
+            OuladRecommendation.SparseVectorWritable copy = Tests.deserialize(Tests.serialize(vector), reused);
+            Tests.assertEquals(entries.length / 2, copy.size(), "entries read back");
+            for (int i = 0; i < copy.size(); i++) {
+                Tests.assertEquals(entries[2 * i], (long) copy.indexAt(i), "index " + i);
+                Tests.assertEquals(entries[2 * i + 1], copy.valueAt(i), "clicks " + i);
+            }
+        }
+    }
+
+    // Dense and sparse pivots give the same scores, including a click total above
+    // Integer.MAX_VALUE; sparse Job 5 output checked on its own format
+    static void pivotFormats() throws Exception {
+        List<String> studentVle = new ArrayList<>(studentVle());
+        String[] row = fields(studentVle.get(1));
+        studentVle.add(String.format("\"DDD\",\"2013J\",\"%s\",\"%s\",\"3\",\"3000000000\"", row[2], row[3]));
+        Map<String, Map<String, Long>> clicks = studentClicks(vle(), studentVle);
+        Tests.assertTrue(total(clicks.get(row[2])) > Integer.MAX_VALUE, "student " + row[2] + " above Integer.MAX_VALUE");
+
+        List<String> expected = expectedScores(clicks);
+        Tests.assertLines(expected, runOulad("pivot-sparse", studentVle, "-D", option(OuladRecommendation.PIVOT_FORMAT_KEY, "dense")),
+                "sparse pivot");
+        Tests.assertLines(expected, runOulad("pivot-dense", studentVle, "-D", option(OuladRecommendation.PIVOT_FORMAT_KEY, "dense")),
+                "dense pivot");
+        Tests.assertLines(expectedSparseScores(clicks), runOulad("scoring-sparse", studentVle,
+                "-D", option(OuladRecommendation.SCORING_OUTPUT_KEY, "sparse")), "sparse scoring output");
+    }
+
+    // Fixed-point formatter of the scoring hot path: same digits as an exact half-up rounding,
+    // buffer growing past its initial size
+    static void scoreBuffer() throws Exception {
+        Random random = new Random(SEED);
+        OuladRecommendation.ScoreBuffer buffer = new OuladRecommendation.ScoreBuffer();
+        OuladRecommendation.ScoreBuffer longs = new OuladRecommendation.ScoreBuffer();
+        Text text = new Text();
+        StringBuilder expected = new StringBuilder();
+        long[][] edges = { {0, 1}, {1, 1}, {1, 3}, {2, 3}, {1, 8}, {5, 200000}, {1, 40000}, {3000000000L, 3000000001L} };
+        for (int i = 0; i < 5000; i++) {
+            long total = i < edges.length ? edges[i][1] : 1 + random.nextInt(i % 2 == 0 ? 1000 : Integer.MAX_VALUE);
+            long part = i < edges.length ? edges[i][0] : (long) (random.nextDouble() * (total + 1));
+            buffer.reset();
+            buffer.appendPercent(part, total);
+            buffer.copyTo(text);
+            Tests.assertEquals(percent(part, total), text.toString(), part + " / " + total);
+
+            if (i % 50 == 0) {
+                longs.reset();
+                expected.setLength(0);
+            }
+            long value = random.nextBoolean() ? random.nextLong() : random.nextInt(100);
+            if (value == Long.MIN_VALUE)
+                value = 0;
+            expected.append(value).append(',');
+            longs.appendLong(value);
+            longs.append((byte) ',');
+            longs.copyTo(text);
+            Tests.assertEquals(expected.toString(), text.toString(), "appended longs");
+        }
+    }
+
+    // Raw comparator of the intermediate key: same sign as compareTo on serialized keys with
+    // shared prefixes, multi-byte UTF-8 and field lengths needing a multi-byte VInt
+    static void activityKeyComparator() throws Exception {
+        Random random = new Random(SEED);
+        String[] parts = { "", "1", "12", "123", "\u00e9", "z", "10", "11\u00e9", "x".repeat(130), "x".repeat(131) };
+        WritableComparator comparator = WritableComparator.get(OuladRecommendation.ActivityKey.class);
+        Tests.assertTrue(comparator instanceof OuladRecommendation.ActivityKey.Comparator, "raw comparator registered");
+        OuladRecommendation.ActivityKey a = new OuladRecommendation.ActivityKey();
+        OuladRecommendation.ActivityKey b = new OuladRecommendation.ActivityKey();
+        OuladRecommendation.ActivityKey copy = new OuladRecommendation.ActivityKey();
+        for (int i = 0; i < 3000; i++) {
+            a.set(parts[random.nextInt(parts.length)], parts[random.nextInt(parts.length)], parts[random.nextInt(parts.length)]);
+            if (i % 3 == 0)
+                b.set(a.getStudent().toString(), a.getSite().toString(), parts[random.nextInt(parts.length)]);
+            else
+                b.set(parts[random.nextInt(parts.length)], parts[random.nextInt(parts.length)], parts[random.nextInt(parts.length)]);
+            byte[] bytesA = Tests.serialize(a);
+            byte[] bytesB = Tests.serialize(b);
+            Tests.assertEquals(a, Tests.deserialize(bytesA, copy), "key read back");
+            // Keys at an offset inside a larger buffer, as in the sort buffer
+            byte[] shifted = new byte[bytesB.length + 5];
+            System.arraycopy(bytesB, 0, shifted, 3, bytesB.length);
+            int raw = comparator.compare(bytesA, 0, bytesA.length, shifted, 3, bytesB.length);
+            Tests.assertEquals(Integer.signum(a.compareTo(b)), Integer.signum(raw), "comparison of " + a + " and " + b);
+        }
+    }
+
+    // Text and SequenceFile intermediates (default and explicit codec) give the same scores;
+    // the text job2_agg holds the click sums of each (student, site, type)
+    static void intermediateFormats() throws Exception {
+        Map<String, Map<String, Long>> clicks = studentClicks(vle(), studentVle());
+        List<String> expected = expectedScores(clicks);
+        Tests.assertLines(expected, runOulad("text", "-D", option(OuladRecommendation.INTERMEDIATE_KEY, "text")), "text intermediates");
+        List<String> sums = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Long>> student : clicks.entrySet()) {
+            for (Map.Entry<String, Long> feature : student.getValue().entrySet()) {
+                sums.add(student.getKey() + "," + feature.getKey().replace('-', ',') + "\t" + feature.getValue());
+            }
+        }
+        sums.sort(null);
+        Tests.assertLines(sums, Tests.readOutput("oulad/text/job2_agg"), "text job2_agg");
+
+        Tests.assertLines(expected, runOulad("sequence", "-D", option(OuladRecommendation.INTERMEDIATE_KEY, "sequence"),
+                "-D", option(OuladRecommendation.INTERMEDIATE_CODEC_KEY, DefaultCodec.class.getName())), "SequenceFile intermediates");
+    }
+
+    // Explicit codec used as is; a missing class or a class that is not a codec is rejected
+    // with the key and the value
+    static void intermediateCodec() throws Exception {
+        Configuration conf = new Configuration(false);
+        conf.set(OuladRecommendation.INTERMEDIATE_CODEC_KEY, DefaultCodec.class.getName());
+        Tests.assertEquals(DefaultCodec.class, OuladRecommendation.chooseCodec(conf), "explicit codec");
+        for (String codec : new String[] { "org.example.MissingCodec", "java.lang.String" }) {
+            conf.set(OuladRecommendation.INTERMEDIATE_CODEC_KEY, codec);
+            String message = null;
+            try {
+                OuladRecommendation.chooseCodec(conf);
+            } catch (IllegalArgumentException e) {
+                message = e.getMessage();
+            }
+            Tests.assertTrue(message != null && message.startsWith(OuladRecommendation.INTERMEDIATE_CODEC_KEY + "=" + codec + ": "),
+                    "error for " + codec + ": " + message);
+        }
+    }
+
+    // Dictionary merged from several Job 2 parts (overlapping, one gzip-compressed): features
+    // in byte order without duplicates, binary search on every name, types by first appearance
+    static void featureDictionary() throws Exception {
+        Tests.writeLines(Arrays.asList("546-quiz", "600-url", "5461-forumng"), "oulad/dict/part-r-00000");
+        Tests.writeLines(Arrays.asList("546-quiz", "7-url", "\u00e9t\u00e9-wiki"), "oulad/dict/part-r-00001");
+        try (OutputStream out = new GZIPOutputStream(new FileOutputStream("oulad/dict/part-r-00002.gz"))) {
+            out.write("600-url\n10-quiz\n".getBytes(StandardCharsets.UTF_8));
+        }
+        Tests.writeLines(Arrays.asList("999-ignored"), "oulad/dict/_features-not-a-part");
+        OuladRecommendation.FeatureDictionary.build(new Configuration(), new Path(new File("oulad/dict").getAbsolutePath()));
+        OuladRecommendation.FeatureDictionary dictionary = OuladRecommendation.FeatureDictionary
+                .load(new File("oulad/dict/" + OuladRecommendation.FeatureDictionary.FILE_NAME));
+
+        List<String> expected = Arrays.asList("10-quiz", "546-quiz", "5461-forumng", "600-url", "7-url", "\u00e9t\u00e9-wiki");
+        Tests.assertEquals(expected.size(), dictionary.size(), "features");
+        List<String> types = new ArrayList<>();
+        for (int i = 0; i < dictionary.size(); i++) {
+            String feature = dictionary.feature(i);
+            Tests.assertEquals(expected.get(i), feature, "feature " + i);
+            byte[] bytes = ("x" + feature + "y").getBytes(StandardCharsets.UTF_8);
+            Tests.assertEquals(i, dictionary.indexOf(bytes, 1, bytes.length - 1), "index of " + feature);
+            String type = dictionary.typeName(dictionary.typeId(i));
+            Tests.assertEquals(type(feature), type, "type of " + feature);
+            if (!types.contains(type))
+                types.add(type);
+        }
+        Tests.assertEquals(Arrays.asList("quiz", "forumng", "url", "wiki"), types, "types by first appearance");
+        Tests.assertEquals(types.size(), dictionary.typeCount(), "type count");
+        for (String unknown : new String[] { "", "546", "546-qui", "546-quizz", "999-ignored", "z" }) {
+            byte[] bytes = unknown.getBytes(StandardCharsets.UTF_8);
+            Tests.assertEquals(-1, dictionary.indexOf(bytes, 0, bytes.length), "unknown feature " + unknown);
+        }
+    }
+
+    // Job 2 reducers each write their features: the merged dictionary gives the same
+    // vectors and scores as a single reducer, for both pivot formats
+    static void parallelFeatures() throws Exception {
+        List<String> expected = expectedScores();
+        for (String format : new String[] { "sparse", "dense" }) {
+            Tests.assertLines(expected, runOulad("features-" + format, "-D", "mapreduce.job.reduces=4",
+                    "-D", option(OuladRecommendation.PIVOT_FORMAT_KEY, format)), format + " pivot, 4 reducers");
+            File[] parts = new File("oulad/features-" + format + "/job3_features").listFiles((dir, name) -> name.startsWith("part-r-"));
+            Tests.assertEquals(4, parts.length, "feature parts");
+        }
+    }
+
+    static List<String> parse(OuladRecommendation.CsvFields fields, String line) {
+        int n = fields.parse(new Text(line));
+        Tests.assertEquals(n, fields.size(), "field count of " + line);
+        List<String> values = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            values.add(fields.string(i));
+        }
+        return values;
+    }
+
+    // Quote handling on fixed cases, then random lines of quoted/unquoted fields parsed back to
+    // their values, with the same reused tokenizer (the escaped-quote copy must not leak into
+    // the next line); sub-range parsing and the other delimiters; click parsing
+    static void csvFields() throws Exception {
+        OuladRecommendation.CsvFields fields = new OuladRecommendation.CsvFields();
+        String[][] cases = {
+            { "", "" },
+            { "a,,b", "a", "", "b" },
+            { ",", "", "" },
+            { "\"546\",\"DDD\",\"2013J\"", "546", "DDD", "2013J" },
+            { "\"a,b\",c", "a,b", "c" },
+            { "\"a\"\"b\",c", "a\"b", "c" },
+            { "\"\"\"\"", "\"" },
+            { "\"\",x", "", "x" },
+            { "\"ab\"cd,e", "abcd", "e" },
+            { "a\"b,c", "a\"b", "c" },
+            { " \"a\",b", " \"a\"", "b" },
+            { "\"unterminated,x", "unterminated,x" },
+            { "x,\"a\"\"b\"\"\",\"\u00e9\"", "x", "a\"b\"", "\u00e9" },
+        };
+        for (String[] c : cases) {
+            Tests.assertEquals(Arrays.asList(c).subList(1, c.length), parse(fields, c[0]), "fields of " + c[0]);
+        }
+
+        Random random = new Random(SEED);
+        String alphabet = "ab1,\"| \t\u00e9";
+        for (int i = 0; i < 3000; i++) {
+            List<String> values = new ArrayList<>();
+            StringBuilder line = new StringBuilder();
+            int n = 1 + random.nextInt(8);
+            for (int f = 0; f < n; f++) {
+                StringBuilder value = new StringBuilder();
+                int length = random.nextInt(6);
+                for (int k = 0; k < length; k++) {
+                    value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+                }
+                String v = value.toString();
+                boolean mustQuote = v.contains(",") || v.startsWith("\"");
+                if (f > 0)
+                    line.append(',');
+                if (mustQuote || random.nextBoolean())
+                    line.append('"').append(v.replace("\"", "\"\"")).append('"');
+                else
+                    line.append(v);
+                values.add(v);
+            }
+            Tests.assertEquals(values, parse(fields, line.toString()), "fields of " + line);
+        }
+
+        // One column of a tab-separated record, then a pipe-separated record
+        byte[] record = "x\t\"a\"\"b\",\"c,d\",7\ty".getBytes(StandardCharsets.UTF_8);
+        Tests.assertEquals(3, fields.parse(record, 2, record.length - 2), "fields of the middle column");
+        Tests.assertEquals("a\"b|c,d|7", fields.string(0) + "|" + fields.string(1) + "|" + fields.string(2), "middle column");
+        Tests.assertEquals(7L, fields.clicks(2), "clicks of the middle column");
+        OuladRecommendation.CsvFields pipes = new OuladRecommendation.CsvFields((byte) '|');
+        Tests.assertEquals(Arrays.asList("S", "12345", "7", ""), parse(pipes, "S|12345|7|"), "pipe record");
+        OuladRecommendation.CsvFields tabs = new OuladRecommendation.CsvFields((byte) '\t');
+        Tests.assertEquals(Arrays.asList("1,546,quiz", "30"), parse(tabs, "1,546,quiz\t30"), "tab record");
+
+        String[][] clicks = { { "12", "12" }, { " 7 ", "7" }, { "+3", "3" }, { "-4", "-4" }, { "", "-1" }, { "-", "-1" },
+            { "1x", "-1" }, { "999999999999999999", "999999999999999999" }, { "1000000000000000000", "-1" } };
+        for (String[] c : clicks) {
+            parse(fields, "a,\"" + c[0] + "\"");
+            Tests.assertEquals(Long.parseLong(c[1]), fields.clicks(1), "clicks of '" + c[0] + "'");
+        }
+    }
+
+    // Unquoted CSV files, or quoted ones with escaped quotes and commas inside an ignored
+    // column, give the same scores as the generated files
+    static void csvQuoting() throws Exception {
+        List<String> vle = vle();
+        List<String> studentVle = studentVle();
+        List<String> unquotedVle = new ArrayList<>();
+        for (String line : vle) {
+            unquotedVle.add(line.replace("\"", ""));
+        }
+        List<String> quotedStudentVle = new ArrayList<>();
+        for (int i = 0; i < studentVle.size(); i++) {
+            String line = studentVle.get(i);
+            String[] f = fields(line);
+            quotedStudentVle.add(i % 2 == 0 ? line.replace("\"", "")
+                    : String.format("\"%s\",\"%s\",\"%s\",%s,\"d\"\"a,y\",\" %s\"", f[0], f[1], f[2], f[3], f[5]));
+        }
+        Tests.writeLines(unquotedVle, "oulad/unquoted-vle.csv");
+        Tests.writeLines(quotedStudentVle, "oulad/quoting-studentVle.csv");
+        Tests.runProgram("oulad/quoting", "OuladRecommendation", "oulad/quoting-studentVle.csv", "oulad/unquoted-vle.csv",
+                "oulad/quoting");
+        Tests.assertLines(expectedScores(), Tests.readOutput("oulad/quoting/job5_scoring"), "requoted CSV files");
+    }
+
+    // The K best of (score, index) pairs: scores > 0 only, decreasing score, then lower index
+    static List<long[]> expectedTop(long[] scores, int k) {
+        List<long[]> entries = new ArrayList<>();
+        for (int i = 0; i < scores.length; i++) {
+            if (scores[i] > 0)
+                entries.add(new long[] { scores[i], i });
+        }
+        entries.sort((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0]) : Long.compare(a[1], b[1]));
+        return entries.subList(0, Math.min(k, entries.size()));
+    }
+
+    // Random scores with many ties and zeros, offered in random order to a reused heap
+    static void topKHeap() throws Exception {
+        Random random = new Random(SEED);
+        for (int k : new int[] { 1, 2, 5, 17 }) {
+            OuladRecommendation.TopK top = new OuladRecommendation.TopK(k);
+            for (int round = 0; round < 300; round++) {
+                long[] scores = new long[random.nextInt(40)];
+                for (int i = 0; i < scores.length; i++) {
+                    scores[i] = random.nextInt(4) == 0 ? 0 : random.nextInt(6);
+                }
+                List<Integer> order = new ArrayList<>();
+                for (int i = 0; i < scores.length; i++) {
+                    order.add(i);
+                }
+                Collections.shuffle(order, random);
+                top.clear();
+                for (int i : order) {
+                    top.offer(scores[i], i);
+                }
+                top.sort();
+                List<long[]> expected = expectedTop(scores, k);
+                Tests.assertEquals(expected.size(), top.size(), "kept entries of " + Arrays.toString(scores));
+                for (int i = 0; i < expected.size(); i++) {
+                    Tests.assertEquals(expected.get(i)[0] + ":" + expected.get(i)[1], top.scoreAt(i) + ":" + top.indexAt(i),
+                            "entry " + i + " of " + Arrays.toString(scores) + ", K=" + k);
+                }
+            }
+        }
+    }
+
+    // Top-K Job 5 lines and Job 6 type rankings against the dense reference scores
+    static void topK() throws Exception {
+        int k = 5;
+        Map<String, Map<String, Long>> clicks = studentClicks(vle(), studentVle());
+        List<String> features = new ArrayList<>(features(clicks));
+        List<String> expected = new ArrayList<>();
+        Map<String, long[]> students = new TreeMap<>();
+        for (Map.Entry<String, Map<String, Long>> student : clicks.entrySet()) {
+            Map<String, Long> sums = typeSums(student.getValue());
+            long total = total(student.getValue());
+            long[] parts = new long[features.size()];
+            for (int i = 0; i < parts.length; i++) {
+                String feature = features.get(i);
+                parts[i] = student.getValue().containsKey(feature) ? 0 : sums.getOrDefault(type(feature), 0L);
+            }
+            List<String> scores = new ArrayList<>();
+            for (long[] entry : expectedTop(parts, k)) {
+                String feature = features.get((int) entry[1]);
+                scores.add(feature + ":" + percent(entry[0], total));
+                students.computeIfAbsent(type(feature), t -> new long[features.size()])[(int) entry[1]]++;
+            }
+            expected.add(student.getKey() + "\t" + String.join(",", scores));
+        }
+        expected.sort(null);
+        List<String> expectedTypes = new ArrayList<>();
+        for (Map.Entry<String, long[]> type : students.entrySet()) {
+            List<String> ranked = new ArrayList<>();
+            for (long[] entry : expectedTop(type.getValue(), k)) {
+                ranked.add(features.get((int) entry[1]) + ":" + entry[0]);
+            }
+            expectedTypes.add(type.getKey() + "\t" + String.join(",", ranked));
+        }
+
+        List<String> lines = runOulad("top-k", "-D", option(OuladRecommendation.TOP_K_KEY, k),
+                "-D", option(OuladRecommendation.TOP_K_BY_TYPE_KEY, true), "-D", "mapreduce.job.reduces=2");
+        Tests.assertLines(expected, lines, "top-K scores");
+        Tests.assertLines(expectedTypes, Tests.readOutput("oulad/top-k/job6_topk_types"), "top-K features per type");
+    }
+
+    // ==========================================
+    // INCREMENTAL RUNS
+    // ==========================================
+
+    // Generated rows split into 4 partitions; the rows of one joined site only appear in the
+    // last one, so that partition adds a feature
+    static List<List<String>> partitions() {
+        List<String> rows = studentVle();
+        String header = rows.get(0);
+        rows = rows.subList(1, rows.size());
+        Map<String, String> types = siteTypes(vle());
+        String lateSite = null;
+        for (String row : rows) {
+            if (types.containsKey(fields(row)[3]))
+                lateSite = fields(row)[3];
+        }
+        List<List<String>> partitions = new ArrayList<>();
+        int[] bounds = { 0, 1500, 2500, 3500, rows.size() };
+        for (int p = 0; p < 4; p++) {
+            List<String> partition = new ArrayList<>();
+            partition.add(header);
+            for (String row : rows.subList(bounds[p], bounds[p + 1])) {
+                if (p == 3 || !fields(row)[3].equals(lateSite))
+                    partition.add(row);
+            }
+            if (p == 3) {
+                for (String row : rows.subList(0, bounds[3])) {
+                    if (fields(row)[3].equals(lateSite))
+                        partition.add(row);
+                }
+            }
+            partitions.add(partition);
+        }
+        return partitions;
+    }
+
+    // Scores expected from the rows of the first n partitions
+    static List<String> expectedScores(List<List<String>> partitions, int n) {
+        List<String> rows = new ArrayList<>();
+        for (List<String> partition : partitions.subList(0, n)) {
+            rows.addAll(partition);
+        }
+        return expectedScores(studentClicks(vle(), rows));
+    }
+
+    static String runIncremental(String input, String base) throws Exception {
+        Tests.runProgram(base, "OuladRecommendation", "-D", option(OuladRecommendation.INCREMENTAL_KEY, true),
+                "-D", "mapreduce.job.reduces=2", input, "oulad/vle.csv", base);
+        return new String(Files.readAllBytes(new File(base + ".log").toPath()), StandardCharsets.UTF_8);
+    }
+
+    // Each incremental run (first full run, merge of new students, new feature, nothing new,
+    // rewritten partition) gives the scores of a full computation over all its partitions
+    static void incremental() throws Exception {
+        List<List<String>> partitions = partitions();
+        Tests.writeLines(vle(), "oulad/vle.csv");
+        Tests.writeLines(partitions.get(0), "oulad/inc/parts/part_00");
+        Tests.writeLines(partitions.get(1), "oulad/inc/parts/part_01");
+        runIncremental("oulad/inc/parts", "oulad/inc/out");
+        Tests.assertLines(expectedScores(partitions, 2), Tests.readOutput("oulad/inc/out/job5_scoring"), "first run");
+
+        Tests.writeLines(partitions.get(2), "oulad/inc/parts/part_02");
+        String log = runIncremental("oulad/inc/parts", "oulad/inc/out");
+        Tests.assertTrue(log.contains("1 new studentVle partition(s)") && !log.contains("Feature dictionary changed"),
+                "merge of partition 2");
+        Tests.assertLines(expectedScores(partitions, 3), Tests.readOutput("oulad/inc/out/job5_scoring"), "new partition");
+
+        Tests.writeLines(partitions.get(3), "oulad/inc/parts/part_03");
+        log = runIncremental("oulad/inc/parts", "oulad/inc/out");
+        Tests.assertTrue(log.contains("Feature dictionary changed"), "new feature in partition 3");
+        List<String> all = expectedScores(partitions, 4);
+        Tests.assertLines(all, Tests.readOutput("oulad/inc/out/job5_scoring"), "new feature");
+        Tests.assertLines(all, runOulad("inc-full"), "full run over the same rows");
+
+        log = runIncremental("oulad/inc/parts", "oulad/inc/out");
+        Tests.assertTrue(log.contains("No new studentVle partition"), "nothing new");
+        Tests.assertLines(all, Tests.readOutput("oulad/inc/out/job5_scoring"), "nothing new");
+
+        List<String> rewritten = new ArrayList<>(partitions.get(0).subList(0, 1000));
+        Tests.writeLines(rewritten, "oulad/inc/parts/part_00");
+        log = runIncremental("oulad/inc/parts", "oulad/inc/out");
+        Tests.assertTrue(log.contains("full recompute"), "rewritten partition");
+        List<List<String>> changed = new ArrayList<>(partitions);
+        changed.set(0, rewritten);
+        Tests.assertLines(expectedScores(changed, 4), Tests.readOutput("oulad/inc/out/job5_scoring"), "rewritten partition");
+    }
+
+    static void copyTree(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            to.mkdirs();
+            for (String name : from.list()) {
+                copyTree(new File(from, name), new File(to, name));
+            }
+        } else {
+            Files.copy(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    // A run that died after its commit rename, with part of _commit/ already moved, is
+    // completed by the next run; a leftover _delta/ is discarded
+    static void commitReplay() throws Exception {
+        List<List<String>> partitions = partitions();
+        Tests.writeLines(vle(), "oulad/vle.csv");
+        Tests.writeLines(partitions.get(0), "oulad/replay/parts/part_00");
+        Tests.writeLines(partitions.get(1), "oulad/replay/parts/part_01");
+        runIncremental("oulad/replay/parts", "oulad/replay/before");
+        copyTree(new File("oulad/replay/before"), new File("oulad/replay/after"));
+        Tests.writeLines(partitions.get(2), "oulad/replay/parts/part_02");
+        runIncremental("oulad/replay/parts", "oulad/replay/after");
+
+        // State "before" + the committed stages of "after", job1..job3 already moved
+        File crashed = new File("oulad/replay/crashed");
+        copyTree(new File("oulad/replay/before"), crashed);
+        for (String stage : new String[] { "job4_pivot", "job5_scoring", "_watermark" }) {
+            copyTree(new File("oulad/replay/after", stage), new File(crashed, "_commit/" + stage));
+        }
+        for (String stage : new String[] { "job1_join", "job2_agg", "job3_features" }) {
+            copyTree(new File("oulad/replay/after", stage), new File(crashed, stage));
+        }
+        Tests.writeLines(Arrays.asList("unfinished"), "oulad/replay/crashed/_delta/job1_join/part-r-00000");
+
+        String log = runIncremental("oulad/replay/parts", "oulad/replay/crashed");
+        Tests.assertTrue(log.contains("No new studentVle partition"), "watermark of the committed run");
+        Tests.assertTrue(!new File(crashed, "_commit").exists() && !new File(crashed, "_delta").exists(), "_commit and _delta removed");
+        Tests.assertEquals(Files.readAllLines(new File("oulad/replay/after/_watermark").toPath()),
+                Files.readAllLines(new File(crashed, "_watermark").toPath()), "watermark");
+        Tests.assertLines(expectedScores(partitions, 3), Tests.readOutput("oulad/replay/crashed/job5_scoring"), "replayed commit");
+    }
+
+    // ==========================================
+    // CHECKPOINTED FULL RUNS
+    // ==========================================
+
+    // Full run over the checkpoint test files into oulad/cp/out; returns the skipped stages
+    // and the number of jobs run, from the run report
+    static String runCheckpointed(String studentVle, String... options) throws Exception {
+        List<String> args = new ArrayList<>(Arrays.asList(options));
+        args.addAll(Arrays.asList(studentVle, "oulad/cp/vle.csv", "oulad/cp/out"));
+        Tests.runProgram("oulad/cp/run", "OuladRecommendation", args.toArray(new String[0]));
+        List<String> skipped = new ArrayList<>();
+        int run = 0;
+        for (JsonNode stage : new ObjectMapper().readTree(new File("oulad/cp/out_report.json")).get("stages")) {
+            if (stage.has("skipped"))
+                skipped.add(stage.get("name").asText());
+            else if (stage.get("success").asBoolean())
+                run++;
+        }
+        return skipped + " " + run;
+    }
+
+    // A rerun skips the unchanged stages and keeps their output; a changed setting reruns the
+    // stages from the first one it affects, a changed input or a missing output reruns what
+    // depends on it, and oulad.checkpoint=false reruns everything
+    static void checkpoint() throws Exception {
+        List<String> studentVle = studentVle();
+        List<String> expected = expectedScores();
+        Tests.writeLines(vle(), "oulad/cp/vle.csv");
+        Tests.writeLines(studentVle, "oulad/cp/studentVle.csv");
+        Tests.assertEquals("[] 4", runCheckpointed("oulad/cp/studentVle.csv"), "first run");
+        Tests.assertLines(expected, Tests.readOutput("oulad/cp/out/job5_scoring"), "first run");
+
+        File part = new File("oulad/cp/out/job5_scoring/part-r-00000");
+        long written = part.lastModified();
+        Tests.assertEquals("[job1_join, job2_agg, job4_pivot, job5_scoring] 0", runCheckpointed("oulad/cp/studentVle.csv"),
+                "unchanged rerun");
+        Tests.assertEquals(written, part.lastModified(), "Job 5 output rewritten");
+        Tests.assertLines(expected, Tests.readOutput("oulad/cp/out/job5_scoring"), "unchanged rerun");
+
+        Tests.assertEquals("[job1_join, job2_agg, job4_pivot] 1",
+                runCheckpointed("oulad/cp/studentVle.csv", "-D", option(OuladRecommendation.TOP_K_KEY, 3)), "top-K setting");
+        Tests.assertTrue(!expected.equals(Tests.readOutput("oulad/cp/out/job5_scoring")), "top-K output");
+        Tests.assertEquals("[job1_join, job2_agg] 2", runCheckpointed("oulad/cp/studentVle.csv", "-D",
+                option(OuladRecommendation.PIVOT_FORMAT_KEY, "dense")), "pivot format setting");
+        Tests.assertLines(expected, Tests.readOutput("oulad/cp/out/job5_scoring"), "dense pivot");
+
+        deleteTree(new File("oulad/cp/out/job5_scoring"));
+        Tests.assertEquals("[job1_join, job2_agg, job4_pivot] 1", runCheckpointed("oulad/cp/studentVle.csv", "-D",
+                option(OuladRecommendation.PIVOT_FORMAT_KEY, "dense")), "missing Job 5 output");
+        Tests.assertLines(expected, Tests.readOutput("oulad/cp/out/job5_scoring"), "missing Job 5 output");
+
+        List<String> fewer = new ArrayList<>(studentVle.subList(0, 3000));
+        Tests.writeLines(fewer, "oulad/cp/studentVle.csv");
+        Tests.assertEquals("[] 4", runCheckpointed("oulad/cp/studentVle.csv"), "changed input");
+        Tests.assertLines(expectedScores(studentClicks(vle(), fewer)), Tests.readOutput("oulad/cp/out/job5_scoring"), "changed input");
+
+        Tests.assertEquals("[] 4", runCheckpointed("oulad/cp/studentVle.csv", "-D", option(OuladRecommendation.CHECKPOINT_KEY, false)),
+                "checkpoint disabled");
+        Tests.assertLines(expectedScores(studentClicks(vle(), fewer)), Tests.readOutput("oulad/cp/out/job5_scoring"),
+                "checkpoint disabled");
+    }
+
+    static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    // A failing driver step stops the chain: its stack trace is printed in full, its
+    // fingerprint is not recorded and the next stage is not run
+    static void stageFailure() throws Exception {
+        Tests.writeLines(Arrays.asList("a", "b"), "oulad/stage/in.txt");
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        List<OuladRecommendation.Stage> stages = new ArrayList<>();
+        for (String name : new String[] { "first", "second" }) {
+            Job job = Job.getInstance(conf, name);
+            FileInputFormat.addInputPath(job, new Path(new File("oulad/stage/in.txt").getAbsolutePath()));
+            FileOutputFormat.setOutputPath(job, new Path(new File("oulad/stage/" + name).getAbsolutePath()));
+            stages.add(new OuladRecommendation.Stage(name, job, name + "-print", () -> {
+                throw new IOException("dictionary not written");
+            }));
+        }
+        Map<String, String> recorded = new HashMap<>();
+        Path stagesFile = new Path(new File("oulad/stage/_stages").getAbsolutePath());
+        PrintStream err = System.err;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        boolean success;
+        System.setErr(new PrintStream(captured, true, "UTF-8"));
+        try {
+            success = OuladRecommendation.runStages(fs, stagesFile, recorded, stages,
+                    new RunReport(conf, "stages", new Path(new File("oulad/stage/report.json").getAbsolutePath())));
+        } finally {
+            System.setErr(err);
+        }
+        String log = new String(captured.toByteArray(), StandardCharsets.UTF_8);
+        Tests.assertTrue(!success, "failed chain reported as a success");
+        Tests.assertTrue(log.contains("Stage first failed:") && log.contains("java.io.IOException: dictionary not written")
+                && log.contains("at OuladRecommendationTest."), "stack trace of the failed stage: " + log);
+        Tests.assertTrue(recorded.isEmpty(), "fingerprint of the failed stage recorded");
+        Tests.assertTrue(!new File("oulad/stage/second").exists(), "stage after the failure run");
+    }
+}
@@ -0,0 +1,183 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+
+// RhymeFinder : groupes de rimes compares a un regroupement direct des mots generes,
+// liste de mots pre-jointe (WordListWritable) et index mmap construit sur la sortie (RhymeIndex).
+public class RhymeFinderTest {
+
+    static final long SEED = 11;
+
+    static void run(Tests t) {
+        t.check("rhyme-word-list-writable", RhymeFinderTest::wordListRoundTrip);
+        t.check("rhyme-suffix-lengths", RhymeFinderTest::suffixLengths);
+        t.check("rhyme-index-queries", RhymeFinderTest::indexQueries);
+        t.check("rhyme-index-empty", RhymeFinderTest::emptyIndex);
+    }
+
+    // ==========================================
+    // REFERENCE
+    // ==========================================
+
+    static List<String> words() {
+        return DataGenerator.words(3000, SEED);
+    }
+
+    // Sortie attendue pour une longueur : "suffixe \t mot, mot, ..." (au moins deux mots,
+    // doublons conserves), mots tries dans chaque ligne comme dans normalize()
+    static List<String> expectedRhymes(List<String> words, int suffixLength, int minWordLength) {
+        Map<String, List<String>> groups = new TreeMap<>();
+        for (String word : words) {
+            if (word.length() >= minWordLength && word.length() > suffixLength) {
+                groups.computeIfAbsent(word.substring(word.length() - suffixLength), k -> new ArrayList<>()).add(word);
+            }
+        }
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, List<String>> group : groups.entrySet()) {
+            if (group.getValue().size() > 1) {
+                lines.add(group.getKey() + "\t" + String.join(", ", group.getValue()));
+            }
+        }
+        return normalize(lines);
+    }
+
+    // L'ordre des mots d'une liste depend de l'arrivee des splits : tri dans chaque ligne
+    static List<String> normalize(List<String> lines) {
+        List<String> sorted = new ArrayList<>(lines.size());
+        for (String line : lines) {
+            int tab = line.indexOf('\t');
+            String[] words = line.substring(tab + 1).split(", ");
+            Arrays.sort(words);
+            sorted.add(line.substring(0, tab + 1) + String.join(", ", words));
+        }
+        sorted.sort(null);
+        return sorted;
+    }
+
+    // ==========================================
+    // TESTS
+    // ==========================================
+
+    // Liste jointe : fusion = concatenation avec separateur, compte additionne, aller-retour
+    static void wordListRoundTrip() throws Exception {
+        RhymeFinder.WordListWritable a = new RhymeFinder.WordListWritable();
+        a.add(new Text("adorable"));
+        a.add(new Text("capable"));
+        RhymeFinder.WordListWritable b = new RhymeFinder.WordListWritable();
+        b.add(new Text("durable"));
+        RhymeFinder.WordListWritable empty = new RhymeFinder.WordListWritable();
+
+        a.merge(empty);
+        a.merge(b);
+        Tests.assertEquals(3, a.getCount(), "nombre de mots");
+        Text joined = new Text();
+        a.copyTo(joined);
+        Tests.assertEquals("adorable, capable, durable", joined.toString(), "liste jointe");
+
+        RhymeFinder.WordListWritable copy = Tests.deserialize(Tests.serialize(a), b);
+        copy.copyTo(joined);
+        Tests.assertEquals("adorable, capable, durable", joined.toString(), "liste relue");
+        Tests.assertEquals(3, copy.getCount(), "nombre de mots relu");
+        empty.merge(copy);
+        empty.copyTo(joined);
+        Tests.assertEquals("adorable, capable, durable", joined.toString(), "fusion dans une liste vide");
+    }
+
+    // Une longueur (sortie a la racine), puis plusieurs longueurs en une passe (lenN/) avec
+    // vidages du tampon du Mapper, puis avec le plan de skew : memes groupes que le calcul direct
+    static void suffixLengths() throws Exception {
+        List<String> words = words();
+        Tests.writeLines(words, "rhyme/words.txt");
+        Tests.runProgram("rhyme/len4", "RhymeFinder", "rhyme/words.txt", "rhyme/len4");
+        Tests.assertLines(expectedRhymes(words, 4, 6), normalize(Tests.readOutput("rhyme/len4")), "suffixe de 4");
+
+        Tests.runProgram("rhyme/multi", "RhymeFinder", "-D", RhymeFinder.SUFFIX_LENGTHS_KEY + "=2,3,5",
+                "-D", RhymeFinder.FLUSH_BYTES_KEY + "=2048", "-D", RhymeFinder.MIN_WORD_LENGTH_KEY + "=4",
+                "rhyme/words.txt", "rhyme/multi");
+        for (int length : new int[] {2, 3, 5}) {
+            Tests.assertLines(expectedRhymes(words, length, 4), normalize(Tests.readOutput("rhyme/multi/len" + length)),
+                    "suffixe de " + length + ", vidages");
+        }
+
+        Tests.runProgram("rhyme/skew", "RhymeFinder", "-D", RhymeFinder.SUFFIX_LENGTHS_KEY + "=3,4",
+                "-D", RhymeFinder.SKEW_KEY + "=true", "-D", "mapreduce.job.reduces=4", "rhyme/words.txt", "rhyme/skew");
+        for (int length : new int[] {3, 4}) {
+            Tests.assertLines(expectedRhymes(words, length, 6), normalize(Tests.readOutput("rhyme/skew/len" + length)),
+                    "suffixe de " + length + ", plan de skew");
+        }
+    }
+
+    // Index : pour chaque mot et chaque longueur, memes rimes qu'un parcours de tous les mots
+    // distincts de la sortie (mots accentues compris, ordre des octets UTF-8)
+    static void indexQueries() throws Exception {
+        List<String> output = new ArrayList<>();
+        output.add("sans tabulation, ignoree");
+        output.add("tion\t" + String.join(", ", words().subList(0, 400)));
+        output.add("ble\tadorable, capable, durable, adorable");
+        output.add("ete\tete, ete, \u00e9t\u00e9, \u00e9t\u00e8, ret\u00e9");
+        Tests.writeLines(output, "rhyme/index-src/len4/part-r-00000");
+        Tests.writeLines(Arrays.asList("_SUCCESS ignore\tpas, des, mots"), "rhyme/index-src/_SUCCESS");
+
+        TreeSet<String> distinct = new TreeSet<>();
+        for (String line : output) {
+            if (line.indexOf('\t') >= 0) {
+                distinct.addAll(Arrays.asList(line.substring(line.indexOf('\t') + 1).split(", ")));
+            }
+        }
+        int count = RhymeIndex.build(new Configuration(), new Path("rhyme/index-src"), "rhyme/words.idx");
+        Tests.assertEquals(distinct.size(), count, "mots indexes");
+
+        try (RhymeIndex index = RhymeIndex.open("rhyme/words.idx")) {
+            Tests.assertEquals(distinct.size(), index.size(), "taille de l'index");
+            TreeSet<String> all = new TreeSet<>();
+            for (int i = 0; i < index.size(); i++) {
+                all.add(index.wordAt(i));
+            }
+            Tests.assertEquals(distinct, all, "mots de l'index");
+
+            for (String word : distinct) {
+                for (int length = 1; length <= 6; length++) {
+                    List<String> expected = new ArrayList<>();
+                    int withSuffix = 0;
+                    if (word.length() >= length) {
+                        String suffix = word.substring(word.length() - length);
+                        for (String other : distinct) {
+                            if (other.endsWith(suffix)) {
+                                withSuffix++;
+                                if (!other.equals(word)) {
+                                    expected.add(other);
+                                }
+                            }
+                        }
+                        Tests.assertEquals(withSuffix, index.countWithSuffix(suffix), "mots en -" + suffix);
+                    }
+                    List<String> rhymes = index.rhymesWith(word, length);
+                    rhymes.sort(null);
+                    Tests.assertEquals(expected, rhymes, "rimes de " + word + " sur " + length);
+                }
+            }
+        }
+    }
+
+    // Sortie sans aucun groupe : index vide, requetes et benchmark sans erreur
+    static void emptyIndex() throws Exception {
+        new File("rhyme/empty-src").mkdirs();
+        Tests.writeLines(new ArrayList<>(), "rhyme/empty-src/part-r-00000");
+        Tests.assertEquals(0, RhymeIndex.build(new Configuration(), new Path("rhyme/empty-src"), "rhyme/empty.idx"),
+                "mots indexes");
+        try (RhymeIndex index = RhymeIndex.open("rhyme/empty.idx")) {
+            Tests.assertEquals(0, index.size(), "taille de l'index");
+            Tests.assertTrue(index.rhymesWith("adorable", 4).isEmpty(), "aucune rime");
+            Tests.assertEquals(0, index.countWithSuffix("ble"), "aucun mot en -ble");
+            RhymeIndex.benchmark(index, 1000, 4);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+// RunReport : seaux des histogrammes, echappement JSON, et rapport d'un vrai job relu par un
+// parseur JSON (compteurs metier, histogrammes coherents avec les compteurs du framework).
+public class RunReportTest {
+
+    static void run(Tests t) {
+        t.check("report-buckets", RunReportTest::buckets);
+        t.check("report-json", RunReportTest::report);
+    }
+
+    // Puissances de 4 : "le_1", "le_4", "le_16"... puis le seau de depassement
+    static void buckets() throws Exception {
+        long[][] cases = { {0, 0}, {1, 0}, {2, 1}, {4, 1}, {5, 2}, {16, 2}, {17, 3}, {1L << 24, 12}, {(1L << 24) + 1, 13},
+            {Long.MAX_VALUE, 13} };
+        for (long[] c : cases) {
+            Tests.assertEquals((int) c[1], RunReport.bucket(c[0]), "seau de " + c[0]);
+        }
+        Tests.assertEquals("\"a\\\"b\\\\c\\u000a\\u0009\u00e9\"", RunReport.quote("a\"b\\c\n\t\u00e9"), "chaine echappee");
+        JsonNode parsed = new ObjectMapper().readTree(RunReport.quote("a\"b\\c\n\t\u00e9"));
+        Tests.assertEquals("a\"b\\c\n\t\u00e9", parsed.asText(), "chaine relue");
+    }
+
+    static long sum(JsonNode group) {
+        long sum = 0;
+        for (Iterator<JsonNode> it = group.elements(); it.hasNext();) {
+            sum += it.next().asLong();
+        }
+        return sum;
+    }
+
+    // Tous les enregistrements chronometres : un point par map() dans chaque histogramme,
+    // un point par groupe dans celui des Reducers, un maximum par Reducer
+    static void report() throws Exception {
+        List<String> words = RhymeFinderTest.words();
+        Tests.writeLines(words, "report/words.txt");
+        Tests.runProgram("report/rhyme", "RhymeFinder", "-D", RunReport.TIMING_SAMPLE_KEY + "=1", "-D", "mapreduce.job.reduces=3",
+                "-D", RunReport.PATH_KEY + "=report/rapport.json", "report/words.txt", "report/rhyme");
+
+        JsonNode report = new ObjectMapper().readTree(new File("report/rapport.json"));
+        Tests.assertEquals("RhymeFinder", report.get("program").asText(), "programme");
+        Tests.assertEquals(1, report.get("stages").size(), "etapes");
+        JsonNode stage = report.get("stages").get(0);
+        Tests.assertTrue(stage.get("success").asBoolean(), "etape reussie");
+        Tests.assertEquals(3, stage.get("reduceTasks").asInt(), "Reducers");
+
+        JsonNode counters = stage.get("counters");
+        JsonNode tasks = counters.get("org.apache.hadoop.mapreduce.TaskCounter");
+        Tests.assertEquals(RhymeFinderTest.expectedRhymes(words, 4, 6).size(),
+                counters.get("RhymeFinder$RhymeCounters").get("RHYME_GROUPS").asInt(), "groupes de rimes");
+        Tests.assertEquals(tasks.get("MAP_INPUT_RECORDS").asLong(), sum(counters.get(RunReport.MAP_PARSE_GROUP)), "map() chronometres");
+        Tests.assertEquals(tasks.get("MAP_INPUT_RECORDS").asLong(), sum(counters.get(RunReport.MAP_EMIT_GROUP)), "ecritures chronometrees");
+        Tests.assertEquals(tasks.get("REDUCE_INPUT_GROUPS").asLong(), sum(counters.get(RunReport.GROUP_SIZE_GROUP)), "groupes mesures");
+        Tests.assertEquals(3, counters.get(RunReport.MAX_GROUP_GROUP).size(), "plus gros groupe de chaque Reducer");
+        Tests.assertTrue(stage.get("skew").get("ratio").asDouble() >= 1.0, "desequilibre");
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+// ScoreStore : magasin construit depuis une sortie du Job 5 en plusieurs parties, relu par
+// get() (avec ou sans cache) et getAll() a l'identique des lignes sources ; magasin vide et
+// entrees invalides.
+public class ScoreStoreTest {
+
+    static void run(Tests t) {
+        t.check("store-lookups", ScoreStoreTest::lookups);
+        t.check("store-edge-cases", ScoreStoreTest::edgeCases);
+    }
+
+    // Lignes "etudiant \t scores" de la reference reparties dans deux parties, plus des
+    // identifiants non ASCII (ordre des octets non signes) et un score vide
+    static void lookups() throws Exception {
+        List<String> lines = new ArrayList<>(OuladRecommendationTest.expectedScores());
+        lines.add("\u00e9tudiant\t1.00,2.00");
+        lines.add("\u4e2d\t3.50");
+        lines.add("sans-score\t");
+        Map<String, String> expected = new TreeMap<>();
+        for (String line : lines) {
+            int tab = line.indexOf('\t');
+            expected.put(line.substring(0, tab), line.substring(tab + 1));
+        }
+        Tests.writeLines(lines.subList(0, lines.size() / 2), "store/job5/part-r-00000");
+        Tests.writeLines(lines.subList(lines.size() / 2, lines.size()), "store/job5/part-r-00001");
+        Tests.writeLines(Arrays.asList("pas de tabulation"), "store/job5/part-r-00002");
+        Tests.writeLines(Arrays.asList("ignore\t0"), "store/job5/_SUCCESS");
+        Tests.writeLines(Arrays.asList("ignore\t0"), "store/job5/.part-r-00000.crc");
+
+        Tests.assertEquals(expected.size(), ScoreStore.build(new Configuration(), new Path("store/job5"), "store/scores.store"),
+                "etudiants exportes");
+        for (int cacheEntries : new int[] { 0, 3, ScoreStore.DEFAULT_CACHE_ENTRIES }) {
+            try (ScoreStore store = ScoreStore.open("store/scores.store", cacheEntries)) {
+                Tests.assertEquals(expected.size(), store.size(), "taille");
+                List<String> order = new ArrayList<>();
+                for (int i = 0; i < store.size(); i++) {
+                    order.add(store.studentAt(i));
+                }
+                List<String> sorted = new ArrayList<>(expected.keySet());
+                sorted.sort((a, b) -> Arrays.compareUnsigned(a.getBytes(StandardCharsets.UTF_8), b.getBytes(StandardCharsets.UTF_8)));
+                Tests.assertEquals(sorted, order, "ordre de l'index");
+
+                // Deux passes : la seconde sert les entrees encore en cache
+                for (int pass = 0; pass < 2; pass++) {
+                    for (Map.Entry<String, String> entry : expected.entrySet()) {
+                        Tests.assertEquals(entry.getValue(), store.get(entry.getKey()), "scores de " + entry.getKey());
+                    }
+                }
+                for (String absent : new String[] { "", "0", "zzzz", "\u00e9tudian", "\u00e9tudiants", "ignore" }) {
+                    Tests.assertEquals(null, store.get(absent), "etudiant absent " + absent);
+                }
+
+                // Lecture groupee : ordre de la demande, absents omis, doublons une seule fois
+                Random random = new Random(cacheEntries);
+                List<String> request = new ArrayList<>();
+                Map<String, String> found = new LinkedHashMap<>();
+                for (int i = 0; i < 200; i++) {
+                    String student = random.nextInt(5) == 0 ? "absent" + i : sorted.get(random.nextInt(sorted.size()));
+                    request.add(student);
+                    if (expected.containsKey(student)) {
+                        found.putIfAbsent(student, expected.get(student));
+                    }
+                }
+                Map<String, String> all = store.getAll(request);
+                Tests.assertEquals(new ArrayList<>(found.entrySet()), new ArrayList<>(all.entrySet()), "lecture groupee");
+                Tests.assertEquals(expected, new TreeMap<>(store.getAll(sorted)), "lecture groupee de tous les etudiants");
+            }
+        }
+    }
+
+    // Sortie sans ligne, etudiant en double, fichier qui n'est pas un magasin
+    static void edgeCases() throws Exception {
+        new File("store/vide").mkdirs();
+        Tests.writeLines(new ArrayList<>(), "store/vide/part-r-00000");
+        Tests.assertEquals(0, ScoreStore.build(new Configuration(), new Path("store/vide"), "store/vide.store"), "magasin vide");
+        try (ScoreStore store = ScoreStore.open("store/vide.store")) {
+            Tests.assertEquals(0, store.size(), "taille du magasin vide");
+            Tests.assertEquals(null, store.get("x"), "lecture dans le magasin vide");
+            Tests.assertEquals(0, store.getAll(Arrays.asList("x", "y")).size(), "lecture groupee dans le magasin vide");
+        }
+
+        Tests.writeLines(Arrays.asList("a\t1", "b\t2"), "store/double/part-r-00000");
+        Tests.writeLines(Arrays.asList("a\t3"), "store/double/part-r-00001");
+        Tests.assertTrue(fails(() -> ScoreStore.build(new Configuration(), new Path("store/double"), "store/double.store")),
+                "etudiant en double accepte");
+
+        Files.write(new File("store/invalide.store").toPath(), new byte[16]);
+        Tests.assertTrue(fails(() -> ScoreStore.open("store/invalide.store").close()), "fichier invalide ouvert");
+    }
+
+    interface Action {
+        void run() throws IOException;
+    }
+
+    static boolean fails(Action action) {
+        try {
+            action.run();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+
+// SkewPartitioning : calcul du plan, relecture par le Partitioner, et resultats identiques
+// au calcul direct quand des cles sont reellement reparties (jointure et agregation).
+public class SkewPartitioningTest {
+
+    static void run(Tests t) {
+        t.check("skew-plan", SkewPartitioningTest::plan);
+        t.check("skew-partitioner", SkewPartitioningTest::partitioner);
+        t.check("skew-sample-glob", SkewPartitioningTest::sampleGlob);
+        t.check("skew-oulad-join", SkewPartitioningTest::ouladJoin);
+        t.check("skew-oulad-glob-input", SkewPartitioningTest::ouladGlobInput);
+        t.check("skew-mba-pairs", SkewPartitioningTest::mbaPairs);
+    }
+
+    // Cle lourde repartie sur plusieurs Reducers, toutes les cles placees dans [0, reducers),
+    // aucun plan pour un seul Reducer
+    static void plan() throws Exception {
+        Map<String, Long> weights = new HashMap<>();
+        weights.put("tion", 5000L);
+        for (int i = 0; i < 200; i++) {
+            weights.put("k" + i, 10L + i % 7);
+        }
+        Configuration conf = new Configuration(false);
+        SkewPartitioning.Plan plan = SkewPartitioning.buildPlan(weights, 4, conf);
+        Tests.assertEquals(weights.size(), plan.size(), "cles placees");
+        Tests.assertEquals(1, plan.getSpreadKeys(), "cles reparties");
+        Tests.assertEquals(4, plan.replicas(new Text("tion")), "Reducers de la cle lourde");
+        Tests.assertEquals(1, plan.replicas(new Text("absente")), "cle hors plan");
+
+        double[] loads = new double[4];
+        for (Map.Entry<String, Long> weight : weights.entrySet()) {
+            int[] partitions = plan.get(new Text(weight.getKey())).partitions;
+            for (int p : partitions) {
+                Tests.assertTrue(p >= 0 && p < 4, "Reducer " + p + " de " + weight.getKey());
+                loads[p] += (double) weight.getValue() / partitions.length;
+            }
+        }
+        for (double load : loads) {
+            Tests.assertTrue(load < 1.1 * (5000 + 200 * 13) / 4.0, "charge d'un Reducer : " + load);
+        }
+        Tests.assertEquals(0, SkewPartitioning.buildPlan(weights, 1, conf).size(), "plan a un Reducer");
+    }
+
+    // Plan relu depuis le lien du DistributedCache : tourniquet sur les Reducers d'une cle
+    // repartie, place fixe pour une cle equilibree, hachage sinon ou si le nombre de
+    // Reducers a change
+    static void partitioner() throws Exception {
+        Map<String, Long> weights = new HashMap<>();
+        weights.put("chaude", 1000L);
+        weights.put("tiede", 10L);
+        SkewPartitioning.Plan plan = SkewPartitioning.buildPlan(weights, 3, new Configuration(false));
+        File link = new File(SkewPartitioning.PLAN_LINK);
+        // Les jobs des autres tests lisent ce lien dans le repertoire courant : toujours supprime
+        try {
+            plan.write(FileSystem.getLocal(new Configuration()), new Path(link.getAbsolutePath()));
+            Configuration conf = new Configuration(false);
+            conf.setInt(MRJobConfig.TASK_PARTITION, 1);
+            SkewPartitioning.SkewPartitioner<Text, Text> partitioner = new SkewPartitioning.SkewPartitioner<>();
+            partitioner.setConf(conf);
+
+            Set<Integer> hot = new HashSet<>();
+            for (int i = 0; i < 30; i++) {
+                hot.add(partitioner.getPartition(new Text("chaude"), null, 3));
+            }
+            Tests.assertEquals(plan.replicas(new Text("chaude")), hot.size(), "Reducers de la cle repartie");
+            int warm = plan.get(new Text("tiede")).partitions[0];
+            for (int i = 0; i < 5; i++) {
+                Tests.assertEquals(warm, partitioner.getPartition(new Text("tiede"), null, 3), "cle equilibree");
+            }
+            Text unknown = new Text("inconnue");
+            Tests.assertEquals((unknown.hashCode() & Integer.MAX_VALUE) % 3, partitioner.getPartition(unknown, null, 3),
+                    "cle hors plan");
+            Tests.assertEquals((new Text("chaude").hashCode() & Integer.MAX_VALUE) % 5,
+                    partitioner.getPartition(new Text("chaude"), null, 5), "plan d'un autre nombre de Reducers");
+
+            conf.setBoolean(SkewPartitioning.MERGE_KEY, true);
+            partitioner.setConf(conf);
+            Tests.assertEquals((new Text("chaude").hashCode() & Integer.MAX_VALUE) % 3,
+                    partitioner.getPartition(new Text("chaude"), null, 3), "job de fusion");
+        } finally {
+            link.delete();
+        }
+    }
+
+    // Echantillon complet (une zone, assez d'enregistrements) : un glob "part_*", le dossier
+    // qui contient les parties et la liste des fichiers donnent les memes poids ; fichiers
+    // caches ignores, glob sans correspondance vide, chemin absent refuse
+    static void sampleGlob() throws Exception {
+        Tests.writeLines(Arrays.asList("a", "b", "a"), "skew/glob/part_00");
+        Tests.writeLines(Arrays.asList("a", "c"), "skew/glob/part_01");
+        Tests.writeLines(Arrays.asList("a", "d"), "skew/glob/sub/part_02");
+        Tests.writeLines(Arrays.asList("z"), "skew/glob/_SUCCESS");
+        Configuration conf = new Configuration();
+        conf.setInt(SkewPartitioning.SAMPLE_CHUNKS_KEY, 1);
+        conf.setInt(SkewPartitioning.SAMPLE_RECORDS_KEY, 1000);
+        SkewPartitioning.KeyExtractor lines = (line, keys) -> keys.add(line);
+
+        Map<String, Long> expected = new TreeMap<>();
+        expected.put("a", 3L);
+        expected.put("b", 1L);
+        expected.put("c", 1L);
+        Tests.assertEquals(expected, new TreeMap<>(SkewPartitioning.sample(conf,
+                Arrays.asList(new Path("skew/glob/part_*")), lines)), "glob");
+        Tests.assertEquals(expected, new TreeMap<>(SkewPartitioning.sample(conf,
+                Arrays.asList(new Path("skew/glob/part_00"), new Path("skew/glob/part_01")), lines)), "fichiers");
+        expected.put("a", 4L);
+        expected.put("d", 1L);
+        Tests.assertEquals(expected, new TreeMap<>(SkewPartitioning.sample(conf, Arrays.asList(new Path("skew/glob")), lines)),
+                "dossier parcouru recursivement");
+        Tests.assertEquals(expected, new TreeMap<>(SkewPartitioning.sample(conf, Arrays.asList(new Path("skew/*")), lines)),
+                "glob d'un dossier");
+        Tests.assertEquals(0, SkewPartitioning.sample(conf, Arrays.asList(new Path("skew/glob/aucun_*")), lines).size(),
+                "glob sans correspondance");
+        boolean refused = false;
+        try {
+            SkewPartitioning.sample(conf, Arrays.asList(new Path("skew/absent")), lines);
+        } catch (FileNotFoundException e) {
+            refused = true;
+        }
+        Tests.assertTrue(refused, "chemin absent accepte");
+    }
+
+    // Au moins une cle du plan ecrit par le driver est repartie
+    static void assertSpread(String planFile) throws Exception {
+        List<String> lines = Files.readAllLines(new File(planFile).toPath(), StandardCharsets.UTF_8);
+        boolean spread = false;
+        for (String line : lines.subList(1, lines.size())) {
+            spread |= line.substring(line.lastIndexOf('\t') + 1).contains(",");
+        }
+        Tests.assertTrue(spread, "aucune cle repartie dans " + planFile);
+    }
+
+    // Jointure : les id_site chauds recoivent une copie de leur ligne vle par Reducer
+    static void ouladJoin() throws Exception {
+        for (String join : new String[] { "reduce", "sorted" }) {
+            List<String> scores = OuladRecommendationTest.runOulad("skew-" + join, "-D", OuladRecommendation.SKEW_KEY + "=true",
+                    "-D", OuladRecommendation.JOIN_KEY + "=" + join, "-D", "mapreduce.job.reduces=3",
+                    "-D", SkewPartitioning.HEAVY_SHARE_KEY + "=0.2");
+            assertSpread("oulad/skew-" + join + "_skew_plan");
+            Tests.assertLines(OuladRecommendationTest.expectedScores(), scores, "jointure " + join + ", plan de skew");
+        }
+    }
+
+    // Entree studentVle en parties designees par un glob, comme dans run_project.sh
+    static void ouladGlobInput() throws Exception {
+        List<String> studentVle = OuladRecommendationTest.studentVle();
+        Tests.writeLines(studentVle.subList(0, 2000), "oulad/skew-glob-parts/part_00");
+        List<String> rest = new ArrayList<>(studentVle.subList(0, 1));
+        rest.addAll(studentVle.subList(2000, studentVle.size()));
+        Tests.writeLines(rest, "oulad/skew-glob-parts/part_01");
+        Tests.writeLines(OuladRecommendationTest.vle(), "oulad/vle.csv");
+        Tests.runProgram("oulad/skew-glob", "OuladRecommendation", "-D", OuladRecommendation.SKEW_KEY + "=true",
+                "-D", "mapreduce.job.reduces=3", "-D", SkewPartitioning.HEAVY_SHARE_KEY + "=0.2",
+                "oulad/skew-glob-parts/part_*", "oulad/vle.csv", "oulad/skew-glob");
+        assertSpread("oulad/skew-glob_skew_plan");
+        Tests.assertLines(OuladRecommendationTest.expectedScores(), Tests.readOutput("oulad/skew-glob/job5_scoring"),
+                "jointure sur un glob, plan de skew");
+    }
+
+    // Agregation : partiels des paires reparties fusionnes par le second job ; en mode encoded
+    // la cle du plan est ecrite par EncodedPairSkewPartitioner
+    static void mbaPairs() throws Exception {
+        List<String> transactions = MarketBasketAnalysisTest.transactions();
+        Tests.writeLines(transactions, "mba/tx.txt");
+        for (String mode : new String[] { "pairs", "encoded" }) {
+            Tests.runProgram("mba/skew-" + mode, "MarketBasketAnalysis", "-D", MarketBasketAnalysis.MODE_KEY + "=" + mode,
+                    "-D", MarketBasketAnalysis.SKEW_KEY + "=true", "-D", "mapreduce.job.reduces=4",
+                    "-D", SkewPartitioning.HEAVY_SHARE_KEY + "=0.05", "mba/tx.txt", "mba/skew-" + mode);
+            assertSpread("mba/skew-" + mode + "_skew_plan");
+            Tests.assertLines(MarketBasketAnalysisTest.expectedPairs(transactions, 1), Tests.readOutput("mba/skew-" + mode),
+                    "mode " + mode + ", plan de skew");
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.hadoop.io.Writable;
+
+// Tests de comportement des programmes : allers-retours des Writables contre leurs
+// comparateurs binaires, decoupage CSV, structures de donnees (sketches, tas top-K,
+// dictionnaires, index mmap) et equivalence des resultats entre les modes d'un programme.
+//
+// Les tests de bout en bout lancent les drivers inchanges dans une JVM fille (ils se
+// terminent par System.exit), en local (LocalJobRunner, fichiers du repertoire courant),
+// sur des donnees de DataGenerator : lancer depuis un repertoire de travail jetable (voir
+// run_tests.sh). Un argument filtre les tests sur leur nom.
+public class Tests {
+
+    interface Check {
+        void run() throws Exception;
+    }
+
+    private final String filter;
+    private int passed;
+    private final List<String> failures = new ArrayList<>();
+
+    Tests(String filter) {
+        this.filter = filter;
+    }
+
+    void check(String name, Check check) {
+        if (filter != null && !name.contains(filter)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            check.run();
+            passed++;
+            System.out.printf("ok     %-36s %6d ms%n", name, (System.nanoTime() - start) / 1000000);
+        } catch (Throwable e) {
+            failures.add(name);
+            System.out.printf("ECHEC  %-36s %s%n", name, e);
+        }
+    }
+
+    // ==========================================
+    // ASSERTIONS
+    // ==========================================
+
+    static void assertTrue(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    static void assertEquals(Object expected, Object actual, String message) {
+        if (!Objects.equals(expected, actual)) {
+            throw new AssertionError(message + " : attendu <" + expected + ">, obtenu <" + actual + ">");
+        }
+    }
+
+    // Listes de lignes : premiere difference et tailles, plutot que les deux listes entieres
+    static void assertLines(List<String> expected, List<String> actual, String message) {
+        for (int i = 0; i < Math.min(expected.size(), actual.size()); i++) {
+            if (!expected.get(i).equals(actual.get(i))) {
+                throw new AssertionError(message + " : ligne " + i + " attendue <" + expected.get(i) + ">, obtenue <"
+                        + actual.get(i) + ">");
+            }
+        }
+        if (expected.size() != actual.size()) {
+            throw new AssertionError(message + " : " + expected.size() + " lignes attendues, " + actual.size() + " obtenues");
+        }
+    }
+
+    // ==========================================
+    // WRITABLES
+    // ==========================================
+
+    static byte[] serialize(Writable writable) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writable.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    // Relit bytes dans target (objet reutilise, comme dans les taches) et verifie que tout est lu
+    static <W extends Writable> W deserialize(byte[] bytes, W target) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        target.readFields(new DataInputStream(in));
+        assertEquals(0, in.available(), "octets non lus par readFields");
+        return target;
+    }
+
+    // ==========================================
+    // PROGRAMMES ET FICHIERS
+    // ==========================================
+
+    // Lance un driver dans une JVM fille, en local ; sa sortie va dans <name>.log, dont la
+    // fin est reprise dans l'erreur si le code de retour n'est pas 0
+    static void runProgram(String name, String mainClass, String... args) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("-Dlog4j.configuration=none");
+        command.add(mainClass);
+        Collections.addAll(command, "-D", "fs.defaultFS=file:///", "-D", "mapreduce.framework.name=local");
+        Collections.addAll(command, args);
+        File log = new File(name + ".log");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+        int status = process.waitFor();
+        if (status != 0) {
+            List<String> lines = Files.readAllLines(log.toPath(), StandardCharsets.UTF_8);
+            throw new AssertionError(mainClass + " a echoue (" + status + ") : "
+                    + String.join("\n", lines.subList(Math.max(0, lines.size() - 15), lines.size())));
+        }
+    }
+
+    // Lignes des fichiers part-* d'une sortie (texte), triees
+    static List<String> readOutput(String dir) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (DirectoryStream<java.nio.file.Path> parts = Files.newDirectoryStream(new File(dir).toPath(), "part-*")) {
+            for (java.nio.file.Path part : parts) {
+                lines.addAll(Files.readAllLines(part, StandardCharsets.UTF_8));
+            }
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+
+    static void writeLines(List<String> lines, String file) throws IOException {
+        File target = new File(file);
+        if (target.getParentFile() != null) {
+            target.getParentFile().mkdirs();
+        }
+        Files.write(target.toPath(), lines, StandardCharsets.UTF_8);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Tests tests = new Tests(args.length > 0 ? args[0] : null);
+        MarketBasketAnalysisTest.run(tests);
+        RhymeFinderTest.run(tests);
+        OuladRecommendationTest.run(tests);
+        SkewPartitioningTest.run(tests);
+        LocalRunnerProfileTest.run(tests);
+        BenchmarksTest.run(tests);
+        RunReportTest.run(tests);
+        ScoreStoreTest.run(tests);
+
+        System.out.println(tests.passed + " tests reussis, " + tests.failures.size() + " echecs"
+                + (tests.failures.isEmpty() ? "" : " : " + tests.failures));
+        System.exit(tests.failures.isEmpty() ? 0 : 1);
+    }
+}
@@ -0,0 +1,24 @@
+#!/bin/bash
+# Tests de comportement (voir Tests.java).
+# Usage : tests/run_tests.sh [filtre]
+#   ex : tests/run_tests.sh mba-
+
+HADOOP_CLASSPATH=$(hadoop classpath)
+ROOT_DIR=$(cd "$(dirname "$0")/.." && pwd)
+BUILD_DIR=$(mktemp -d)
+WORK_DIR=$(mktemp -d)
+
+# Programmes, micro-benchmarks (dont DataGenerator) et tests compiles ensemble (package par defaut)
+javac -classpath "$HADOOP_CLASSPATH" -d $BUILD_DIR $ROOT_DIR/*.java $ROOT_DIR/benchmarks/*.java $ROOT_DIR/tests/*.java
+if [ $? -ne 0 ]; then
+    echo "Erreur de compilation"
+    exit 1
+fi
+
+# Les tests ecrivent leurs entrees et sorties dans WORK_DIR
+cd $WORK_DIR
+java -cp "$BUILD_DIR:$HADOOP_CLASSPATH" Tests "$@"
+STATUS=$?
+
+rm -rf $BUILD_DIR $WORK_DIR
+exit $STATUS